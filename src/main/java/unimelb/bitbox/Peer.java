@@ -1,19 +1,25 @@
 package unimelb.bitbox;
 
 import unimelb.bitbox.connection.ClientConnectionHandler;
+import unimelb.bitbox.connection.Connection;
 import unimelb.bitbox.connection.PeerConnectionHandler;
 import unimelb.bitbox.connection.ConnectionObserver;
 import unimelb.bitbox.protocols.PeerClient;
 import unimelb.bitbox.protocols.PeerServer;
+import unimelb.bitbox.protocols.RemoteState;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Extensions;
+import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
 import java.io.*;
 import java.net.DatagramSocket;
-import java.net.Socket;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
 public class Peer {
@@ -21,43 +27,156 @@ public class Peer {
 
     private String peerHost;
     private Integer peerPort;
-    private Socket socket;
+    private Connection connection;
     private PeerClient client;
     private PeerServer server;
     private ConnectionObserver observer;
+    private FileSystemManager fileSystemManager;
+    private Set<String> extensions;
+    /**
+     * True until {@link #catchUp(Document)}, while new events are held in pendingEvents,
+     * so that they are not sent before the events that were missed.
+     */
+    private boolean catchingUp;
+    private List<FileSystemEvent> pendingEvents = new ArrayList<>();
+    private int syncs;
+
+    /**
+     * Every this many syncs nothing is left out of the sync, in case what is known
+     * of the peer's share directory is wrong, e.g. if the peer deleted a file while
+     * it was still loading it.
+     */
+    private static final int UNFILTERED_SYNC_INTERVAL = 10;
 
     // TCP Peer constructor
-    public Peer(String host, int port, Socket socket, ConnectionObserver observer)
-            throws IOException, NoSuchAlgorithmException {
-        log.info("Connection to " + host + ":" + port + " established");
+    public Peer(String host, int port, Connection connection, ConnectionObserver observer, FileSystemManager fileSystemManager,
+                Set<String> extensions, ScheduledExecutorService clientScheduler) throws IOException, NoSuchAlgorithmException {
+        log.info("Connection to " + host + ":" + port + " established, with extensions " + extensions);
         this.observer = observer;
         this.peerHost = host;
         this.peerPort = port;
-        this.socket = socket;
-        this.client = new PeerClient(host, port, socket);
-        this.server = new PeerServer(this.client, host, port, socket, observer);
-        this.start();
+        this.connection = connection;
+        this.fileSystemManager = fileSystemManager;
+        this.extensions = extensions;
+        // The handshake has been sent already, everything from now on is framed
+        connection.setBinary(extensions.contains(Extensions.BINARY));
+        this.client = new PeerClient(host, port, connection, extensions);
+        this.server = new PeerServer(this.client, host, port, connection, observer, fileSystemManager, extensions);
+        this.catchingUp = extensions.contains(Extensions.JOURNAL);
+        this.start(clientScheduler);
     }
 
     // UDP Peer constructor
-    public Peer(String host, int port, DatagramSocket socket, ConnectionObserver observer)
-            throws IOException, NoSuchAlgorithmException {
-        log.info("Connection to " + host + ":" + port + " established");
+    public Peer(String host, int port, DatagramSocket socket, ConnectionObserver observer, FileSystemManager fileSystemManager,
+                Set<String> extensions, ScheduledExecutorService clientScheduler) throws IOException, NoSuchAlgorithmException {
+        log.info("Connection to " + host + ":" + port + " established, with extensions " + extensions);
         this.peerHost = host;
         this.peerPort = port;
-        this.client = new PeerClient(host, port, socket);
-        this.server = new PeerServer(this.client, host, port, socket, observer);
-        this.start();
+        this.fileSystemManager = fileSystemManager;
+        this.extensions = extensions;
+        this.client = new PeerClient(host, port, socket, extensions);
+        this.server = new PeerServer(this.client, host, port, socket, observer, fileSystemManager, extensions);
+        this.catchingUp = extensions.contains(Extensions.JOURNAL);
+        this.start(clientScheduler);
     }
 
     public void onNewFileSystemEvent(FileSystemEvent event) {
-        this.client.enqueue(event);
+        synchronized (this) {
+            if (catchingUp) {
+                pendingEvents.add(event);
+                return;
+            }
+        }
+        relay(event);
+    }
+
+    /**
+     * Sends the peer what changed in this peer's journal since the peer last saw it, or
+     * syncs the peer in full if it has not seen the journal, or the journal no longer goes back
+     * that far. Until then new events are held back. Only once the handshake is complete.
+     * @param journal the journal position in the peer's handshake, or null
+     */
+    public void catchUp(Document journal) {
+        long replayed = 0;
+        if (extensions.contains(Extensions.JOURNAL)) {
+            if (journal != null) {
+                server.setRemoteJournal(journal.getString("id"));
+            }
+            List<FileSystemEvent> missed = fileSystemManager.getJournalEvents(journal);
+            if (missed == null) {
+                log.info("journal does not go back far enough for " + peerHost + ":" + peerPort + ", syncing in full");
+                if (extensions.contains(Extensions.MERKLE)) {
+                    sync();
+                } else {
+                    onNewSyncEvents(fileSystemManager.generateSyncEvents());
+                }
+            } else {
+                log.info("sending " + missed.size() + " missed events to " + peerHost + ":" + peerPort);
+                for (FileSystemEvent event : missed) {
+                    relay(event);
+                    replayed = event.sequence;
+                }
+            }
+        }
+        synchronized (this) {
+            for (FileSystemEvent event : pendingEvents) {
+                // the journal may have been read after the event was emitted
+                if (event.sequence == 0 || event.sequence > replayed) {
+                    relay(event);
+                }
+            }
+            pendingEvents.clear();
+            catchingUp = false;
+        }
+    }
+
+    private void relay(FileSystemEvent event) {
+        boolean move = event.event == FileSystemManager.EVENT.FILE_MOVE
+                || event.event == FileSystemManager.EVENT.DIRECTORY_MOVE;
+        if (move && !extensions.contains(Extensions.MOVE)) {
+            // The peer can't move anything, so create it again and delete the old one
+            for (FileSystemEvent expanded : fileSystemManager.expandMove(event)) {
+                this.client.enqueue(expanded);
+            }
+        } else {
+            this.client.enqueue(event);
+        }
     }
 
+    /**
+     * Sends the sync events to the peer, leaving out those that the peer is known
+     * to have already, see {@link RemoteState}.
+     * @param syncEvents the events that create the entire share directory
+     */
     public void onNewSyncEvents(List<FileSystemEvent> syncEvents) {
+        boolean filter = ++syncs % UNFILTERED_SYNC_INTERVAL != 0;
+        RemoteState remoteState = server.getRemoteState();
+        int skipped = 0;
         for (FileSystemEvent event : syncEvents) {
-            client.enqueue(event);
+            if (filter && remoteState.satisfies(event)) {
+                skipped++;
+            } else {
+                client.enqueue(event);
+            }
         }
+        log.info("sync to " + peerHost + ":" + peerPort + ": " + (syncEvents.size() - skipped)
+                + " events sent, " + skipped + " already satisfied");
+    }
+
+    /**
+     * Syncs the share with the peer by comparing directory digests, which needs
+     * the peer to support {@link Extensions#MERKLE}, see {@link #supports(String)}.
+     */
+    public void sync() {
+        server.sync();
+    }
+
+    /**
+     * @param extension one of the {@link Extensions}
+     * @return true if the extension was negotiated with the peer
+     */
+    public boolean supports(String extension) {
+        return extensions.contains(extension);
     }
 
     public void processMessage(Document message) throws NoSuchAlgorithmException, IOException {
@@ -66,27 +185,26 @@ public class Peer {
     }
 
     /**
-     * Starts both PeerClient and PeerServer threads
+     * Starts the PeerClient and the PeerServer's request timeouts on the shared scheduler,
+     * and over TCP hands the PeerServer what the connection receives. Neither has a thread of its own.
      */
-    private void start() {
-        Thread clientThread = new Thread(client);
-        Thread serverThread = new Thread(server);
-        clientThread.start();
-        serverThread.start();
-        log.info("PeerClient thread for " + peerHost + ":" + peerPort + " started");
-        log.info("PeerServer thread for " + peerHost + ":" + peerPort + " started");
+    private void start(ScheduledExecutorService clientScheduler) {
+        client.start(clientScheduler);
+        server.start(clientScheduler);
+        log.info("PeerClient for " + peerHost + ":" + peerPort + " started");
+        if (connection != null) {
+            connection.setListener(server);
+            log.info("PeerServer for " + peerHost + ":" + peerPort + " started");
+        }
     }
 
     public void disconnect() {
         String mode = Configuration.getConfigurationValue("mode");
         if (mode.equals("tcp")) {
-            try {
-                this.socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            this.connection.close();
         } else {
             client.close();
+            server.close();
             observer.disconnect(peerHost, peerPort);
         }
     }
@@ -0,0 +1,232 @@
+package unimelb.bitbox.bench;
+
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.FileSystemObserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how the FileSystemManager API scales with the number of peers using it at once.
+ * Each thread stands in for the PeerServer of one peer, and works on files of its own:
+ * <li>read: looks its file up with fileNameExists, then reads it a block at a time with
+ * readFile and Base64 encodes each block, as a FILE_BYTES_RESPONSE does</li>
+ * <li>write: loads a new copy of its file a block at a time with createFileLoader, writeFile
+ * and checkWriteComplete, as FILE_BYTES_RESPONSEs do</li>
+ * Each phase is run with 1, 2, 4, ... threads up to the given number, and the throughput of all
+ * of the threads together is printed. With a lock per file rather than one for the whole manager,
+ * throughput grows with the number of threads, up to the number of processors.
+ * <br/>
+ * Usage, from the directory with configuration.properties:
+ * <pre>
+ * java -cp target/bitbox-0.0.1-SNAPSHOT-jar-with-dependencies.jar unimelb.bitbox.bench.FileSystemManagerBenchmark \
+ *     [maxThreads] [fileSizeMB] [blockSizeKB] [passes]
+ * </pre>
+ * It only uses API methods that are unchanged since the manager was a single monitor, so the
+ * same class can be built against earlier revisions for comparison, see README.md.
+ */
+public class FileSystemManagerBenchmark {
+    private static final int DEFAULT_MAX_THREADS = 8;
+    private static final int DEFAULT_FILE_SIZE_MB = 16;
+    private static final int DEFAULT_BLOCK_SIZE_KB = 1024;
+    private static final int DEFAULT_PASSES = 4;
+
+    private File share;
+    private FileSystemManager fileSystemManager;
+    private int maxThreads;
+    private long fileSize;
+    private int blockSize;
+    private int passes;
+    private List<String> md5s = new ArrayList<>();
+    private int writeRun;
+
+    private FileSystemManagerBenchmark(int maxThreads, long fileSize, int blockSize, int passes) {
+        this.maxThreads = maxThreads;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.passes = passes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Logging every block read would be the bottleneck
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_THREADS;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_FILE_SIZE_MB) * 1024 * 1024;
+        int blockSize = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BLOCK_SIZE_KB) * 1024;
+        int passes = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PASSES;
+        FileSystemManagerBenchmark benchmark = new FileSystemManagerBenchmark(maxThreads, fileSize, blockSize, passes);
+        try {
+            benchmark.run();
+        } finally {
+            // The manager complains about the share being deleted from under it
+            Logger.getLogger("").setLevel(Level.OFF);
+            benchmark.cleanUp();
+        }
+        // The file system manager's threads do not stop
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println("processors " + Runtime.getRuntime().availableProcessors() + ", max threads " + maxThreads
+                + ", file size " + fileSize / (1024 * 1024) + " MB, block size " + blockSize / 1024 + " KB, passes "
+                + passes);
+        share = Files.createTempDirectory("bitbox-bench").toFile();
+        Random random = new Random(42);
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < maxThreads; i++) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            try (OutputStream out = new FileOutputStream(new File(share, "file" + i))) {
+                for (long written = 0; written < fileSize; written += blockSize) {
+                    random.nextBytes(block);
+                    int length = (int) Math.min(blockSize, fileSize - written);
+                    out.write(block, 0, length);
+                    md5.update(block, 0, length);
+                }
+            }
+            md5s.add(toHex(md5.digest()));
+        }
+        fileSystemManager = new FileSystemManager(share.getPath(), new FileSystemObserver() {
+            @Override
+            public void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
+            }
+        });
+        // Warm up, so that the first run is not slower for reasons of its own
+        phase("warm up", 1, this::read, false);
+        // Every read is done before any write, since the copies written are hashed in the background
+        List<Double> reads = new ArrayList<>();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            reads.add(phase("read", threads, this::read, true));
+        }
+        System.out.println(String.format("%-8s %12s %12s", "threads", "read MB/s", "write MB/s"));
+        for (int threads = 1, i = 0; threads <= maxThreads; threads *= 2, i++) {
+            double write = phase("write", threads, this::write, true);
+            System.out.println(String.format("%-8d %12.1f %12.1f", threads, reads.get(i), write));
+        }
+    }
+
+    private interface Work {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs the work on the given number of threads at once.
+     * @return the MB per second of all of the threads together
+     */
+    private double phase(String name, int threads, Work work, boolean timed) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Exception[] failure = new Exception[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    work.run(thread);
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            }, name + "-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        start.await();
+        long started = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        writeRun++;
+        return timed ? (double) threads * passes * fileSize / (1024 * 1024) / (elapsed / 1e9) : 0;
+    }
+
+    private void read(int thread) throws Exception {
+        String pathName = "file" + thread;
+        String md5 = md5s.get(thread);
+        for (int pass = 0; pass < passes; pass++) {
+            if (!fileSystemManager.fileNameExists(pathName, md5)) {
+                throw new IOException(pathName + " is not in the index");
+            }
+            for (long position = 0; position < fileSize; position += blockSize) {
+                long length = Math.min(blockSize, fileSize - position);
+                ByteBuffer buffer = fileSystemManager.readFile(md5, position, length);
+                if (buffer == null) {
+                    throw new IOException("unable to read " + pathName + " at " + position);
+                }
+                // Revisions before d87f23f return the buffer without flipping it
+                buffer.rewind();
+                Base64.getEncoder().encode(buffer);
+            }
+        }
+    }
+
+    private void write(int thread) throws Exception {
+        String md5 = md5s.get(thread);
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        for (int pass = 0; pass < passes; pass++) {
+            String pathName = "copy" + writeRun + "-" + thread + "-" + pass;
+            if (!fileSystemManager.createFileLoader(pathName, md5, fileSize, System.currentTimeMillis())) {
+                throw new IOException("unable to create a file loader for " + pathName);
+            }
+            for (long position = 0; position < fileSize; position += blockSize) {
+                buffer.clear();
+                buffer.limit((int) Math.min(blockSize, fileSize - position));
+                readBlock(new File(share, "file" + thread), position, buffer);
+                if (!fileSystemManager.writeFile(pathName, buffer, position)) {
+                    throw new IOException("unable to write " + pathName + " at " + position);
+                }
+            }
+            if (!fileSystemManager.checkWriteComplete(pathName)) {
+                throw new IOException(pathName + " did not match once loaded");
+            }
+        }
+    }
+
+    /**
+     * Reads a block of the source file straight from the file system, standing in for a block received.
+     */
+    private static void readBlock(File file, long position, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of " + file);
+                }
+            }
+        }
+        buffer.flip();
+    }
+
+    private void cleanUp() throws IOException {
+        if (share != null) {
+            Files.walk(share.toPath()).sorted((a, b) -> b.compareTo(a)).map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,281 @@
+package unimelb.bitbox.bench;
+
+import unimelb.bitbox.connection.Connection;
+import unimelb.bitbox.connection.Transport;
+import unimelb.bitbox.protocols.PeerClient;
+import unimelb.bitbox.protocols.PeerServer;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Extensions;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.FileSystemObserver;
+import unimelb.bitbox.util.Messages;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how many file bytes one peer serves as the number of peers fetching from it grows.
+ * The serving peer is set up as a real peer is, a {@link PeerServer} and {@link PeerClient} for
+ * each connection accepted by a {@link Transport}, all sharing one FileSystemManager. Each of the
+ * fetching peers connects to it over the loopback interface and fetches a file of its own, a block
+ * at a time with FILE_BYTES_REQUESTs, keeping a number of them outstanding as {@link
+ * unimelb.bitbox.protocols.TransferWindow} does.
+ * The rounds are run with 1, 2, 4, ... peers up to the given number, and the MB per second of
+ * file bytes received by all of the peers together is printed.
+ * <br/>
+ * Usage, from the directory with configuration.properties, whose blockSize is the block size used:
+ * <pre>
+ * java -cp target/bitbox-0.0.1-SNAPSHOT-jar-with-dependencies.jar unimelb.bitbox.bench.MultiPeerBenchmark \
+ *     [maxPeers] [fileSizeMB] [passes] [window] [binary]
+ * </pre>
+ * With binary true the peers negotiate {@link Extensions#BINARY}, so that blocks are sent raw
+ * rather than Base64 encoded.
+ */
+public class MultiPeerBenchmark {
+    private static final int DEFAULT_MAX_PEERS = 8;
+    private static final int DEFAULT_FILE_SIZE_MB = 16;
+    private static final int DEFAULT_PASSES = 4;
+    private static final int DEFAULT_WINDOW = 8;
+
+    /**
+     * The most seconds a round may take before the benchmark gives up.
+     */
+    private static final long ROUND_TIMEOUT = 600;
+
+    private File share;
+    private FileSystemManager fileSystemManager;
+    private int maxPeers;
+    private long fileSize;
+    private long blockSize;
+    private int passes;
+    private int window;
+    private Set<String> extensions = new HashSet<>();
+    private List<String> md5s = new ArrayList<>();
+    private List<Long> lastModifieds = new ArrayList<>();
+
+    private MultiPeerBenchmark(int maxPeers, long fileSize, int passes, int window, boolean binary) {
+        this.maxPeers = maxPeers;
+        this.fileSize = fileSize;
+        this.passes = passes;
+        this.window = window;
+        if (binary) {
+            extensions.add(Extensions.BINARY);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Logging every message sent would be the bottleneck
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int maxPeers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_PEERS;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_FILE_SIZE_MB) * 1024 * 1024;
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PASSES;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WINDOW;
+        boolean binary = args.length > 4 && Boolean.parseBoolean(args[4]);
+        MultiPeerBenchmark benchmark = new MultiPeerBenchmark(maxPeers, fileSize, passes, window, binary);
+        try {
+            benchmark.run();
+        } finally {
+            // The manager complains about the share being deleted from under it
+            Logger.getLogger("").setLevel(Level.OFF);
+            benchmark.cleanUp();
+        }
+        // Neither the file system manager's threads nor the transport's stop
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        blockSize = Long.parseLong(Configuration.getConfigurationValue("blockSize"));
+        System.out.println("processors " + Runtime.getRuntime().availableProcessors() + ", max peers " + maxPeers
+                + ", file size " + fileSize / (1024 * 1024) + " MB, block size " + blockSize / 1024 + " KB, passes "
+                + passes + ", window " + window + ", extensions " + extensions);
+        share = Files.createTempDirectory("bitbox-bench").toFile();
+        Random random = new Random(42);
+        byte[] block = new byte[(int) Math.min(blockSize, fileSize)];
+        for (int i = 0; i < maxPeers; i++) {
+            File file = new File(share, "file" + i);
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            try (OutputStream out = new FileOutputStream(file)) {
+                for (long written = 0; written < fileSize; written += block.length) {
+                    random.nextBytes(block);
+                    int length = (int) Math.min(block.length, fileSize - written);
+                    out.write(block, 0, length);
+                    md5.update(block, 0, length);
+                }
+            }
+            md5s.add(toHex(md5.digest()));
+            lastModifieds.add(file.lastModified());
+        }
+        fileSystemManager = new FileSystemManager(share.getPath(), new FileSystemObserver() {
+            @Override
+            public void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
+            }
+        });
+        // The serving peer, set up as PeerConnectionHandler and Peer set up a TCP peer
+        Transport transport = new Transport(Transport.DEFAULT_IO_THREADS, Transport.DEFAULT_WORKER_THREADS);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ServerSocketChannel server = transport.bind(0);
+        int port = server.socket().getLocalPort();
+        transport.accept(server, connection -> {
+            connection.setBinary(extensions.contains(Extensions.BINARY));
+            try {
+                PeerClient client = new PeerClient("localhost", port, connection, extensions);
+                PeerServer peerServer = new PeerServer(client, "localhost", port, connection,
+                        (host, peerPort) -> { }, fileSystemManager, extensions);
+                client.start(scheduler);
+                peerServer.start(scheduler);
+                connection.setListener(peerServer);
+            } catch (Exception e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        });
+        // The fetching peers have a transport of their own, as they would in other processes
+        Transport peers = new Transport(Transport.DEFAULT_IO_THREADS, Transport.DEFAULT_WORKER_THREADS);
+        // Warm up, so that the first round is not slower for reasons of its own
+        round(peers, port, 1);
+        System.out.println(String.format("%-8s %12s", "peers", "MB/s"));
+        for (int count = 1; count <= maxPeers; count *= 2) {
+            System.out.println(String.format("%-8d %12.1f", count, round(peers, port, count)));
+        }
+    }
+
+    /**
+     * Has the given number of peers fetch their files at once.
+     * @return the MB per second received by all of the peers together
+     */
+    private double round(Transport peers, int port, int count) throws Exception {
+        CountDownLatch done = new CountDownLatch(count);
+        List<Fetcher> fetchers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Connection connection = peers.connect("localhost", port);
+            connection.setBinary(extensions.contains(Extensions.BINARY));
+            Fetcher fetcher = new Fetcher(i, connection, done);
+            connection.setListener(fetcher);
+            fetchers.add(fetcher);
+        }
+        long started = System.nanoTime();
+        for (Fetcher fetcher : fetchers) {
+            fetcher.start();
+        }
+        if (!done.await(ROUND_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IOException("peers did not finish within " + ROUND_TIMEOUT + " seconds");
+        }
+        long elapsed = System.nanoTime() - started;
+        for (Fetcher fetcher : fetchers) {
+            fetcher.connection.close();
+            if (fetcher.failure != null) {
+                throw new IOException(fetcher.failure);
+            }
+        }
+        return (double) count * passes * fileSize / (1024 * 1024) / (elapsed / 1e9);
+    }
+
+    /**
+     * A peer fetching its file, passes times over, with up to window requests outstanding.
+     */
+    private class Fetcher implements Connection.Listener {
+        private String pathName;
+        private String md5;
+        private long lastModified;
+        private Connection connection;
+        private CountDownLatch done;
+        private long total = passes * fileSize;
+        private long requested;
+        private long received;
+        private volatile String failure;
+
+        private Fetcher(int file, Connection connection, CountDownLatch done) {
+            this.pathName = "file" + file;
+            this.md5 = md5s.get(file);
+            this.lastModified = lastModifieds.get(file);
+            this.connection = connection;
+            this.done = done;
+        }
+
+        private synchronized void start() {
+            List<String> requests = new ArrayList<>();
+            while (requests.size() < window && requested < total) {
+                requests.add(nextRequest());
+            }
+            connection.send(requests, null);
+        }
+
+        private String nextRequest() {
+            long position = requested % fileSize;
+            long length = Math.min(blockSize, fileSize - position);
+            requested += length;
+            return Messages.getFileBytesRequest(md5, lastModified, fileSize, pathName, position, length);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            onMessage(message, null);
+        }
+
+        @Override
+        public synchronized void onMessage(String message, ByteBuffer payload) {
+            Document response = Document.parse(message);
+            if (!"FILE_BYTES_RESPONSE".equals(response.getString("command")) || failure != null) {
+                return;
+            }
+            long length = response.getLong("length");
+            boolean complete = payload != null ? payload.remaining() == length
+                    : response.getString("content").length() >= length * 4 / 3;
+            if (!response.getBoolean("status") || !complete) {
+                failure = pathName + " at " + response.getLong("position") + ": " + response.getString("message");
+                done.countDown();
+                return;
+            }
+            received += length;
+            if (requested < total) {
+                connection.send(Collections.singletonList(nextRequest()), null);
+            } else if (received == total) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void onClose() {
+            if (received < total && failure == null) {
+                failure = "the connection for " + pathName + " closed";
+                done.countDown();
+            }
+        }
+    }
+
+    private void cleanUp() throws IOException {
+        if (share != null) {
+            Files.walk(share.toPath()).sorted((a, b) -> b.compareTo(a)).map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,215 @@
+package unimelb.bitbox.bench;
+
+import unimelb.bitbox.connection.Connection;
+import unimelb.bitbox.connection.Transport;
+import unimelb.bitbox.protocols.PeerClient;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.FileSystemObserver;
+import unimelb.bitbox.util.Messages;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long a {@link PeerClient} takes from something being queued until it reaches
+ * the peer, over a connection on the loopback interface, for:
+ * <li>events: file system events queued one at a time, a given number of milliseconds apart,
+ * as the file system manager emits them</li>
+ * <li>requests: FILE_BYTES_REQUESTs queued a window at a time, the next window once the last
+ * one has reached the peer, as a PeerServer fetching a file does</li>
+ * The time is taken when the peer has read the message, so it includes the write and the
+ * loopback, and the mean, median, 99th percentile and maximum are printed, with how many
+ * messages reached the peer per second.
+ * <br/>
+ * Usage, from the directory with configuration.properties:
+ * <pre>
+ * java -cp target/bitbox-0.0.1-SNAPSHOT-jar-with-dependencies.jar unimelb.bitbox.bench.PeerClientBenchmark \
+ *     [events] [eventIntervalMs] [requests] [window]
+ * </pre>
+ * It only uses API methods that are unchanged since the client ran every 50 milliseconds,
+ * so the same class can be built against earlier revisions for comparison, see README.md.
+ */
+public class PeerClientBenchmark {
+    private static final int DEFAULT_EVENTS = 500;
+    private static final int DEFAULT_EVENT_INTERVAL = 2;
+    private static final int DEFAULT_REQUESTS = 1000;
+    private static final int DEFAULT_WINDOW = 8;
+
+    /**
+     * The most seconds a phase may take before the benchmark gives up.
+     */
+    private static final long PHASE_TIMEOUT = 600;
+
+    private File share;
+    private FileSystemManager fileSystemManager;
+    private int events;
+    private int eventInterval;
+    private int requests;
+    private int window;
+
+    // Set by the phase being run, read as the peer receives messages
+    private volatile long[] queued;
+    private volatile long[] received;
+    private volatile CountDownLatch arrived;
+
+    private PeerClientBenchmark(int events, int eventInterval, int requests, int window) {
+        this.events = events;
+        this.eventInterval = eventInterval;
+        this.requests = requests;
+        this.window = window;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Logging every message sent would be the bottleneck
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_EVENTS;
+        int eventInterval = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_EVENT_INTERVAL;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WINDOW;
+        PeerClientBenchmark benchmark = new PeerClientBenchmark(events, eventInterval, requests, window);
+        try {
+            benchmark.run();
+        } finally {
+            // The manager complains about the share being deleted from under it
+            Logger.getLogger("").setLevel(Level.OFF);
+            benchmark.cleanUp();
+        }
+        // Neither the file system manager's threads nor the transport's stop
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println("processors " + Runtime.getRuntime().availableProcessors() + ", events " + events
+                + " every " + eventInterval + " ms, requests " + requests + " in windows of " + window);
+        // Events can only be made by a file system manager, its share is left empty
+        share = Files.createTempDirectory("bitbox-bench").toFile();
+        fileSystemManager = new FileSystemManager(share.getPath(), new FileSystemObserver() {
+            @Override
+            public void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
+            }
+        });
+        // The peer, which notes when each message reaches it
+        Transport transport = new Transport(Transport.DEFAULT_IO_THREADS, Transport.DEFAULT_WORKER_THREADS);
+        ServerSocketChannel server = transport.bind(0);
+        int port = server.socket().getLocalPort();
+        transport.accept(server, connection -> connection.setListener(new Connection.Listener() {
+            @Override
+            public void onMessage(String message) {
+                long now = System.nanoTime();
+                Document document = Document.parse(message);
+                int index = (int) (document.getString("command").equals("FILE_BYTES_REQUEST")
+                        ? document.getLong("position") : Long.parseLong(document.getString("pathName").substring(3)));
+                received[index] = now;
+                arrived.countDown();
+            }
+
+            @Override
+            public void onClose() {
+            }
+        }));
+        Connection connection = transport.connect("localhost", port);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        PeerClient client = new PeerClient("localhost", port, connection, new HashSet<>());
+        client.start(scheduler);
+
+        // Warm up, so that the first phase is not slower for reasons of its own
+        events(client, Math.min(events, 100), 0);
+        requests(client, Math.min(requests, 100));
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %12s", "phase", "mean ms", "median ms",
+                "p99 ms", "max ms", "per second"));
+        long started = System.nanoTime();
+        events(client, events, eventInterval);
+        print("events", events, System.nanoTime() - started);
+        started = System.nanoTime();
+        requests(client, requests);
+        print("requests", requests, System.nanoTime() - started);
+        client.close();
+        connection.close();
+    }
+
+    private void begin(int count) {
+        queued = new long[count];
+        received = new long[count];
+        arrived = new CountDownLatch(count);
+    }
+
+    private void await() throws Exception {
+        if (!arrived.await(PHASE_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IOException("messages did not arrive within " + PHASE_TIMEOUT + " seconds");
+        }
+    }
+
+    /**
+     * Queues directory create events, one every interval milliseconds.
+     */
+    private void events(PeerClient client, int count, int interval) throws Exception {
+        begin(count);
+        for (int i = 0; i < count; i++) {
+            FileSystemEvent event = fileSystemManager.new FileSystemEvent(share.getPath(), "dir" + i,
+                    FileSystemManager.EVENT.DIRECTORY_CREATE);
+            queued[i] = System.nanoTime();
+            client.enqueue(event);
+            if (interval > 0) {
+                Thread.sleep(interval);
+            }
+        }
+        await();
+    }
+
+    /**
+     * Queues file bytes requests a window at a time, each window once the one before has arrived.
+     */
+    private void requests(PeerClient client, int count) throws Exception {
+        begin(count);
+        for (int i = 0; i < count; i += window) {
+            List<String> batch = new ArrayList<>();
+            for (int j = i; j < Math.min(count, i + window); j++) {
+                batch.add(Messages.getFileBytesRequest("0", 0L, (long) count, "file", j, 1));
+            }
+            long now = System.nanoTime();
+            for (int j = i; j < i + batch.size(); j++) {
+                queued[j] = now;
+            }
+            client.enqueue(batch);
+            while (arrived.getCount() > count - i - batch.size()) {
+                Thread.sleep(0, 100000);
+            }
+        }
+        await();
+    }
+
+    private void print(String phase, int count, long elapsed) {
+        double[] latencies = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            latencies[i] = (received[i] - queued[i]) / 1e6;
+            total += latencies[i];
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-10s %10.2f %10.2f %10.2f %10.2f %12.1f", phase, total / count,
+                latencies[count / 2], latencies[Math.min(count - 1, count * 99 / 100)], latencies[count - 1],
+                count / (elapsed / 1e9)));
+    }
+
+    private void cleanUp() throws IOException {
+        if (share != null) {
+            Files.walk(share.toPath()).sorted((a, b) -> b.compareTo(a)).map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package unimelb.bitbox.connection;
+
+import unimelb.bitbox.util.Configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A TCP connection to a peer over a non-blocking channel, read and written by an
+ * {@link EventLoop}. Messages are lines of UTF-8 text, as before, until binary framing is
+ * turned on with {@link #setBinary(boolean)}. From then on each message is sent as a frame,
+ * a type byte and a 4 byte length followed by that many bytes, and a message can carry
+ * raw bytes with it, see {@link #send(String, ByteBuffer, Runnable)}, which can also be sent
+ * straight from a file, see {@link #send(String, FileChannel, long, long, Runnable)}. Frames are told apart
+ * from lines by their first byte, which no line starts with, so both are always read.
+ * <br/>
+ * Messages can be sent from any thread, they are queued and written whole, in the order
+ * they were sent, so that messages sent by different threads are never interleaved.
+ * Whatever is queued is written with as few writes as possible, see {@link #send(List, Runnable)}.
+ * Messages received are handed to the connection's {@link Listener} on a worker thread,
+ * one at a time and in the order they were received, since handling them can block on
+ * the file system. Reading stops while too many of them are waiting to be handled.
+ */
+public class Connection implements EventLoop.Handler {
+    private static Logger log = Logger.getLogger(Connection.class.getName());
+
+    /**
+     * Told of what is received on a connection, on a worker thread.
+     */
+    public interface Listener {
+        /**
+         * @param message a message received, without its newline
+         */
+        void onMessage(String message);
+
+        /**
+         * @param message a message received
+         * @param payload the raw bytes that came with the message in a binary frame, or null
+         */
+        default void onMessage(String message, ByteBuffer payload) {
+            onMessage(message);
+        }
+
+        /**
+         * The connection has closed, after every message received has been handled.
+         */
+        void onClose();
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The most buffers that are written to the channel at once.
+     */
+    private static final int GATHER_SIZE = 16;
+
+    /**
+     * Reading stops while this many messages are waiting to be handled, so that a peer that
+     * sends faster than its messages can be handled is held back by TCP.
+     */
+    private static final int MAX_PENDING_MESSAGES = 64;
+
+    /**
+     * A frame holding a message, as UTF-8 text.
+     */
+    private static final byte FRAME_MESSAGE = 1;
+
+    /**
+     * A frame holding a message and raw bytes: the 4 byte length of the message,
+     * the message as UTF-8 text, and then the bytes.
+     */
+    private static final byte FRAME_PAYLOAD = 2;
+
+    private static final int FRAME_HEADER_SIZE = 5;
+
+    /**
+     * The largest frame accepted, anything larger closes the connection. Messages such as
+     * block manifests and directory digests grow with the share, so can be more than a block.
+     */
+    private static final int MAX_FRAME_SIZE = 128 * 1024 * 1024;
+
+    /**
+     * Room in a frame for what is sent with a block, e.g. the rest of a FILE_BYTES_RESPONSE.
+     */
+    private static final int FRAME_HEADER_ROOM = 64 * 1024;
+
+    /**
+     * The most bytes set aside for a frame from its header alone, a block and room for the
+     * message sent with it. Payload frames only ever carry a block so can be no larger, the
+     * body of a larger message frame grows as its bytes actually arrive, see {@link #frameFilled()}.
+     */
+    private static final int MAX_BLOCK_FRAME_SIZE = (int) Math.min(MAX_FRAME_SIZE,
+            Long.parseLong(Configuration.getConfigurationValue("blockSize")) + FRAME_HEADER_ROOM);
+
+    private SocketChannel channel;
+    private EventLoop loop;
+    private Executor workers;
+    private String name;
+
+    // Only used on the loop's thread
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    private byte frameType;
+    private int frameLength;
+    private ByteBuffer frameBody;
+    private boolean readPaused;
+    private boolean closing;
+    private ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];
+
+    private static class Outgoing {
+        private ByteBuffer[] buffers;
+        private Runnable written;
+        /**
+         * Bytes written from a file after the buffers, or null.
+         */
+        private FileChannel file;
+        private long filePosition;
+        private long fileRemaining;
+        /**
+         * Run once the outgoing has been written or dropped, or null.
+         */
+        private Runnable release;
+
+        private Outgoing(Runnable written, ByteBuffer... buffers) {
+            this.buffers = buffers;
+            this.written = written;
+        }
+
+        private boolean isWritten() {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            return fileRemaining == 0;
+        }
+
+        /**
+         * Transfers bytes from the file to the channel, without them being copied into the JVM.
+         * @return true if every byte from the file has been written
+         */
+        private boolean transfer(SocketChannel channel) throws IOException {
+            long count = file.transferTo(filePosition, fileRemaining, channel);
+            if (count == 0 && filePosition >= file.size()) {
+                throw new IOException("file ended before all of its bytes were written");
+            }
+            filePosition += count;
+            fileRemaining -= count;
+            return fileRemaining == 0;
+        }
+
+        private void release() {
+            if (release != null) {
+                release.run();
+            }
+        }
+    }
+
+    private static class Incoming {
+        private String message;
+        private ByteBuffer payload;
+
+        private Incoming(String message, ByteBuffer payload) {
+            this.message = message;
+            this.payload = payload;
+        }
+    }
+
+    private Queue<Outgoing> outbox = new ConcurrentLinkedQueue<>();
+    /**
+     * True while the outbox is being written, or is waiting for the channel to be writable.
+     */
+    private AtomicBoolean flushing = new AtomicBoolean();
+    private Queue<Incoming> inbox = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pending = new AtomicInteger();
+    /**
+     * True while a worker is handing the inbox to the listener.
+     */
+    private AtomicBoolean draining = new AtomicBoolean();
+    private boolean closeDelivered;
+    private volatile Listener listener;
+    private volatile boolean closed;
+    private volatile boolean binary;
+
+    Connection(SocketChannel channel, EventLoop loop, Executor workers) {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.name = String.valueOf(channel.socket().getRemoteSocketAddress());
+        try {
+            // Messages are already sent in batches, waiting for more only delays them
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            log.warning("unable to disable Nagle's algorithm for " + name + ": " + e.getMessage());
+        }
+        loop.execute(this::register);
+    }
+
+    /**
+     * Sets what messages received are handed to. While there is no listener, messages are
+     * held until there is one, e.g. while a handshake is being dealt with.
+     * @param listener the listener, or null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        dispatch();
+    }
+
+    /**
+     * Sets whether messages sent from now on are binary frames, once the peer has
+     * agreed to them. Messages already sent are written as they were.
+     * @param binary true for binary frames, false for lines of text
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @return true if messages are sent as binary frames
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Queues a message to be sent, with a newline appended. Messages sent after the
+     * connection has closed are dropped.
+     * @param message the message
+     */
+    public void send(String message) {
+        send(Collections.singletonList(message), null);
+    }
+
+    /**
+     * Queues messages to be sent together, each with a newline appended, as a single buffer
+     * so that they go out in one write. Messages sent after the connection has closed are dropped.
+     * @param messages the messages
+     * @param written run on the event loop's thread once all of the messages have been
+     *                written to the socket, which must not block, or null
+     */
+    public void send(List<String> messages, Runnable written) {
+        if (closed || messages.isEmpty()) {
+            return;
+        }
+        if (binary) {
+            List<byte[]> encoded = new ArrayList<>(messages.size());
+            int size = 0;
+            for (String message : messages) {
+                byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                size += FRAME_HEADER_SIZE + bytes.length;
+            }
+            ByteBuffer batch = ByteBuffer.allocate(size);
+            for (byte[] bytes : encoded) {
+                batch.put(FRAME_MESSAGE).putInt(bytes.length).put(bytes);
+            }
+            batch.flip();
+            queue(new Outgoing(written, batch));
+            return;
+        }
+        StringBuilder batch = new StringBuilder();
+        for (String message : messages) {
+            batch.append(message).append('\n');
+        }
+        queue(new Outgoing(written, StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch))));
+    }
+
+    /**
+     * Queues a message to be sent with raw bytes, as a single binary frame, which needs
+     * binary framing to be on, see {@link #setBinary(boolean)}. The bytes are written
+     * straight from the buffer given, so it must not be changed until they have been.
+     * Messages sent after the connection has closed are dropped.
+     * @param message the message
+     * @param payload the bytes between the buffer's position and limit
+     * @param written run on the event loop's thread once the frame has been written
+     *                to the socket, which must not block, or null
+     */
+    public void send(String message, ByteBuffer payload, Runnable written) {
+        if (!binary) {
+            throw new IllegalStateException("binary framing is not on for " + name);
+        }
+        if (closed) {
+            return;
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4 + bytes.length);
+        header.put(FRAME_PAYLOAD).putInt(4 + bytes.length + payload.remaining()).putInt(bytes.length).put(bytes);
+        header.flip();
+        queue(new Outgoing(written, header, payload.duplicate()));
+    }
+
+    /**
+     * Queues a message to be sent with raw bytes from a file, as a single binary frame, which
+     * needs binary framing to be on, see {@link #setBinary(boolean)}. The bytes are transferred
+     * from the file to the socket by {@link FileChannel#transferTo}, so that they are not copied
+     * through the JVM's heap. The file must not be changed until they have been.
+     * @param message the message
+     * @param file the file, which is only read with positional transfers
+     * @param position the position in the file of the bytes
+     * @param length the number of bytes
+     * @param release run once the frame has been written to the socket, or once the connection
+     *                has closed without it being written, on any thread, or null
+     */
+    public void send(String message, FileChannel file, long position, long length, Runnable release) {
+        if (!binary) {
+            throw new IllegalStateException("binary framing is not on for " + name);
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4 + bytes.length);
+        header.put(FRAME_PAYLOAD).putInt((int) (4 + bytes.length + length)).putInt(bytes.length).put(bytes);
+        header.flip();
+        Outgoing outgoing = new Outgoing(null, header);
+        outgoing.file = file;
+        outgoing.filePosition = position;
+        outgoing.fileRemaining = length;
+        outgoing.release = release;
+        if (closed) {
+            outgoing.release();
+            return;
+        }
+        queue(outgoing);
+    }
+
+    private void queue(Outgoing outgoing) {
+        outbox.add(outgoing);
+        if (closed) {
+            // The outbox may have been dropped already
+            discard();
+            return;
+        }
+        if (flushing.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Drops everything in the outbox, once the connection has closed.
+     */
+    private void discard() {
+        Outgoing outgoing;
+        while ((outgoing = outbox.poll()) != null) {
+            outgoing.release();
+        }
+    }
+
+    /**
+     * Closes the connection once every message sent so far has been written.
+     */
+    public void close() {
+        loop.execute(() -> {
+            closing = true;
+            if (!flushing.get()) {
+                closeNow();
+            }
+        });
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the remote address of the connection, for logging
+     */
+    public String getName() {
+        return name;
+    }
+
+    private void register() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    @Override
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Something went wrong that should not have, e.g. a written callback threw, so
+     * the connection is closed rather than left in a state it cannot get out of.
+     */
+    @Override
+    public void failed(SelectionKey key, RuntimeException e) {
+        log.severe("closing the connection to " + name + ": " + e);
+        closeNow();
+    }
+
+    private void read() throws IOException {
+        if (frameBody != null && frameBody.remaining() >= READ_BUFFER_SIZE) {
+            // Most of a large frame is read straight into it
+            if (channel.read(frameBody) < 0) {
+                closeNow();
+                return;
+            }
+            if (!frameBody.hasRemaining()) {
+                frameFilled();
+                dispatch();
+            }
+            return;
+        }
+        if (channel.read(readBuffer) < 0) {
+            closeNow();
+            return;
+        }
+        readBuffer.flip();
+        byte[] bytes = readBuffer.array();
+        int i = readBuffer.position();
+        int end = readBuffer.limit();
+        while (i < end) {
+            int count;
+            if (frameBody != null) {
+                count = Math.min(end - i, frameBody.remaining());
+                frameBody.put(bytes, i, count);
+                if (!frameBody.hasRemaining()) {
+                    frameFilled();
+                }
+            } else if (frameHeader.position() > 0 || (line.size() == 0 && isFrameType(bytes[i]))) {
+                count = Math.min(end - i, frameHeader.remaining());
+                frameHeader.put(bytes, i, count);
+                if (!frameHeader.hasRemaining()) {
+                    frameStarted();
+                }
+            } else {
+                int newline = i;
+                while (newline < end && bytes[newline] != '\n') {
+                    newline++;
+                }
+                line.write(bytes, i, newline - i);
+                count = newline - i;
+                if (newline < end) {
+                    received(new String(line.toByteArray(), StandardCharsets.UTF_8), null);
+                    line.reset();
+                    count++;
+                }
+            }
+            i += count;
+        }
+        readBuffer.clear();
+        dispatch();
+    }
+
+    private static boolean isFrameType(byte type) {
+        return type == FRAME_MESSAGE || type == FRAME_PAYLOAD;
+    }
+
+    private void frameStarted() throws IOException {
+        frameHeader.flip();
+        frameType = frameHeader.get();
+        int length = frameHeader.getInt();
+        frameHeader.clear();
+        if (length < 0 || length > (frameType == FRAME_PAYLOAD ? MAX_BLOCK_FRAME_SIZE : MAX_FRAME_SIZE)) {
+            throw new IOException("frame of " + length + " bytes from " + name);
+        }
+        frameLength = length;
+        frameBody = ByteBuffer.allocate(Math.min(length, MAX_BLOCK_FRAME_SIZE));
+        if (length == 0) {
+            frameReceived();
+        }
+    }
+
+    /**
+     * The frame's body is full, which is either the whole frame, or as much of a large
+     * message frame as has been set aside for so far, in which case it is doubled.
+     */
+    private void frameFilled() throws IOException {
+        if (frameBody.position() < frameLength) {
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(2L * frameBody.capacity(), frameLength));
+            frameBody.flip();
+            frameBody = grown.put(frameBody);
+            return;
+        }
+        frameReceived();
+    }
+
+    private void frameReceived() throws IOException {
+        ByteBuffer body = frameBody;
+        frameBody = null;
+        body.flip();
+        if (frameType == FRAME_MESSAGE) {
+            received(new String(body.array(), 0, body.limit(), StandardCharsets.UTF_8), null);
+            return;
+        }
+        int length = body.remaining() >= 4 ? body.getInt() : -1;
+        if (length < 0 || length > body.remaining()) {
+            throw new IOException("malformed frame from " + name);
+        }
+        String message = new String(body.array(), body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        received(message, body.slice());
+    }
+
+    private void received(String message, ByteBuffer payload) {
+        if (message.endsWith("\r")) {
+            message = message.substring(0, message.length() - 1);
+        }
+        inbox.add(new Incoming(message, payload));
+        if (pending.incrementAndGet() >= MAX_PENDING_MESSAGES && !readPaused) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readPaused = true;
+        }
+    }
+
+    private void resumeReading() {
+        if (readPaused && !closed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            readPaused = false;
+        }
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            write();
+        } catch (IOException | CancelledKeyException e) {
+            closeNow();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            failed(key, e);
+        }
+    }
+
+    private void write() throws IOException {
+        while (true) {
+            // Everything queued goes out in as few writes as possible
+            int count;
+            Outgoing outgoing;
+            while ((count = gather()) > 0 || ((outgoing = outbox.peek()) != null && outgoing.fileRemaining > 0)) {
+                boolean partial;
+                if (count > 0) {
+                    channel.write(gather, 0, count);
+                    partial = gather[count - 1].hasRemaining();
+                } else {
+                    // The head of the outbox has only bytes from a file left to write
+                    partial = !outbox.peek().transfer(channel);
+                }
+                while ((outgoing = outbox.peek()) != null && outgoing.isWritten()) {
+                    outbox.poll();
+                    if (outgoing.written != null) {
+                        outgoing.written.run();
+                    }
+                    outgoing.release();
+                }
+                if (partial) {
+                    // The peer is not keeping up, carry on once it is
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushing.set(false);
+            // A message sent since the outbox was found empty may not have scheduled a flush
+            if (outbox.isEmpty() || !flushing.compareAndSet(false, true)) {
+                break;
+            }
+        }
+        if (closing && !flushing.get()) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Fills the gather array with the buffers at the head of the outbox that are yet to be written,
+     * up to the first bytes that are to be transferred from a file.
+     * @return the number of buffers
+     */
+    private int gather() {
+        int count = 0;
+        for (Outgoing outgoing : outbox) {
+            for (ByteBuffer buffer : outgoing.buffers) {
+                if (count == GATHER_SIZE) {
+                    break;
+                }
+                if (buffer.hasRemaining()) {
+                    gather[count++] = buffer;
+                }
+            }
+            if (count == GATHER_SIZE || outgoing.fileRemaining > 0) {
+                break;
+            }
+        }
+        for (int i = count; i < GATHER_SIZE && gather[i] != null; i++) {
+            gather[i] = null;
+        }
+        return count;
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warning("while closing the connection to " + name + ": " + e.getMessage());
+        }
+        discard();
+        dispatch();
+    }
+
+    /**
+     * Has a worker hand the inbox to the listener, unless one already is.
+     */
+    private void dispatch() {
+        if (listener != null && draining.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Listener current;
+            while ((current = listener) != null) {
+                Incoming message = inbox.poll();
+                if (message == null) {
+                    if (closed && !closeDelivered) {
+                        closeDelivered = true;
+                        current.onClose();
+                    }
+                    break;
+                }
+                if (pending.decrementAndGet() == MAX_PENDING_MESSAGES / 2) {
+                    loop.execute(this::resumeReading);
+                }
+                try {
+                    current.onMessage(message.message, message.payload);
+                } catch (RuntimeException e) {
+                    log.severe("unable to handle a message from " + name + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+        // Anything received, or a listener set, while this worker was finishing up
+        if (!inbox.isEmpty() || (closed && !closeDelivered)) {
+            dispatch();
+        }
+    }
+}
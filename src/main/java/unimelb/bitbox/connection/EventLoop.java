@@ -0,0 +1,110 @@
+package unimelb.bitbox.connection;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A single thread that waits on a {@link Selector} for any of the channels registered
+ * with it to be ready, and does the accepting, reading and writing for them.
+ * A channel's selection key is only ever used on the loop's own thread, anything
+ * else that needs doing to it is handed to the loop with {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private static Logger log = Logger.getLogger(EventLoop.class.getName());
+
+    /**
+     * Told when a channel registered with the loop is ready, on the loop's thread.
+     */
+    interface Handler {
+        void ready(SelectionKey key);
+
+        /**
+         * The handler threw while the channel was ready. Only this handler's channel is
+         * affected, the loop carries on with the others.
+         * @param key the selection key of the channel
+         * @param e what was thrown
+         */
+        default void failed(SelectionKey key, RuntimeException e) {
+            log.severe("unable to handle " + key.channel() + ": " + e);
+        }
+    }
+
+    private Selector selector;
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.start();
+    }
+
+    /**
+     * Runs a task on the loop's thread, after anything handed to it before.
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel with the loop's selector, only on the loop's thread.
+     * @param channel a non-blocking channel
+     * @param ops the operations to be told about
+     * @param handler what to tell when the channel is ready
+     * @return the selection key of the channel
+     * @throws ClosedChannelException if the channel is closed
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // A task handed over on this thread would not wake the selector
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                log.severe(thread.getName() + " selector failed, its connections are lost: " + e.getMessage());
+                return;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.ready(key);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        handler.failed(key, e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -2,26 +2,38 @@ package unimelb.bitbox.connection;
 
 import unimelb.bitbox.util.Messages;
 import unimelb.bitbox.controller.PeerConnectionController;
+import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Extensions;
 import unimelb.bitbox.util.HostPort;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 public class PeerConnectionHandler implements Runnable, ClientHandler {
     private static Logger log = Logger.getLogger(PeerConnectionHandler.class.getName());
     private static String[] CONNECTION_COMMANDS = {"HANDSHAKE_REQUEST", "HANDSHAKE_RESPONSE", "CONNECTION_REFUSED"};
 
+    /**
+     * The number of milliseconds to wait for a peer to respond to a handshake request.
+     */
+    private static final long HANDSHAKE_TIMEOUT = 30000;
+
     private int port;
     private String advertisedHost;
     private String mode;
-    private ServerSocket listeningSocket;
+    private Transport transport;
+    private ServerSocketChannel listeningSocket;
     private DatagramSocket listeningSocketUDP;
     private PeerConnectionController controller;
 
@@ -30,7 +42,12 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
         this.advertisedHost = advertisedHost;
         this.mode = mode;
         if (mode.equals("tcp")) {
-            listeningSocket = new ServerSocket(port);
+            String ioThreads = Configuration.getConfigurationValue("ioThreads");
+            String workerThreads = Configuration.getConfigurationValue("workerThreads");
+            transport = new Transport(
+                    ioThreads != null ? Integer.parseInt(ioThreads.trim()) : Transport.DEFAULT_IO_THREADS,
+                    workerThreads != null ? Integer.parseInt(workerThreads.trim()) : Transport.DEFAULT_WORKER_THREADS);
+            listeningSocket = transport.bind(port);
         } else {
             listeningSocketUDP = new DatagramSocket(port);
         }
@@ -52,27 +69,46 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
 
         // Standard TCP handshaking
         if (mode.equals("tcp")) {
+            Connection connection;
             try {
-                // Create client socket, get input and output buffers
-                Socket clientSocket = new Socket(host, port);
-                BufferedReader in =
-                        new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-                BufferedWriter out =
-                        new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
+                connection = transport.connect(host, port);
+            } catch (IOException e) {
+                log.warning("while connecting to " + host + ":" + port + " connection refused");
+                return false;
+            }
+            // Only the response is taken here, anything after it is held for the new peer
+            CompletableFuture<String> response = new CompletableFuture<>();
+            connection.setListener(new Connection.Listener() {
+                @Override
+                public void onMessage(String message) {
+                    connection.setListener(null);
+                    response.complete(message);
+                }
 
+                @Override
+                public void onClose() {
+                    response.completeExceptionally(new EOFException("connection closed"));
+                }
+            });
+            try {
                 // Attempt to perform a handshake with the peer
-                String handshakeRequest = Messages.getHandshakeRequest(host, this.port);
-                send(handshakeRequest, out);
+                String handshakeRequest = Messages.getHandshakeRequest(host, this.port, Extensions.getSupported(),
+                        controller.getJournalPosition());
+                send(handshakeRequest, connection);
                 log.info("sending to " + host + ":" + port + " " + handshakeRequest);
-                String handshakeResponse = in.readLine(); // Blocking receive call
-                Document handshakeResponseJSON = Document.parse(handshakeResponse);
-                try {
-                    handleJSONServerMessage(handshakeResponseJSON, clientSocket, out);
-                } catch (NoSuchAlgorithmException e) {
-                    e.printStackTrace();
-                }
-            } catch (IOException e) {
-                log.warning("while connecting to " + host + ":" + port + " connection refused");
+                Document handshakeResponseJSON = Document.parse(response.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS));
+                handleJSONServerMessage(handshakeResponseJSON, connection);
+            } catch (ExecutionException | IOException e) {
+                log.warning("while connecting to " + host + ":" + port + " connection closed");
+                connection.close();
+            } catch (TimeoutException e) {
+                log.warning("while connecting to " + host + ":" + port + " no handshake response");
+                connection.close();
+            } catch (InterruptedException e) {
+                connection.close();
+                Thread.currentThread().interrupt();
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
             }
         }
         // UDP handshaking
@@ -80,7 +116,8 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
             try {
                 // Client socket does not need an IP address and port number
                 InetAddress serverAddress = InetAddress.getByName(host);
-                String handshakeRequest = Messages.getHandshakeRequest(host, this.port);
+                String handshakeRequest = Messages.getHandshakeRequest(host, this.port, Extensions.getSupported(),
+                        controller.getJournalPosition());
                 byte[] sendData = handshakeRequest.getBytes();
 
                 // Initialise send packet
@@ -104,43 +141,10 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
     @Override
     public void run() {
         // Standard TCP implementation
+        // The transport's event loops accept connections and read handshakes, without blocking
         if (mode.equals("tcp")) {
-            try {
-                while (true) {
-                    // Accept an incoming client connection request (blocking call)
-                    Socket clientSocket = listeningSocket.accept();
-                    BufferedReader in =
-                            new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-                    BufferedWriter out =
-                            new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
-
-                    try {
-                        String clientMessage = in.readLine(); // Blocking receive call
-                        Document clientMessageJSON = Document.parse(clientMessage);
-                        try {
-                            handleJSONClientMessage(clientMessageJSON, clientSocket, out);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        } catch (NoSuchAlgorithmException e) {
-                            e.printStackTrace();
-                        }
-                    } catch (SocketException e) {
-                        e.printStackTrace();
-                        log.warning("peer socket unexpectedly closed");
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (listeningSocket != null) {
-                    try {
-                        listeningSocket.close();
-                        log.info("server listening socket closed");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+            transport.accept(listeningSocket, this::accept);
+            log.info("accepting peer connections on port " + port);
         }
         // Extension UDP implementation
         else {
@@ -160,7 +164,7 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
                         switch (command) {
                             case "HANDSHAKE_REQUEST":
                                 try {
-                                    handleJSONClientMessage(clientMessageJSON, null, null);
+                                    handleJSONClientMessage(clientMessageJSON, null);
                                 } catch (NoSuchAlgorithmException e) {
                                     e.printStackTrace();
                                 }
@@ -168,7 +172,7 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
                             case "HANDSHAKE_RESPONSE":
                             case "CONNECTION_REFUSED":
                                 try {
-                                    handleJSONServerMessage(clientMessageJSON, null, null);
+                                    handleJSONServerMessage(clientMessageJSON, null);
                                 } catch (NoSuchAlgorithmException e) {
                                     e.printStackTrace();
                                 }
@@ -191,7 +195,32 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
         }
     }
 
-    private void handleJSONServerMessage(Document json, Socket socket, BufferedWriter out) throws IOException, NoSuchAlgorithmException {
+    /**
+     * Takes the handshake request of an incoming connection. Anything the peer sends after it
+     * is held until the peer has been added, see {@link Connection#setListener}.
+     * @param connection the incoming connection
+     */
+    private void accept(Connection connection) {
+        connection.setListener(new Connection.Listener() {
+            @Override
+            public void onMessage(String message) {
+                connection.setListener(null);
+                try {
+                    handleJSONClientMessage(Document.parse(message), connection);
+                } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                    e.printStackTrace();
+                    connection.close();
+                }
+            }
+
+            @Override
+            public void onClose() {
+                log.warning("peer socket " + connection.getName() + " closed before its handshake");
+            }
+        });
+    }
+
+    private void handleJSONServerMessage(Document json, Connection connection) throws IOException, NoSuchAlgorithmException {
         String command = json.getString("command");
         Document hostPort = (Document) json.get("hostPort");
         Integer port =  (int) hostPort.getLong("port");
@@ -207,23 +236,39 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
                     if (controller.isPeerConnected(host, port)) {
                         invalidProtocol = Messages.getInvalidProtocol("peer already connected");
                         if (mode.equals("tcp")) {
-                            send(invalidProtocol, out);
+                            send(invalidProtocol, connection);
                             log.info("sending to " + host + ":" + "port " + invalidProtocol);
+                            connection.close();
+                        } else {
+                            send(invalidProtocol, host, port);
+                        }
+                    } else if (!Extensions.isDigestCompatible(json)) {
+                        // The peer hashes files differently, so no file could ever be shared
+                        log.warning("peer " + host + ":" + port + ": " + Extensions.getDigestMismatch(json));
+                        invalidProtocol = Messages.getInvalidProtocol(Extensions.getDigestMismatch(json));
+                        if (mode.equals("tcp")) {
+                            send(invalidProtocol, connection);
+                            log.info("sending to " + host + ":" + "port " + invalidProtocol);
+                            connection.close();
                         } else {
                             send(invalidProtocol, host, port);
                         }
                     } else {
-                        // Start threads for the outgoing connection
+                        // Start the peer for the outgoing connection
                         if (mode.equals("tcp")) {
-                            controller.addOutgoingConnection(host, port, socket);
+                            controller.addOutgoingConnection(host, port, connection, Extensions.negotiate(json));
                         } else {
-                            controller.addOutgoingConnection(host, port, listeningSocketUDP);
+                            controller.addOutgoingConnection(host, port, listeningSocketUDP, Extensions.negotiate(json));
                         }
+                        controller.catchUp(host, port, (Document) json.get("journal"));
                     }
                 }
                 break;
             case "CONNECTION_REFUSED":
                 log.info("received command [" + command + "] from " + host + ":" + port);
+                if (connection != null) {
+                    connection.close();
+                }
                 ArrayList<Document> peers = (ArrayList<Document>) json.get("peers");
                 for (Document peer : peers) {
                     HostPort hp = new HostPort(peer);
@@ -238,13 +283,17 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
                 break;
             case "INVALID_PROTOCOL":
                 log.warning("received command [" + command + "] from " + host + ":" + port);
+                if (connection != null) {
+                    connection.close();
+                }
                 break;
             default:
                 log.warning("received an invalid message from " + host + ":" + port);
                 invalidProtocol = Messages.getInvalidProtocol("expected HANDSHAKE_RESPONSE");
                 if (mode.equals("tcp")) {
-                    send(invalidProtocol, out);
+                    send(invalidProtocol, connection);
                     log.info("sending to " + host + ":" + port + " " + invalidProtocol);
+                    connection.close();
                 } else {
                     send(invalidProtocol, host, port);
                 }
@@ -253,7 +302,7 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
     }
 
 
-    private void handleJSONClientMessage(Document json, Socket clientSocket, BufferedWriter out) throws IOException, NoSuchAlgorithmException {
+    private void handleJSONClientMessage(Document json, Connection connection) throws IOException, NoSuchAlgorithmException {
         String command = json.getString("command");
         Document hostPort = (Document) json.get("hostPort");
         Integer port =  (int) hostPort.getLong("port");
@@ -264,34 +313,50 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
                 log.info("received command [" + command + "] from " + host + ":" + port);
                 // Check message credibility, ensure host field
                 String message;
+                boolean accepted = false;
                 if (host != null && port != null) {
                     if (controller.isPeerConnected(host, port)) {
                         message = Messages.getInvalidProtocol("peer already connected");
+                    } else if (!Extensions.isDigestCompatible(json)) {
+                        log.warning("peer " + host + ":" + port + ": " + Extensions.getDigestMismatch(json));
+                        message = Messages.getInvalidProtocol(Extensions.getDigestMismatch(json));
                     } else if (!controller.canAcceptIncomingConnection()) {
                         List<HostPort> connectedPeers = controller.getConnectedPeers();
                         message = Messages.getConnectionRefused(connectedPeers, "connection limit reached");
                     } else {
-                        message = Messages.getHandshakeResponse(advertisedHost, this.port);
-                        if (mode.equals("tcp")) {
-                            controller.addIncomingConnection(host, port, clientSocket);
-                        } else {
-                            controller.addIncomingConnection(host, port, listeningSocketUDP);
-                        }
+                        message = Messages.getHandshakeResponse(advertisedHost, this.port, Extensions.getSupported(),
+                                controller.getJournalPosition());
+                        accepted = true;
                     }
                     if (mode.equals("tcp")) {
-                        send(message, out);
+                        // The response goes before anything the new peer sends, and
+                        // anything received after it is held until the peer has been added
+                        send(message, connection);
                         log.info("sending to " + host + ":" + port + " " + message);
+                        if (accepted) {
+                            controller.addIncomingConnection(host, port, connection, Extensions.negotiate(json));
+                        } else {
+                            connection.close();
+                        }
                     } else {
+                        if (accepted) {
+                            controller.addIncomingConnection(host, port, listeningSocketUDP, Extensions.negotiate(json));
+                        }
                         send(message, host, port);
                     }
+                    // Only once the response has been sent, so that it comes before anything missed
+                    if (accepted) {
+                        controller.catchUp(host, port, (Document) json.get("journal"));
+                    }
                 }
                 break;
 
             default:
                 message = Messages.getInvalidProtocol("Expected HANDSHAKE_REQUEST");
                 if (mode.equals("tcp")) {
-                    send(message, out);
+                    send(message, connection);
                     log.info("sending to " + host + ":" + port + " " + message);
+                    connection.close();
                 } else {
                     send(message, host, port);
                 }
@@ -318,11 +383,10 @@ public class PeerConnectionHandler implements Runnable, ClientHandler {
      * Sends a request/response string to the connected peer.
      * Appends a newline char to the outgoing message.
      * @param message request or response message
-     * @throws IOException
+     * @param connection the connection to the peer
      */
-    private void send(String message, BufferedWriter out) throws IOException {
-        out.write(message + '\n');
-        out.flush();
+    private void send(String message, Connection connection) {
+        connection.send(message);
     }
 
     /**
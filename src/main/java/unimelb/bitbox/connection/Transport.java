@@ -0,0 +1,115 @@
+package unimelb.bitbox.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * The TCP transport for every peer connection. A small fixed number of {@link EventLoop}s
+ * do all of the accepting, reading and writing, with each connection given to one of them
+ * in turn, and messages received are handled on a fixed pool of worker threads, so that the
+ * number of threads does not grow with the number of peers.
+ */
+public class Transport {
+    private static Logger log = Logger.getLogger(Transport.class.getName());
+
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of milliseconds to wait for a connection to a peer to be established.
+     */
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private EventLoop[] loops;
+    private AtomicInteger nextLoop = new AtomicInteger();
+    private ExecutorService workers;
+
+    /**
+     * @param ioThreads the number of event loop threads
+     * @param workerThreads the number of threads that handle messages received
+     * @throws IOException if a selector could not be opened
+     */
+    public Transport(int ioThreads, int workerThreads) throws IOException {
+        this.loops = new EventLoop[Math.max(ioThreads, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("transport-io-" + i);
+        }
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(workerThreads, 1),
+                task -> new Thread(task, "transport-worker-" + workerCount.getAndIncrement()));
+        log.info("transport started with " + loops.length + " I/O threads and "
+                + Math.max(workerThreads, 1) + " worker threads");
+    }
+
+    /**
+     * Binds a listening socket, which does not accept connections until {@link #accept}.
+     * @param port the port number to listen on
+     * @return the listening socket
+     * @throws IOException if the port could not be bound
+     */
+    public ServerSocketChannel bind(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        return server;
+    }
+
+    /**
+     * Starts accepting connections on a listening socket.
+     * @param server a listening socket from {@link #bind(int)}
+     * @param acceptor given each connection accepted, on an event loop thread, so it must not block
+     */
+    public void accept(ServerSocketChannel server, Consumer<Connection> acceptor) {
+        EventLoop loop = loops[0];
+        loop.execute(() -> {
+            try {
+                loop.register(server, SelectionKey.OP_ACCEPT, key -> acceptAll(server, acceptor));
+            } catch (IOException e) {
+                log.severe("unable to accept connections: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Connects to a peer, blocking until the connection is established.
+     * @param host the host name of the peer
+     * @param port the port number of the peer
+     * @return the connection
+     * @throws IOException if the connection could not be established
+     */
+    public Connection connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Connection(channel, nextLoop(), workers);
+    }
+
+    private void acceptAll(ServerSocketChannel server, Consumer<Connection> acceptor) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                acceptor.accept(new Connection(channel, nextLoop(), workers));
+            }
+        } catch (IOException e) {
+            log.warning("unable to accept a connection: " + e.getMessage());
+        }
+    }
+
+    private EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+}
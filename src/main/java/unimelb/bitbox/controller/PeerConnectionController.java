@@ -1,6 +1,7 @@
 package unimelb.bitbox.controller;
 
 import unimelb.bitbox.Peer;
+import unimelb.bitbox.connection.Connection;
 import unimelb.bitbox.connection.ConnectionObserver;
 import unimelb.bitbox.util.*;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
@@ -9,10 +10,12 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
 // A controller class for already established peer-to-peer connections
@@ -22,6 +25,10 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
 
     private FileSystemManager fileSystemManager;
     private List<Peer> connections;
+    /**
+     * Runs every peer's client, so that the number of threads does not grow with the number of peers.
+     */
+    private ScheduledExecutorService clientScheduler;
     private List<HostPort> incomingConnections;
     private int syncInterval;
     private int maximumIncomingConnections;
@@ -30,8 +37,10 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
 
     public PeerConnectionController() throws NoSuchAlgorithmException, IOException {
         this.fileSystemManager = new FileSystemManager(Configuration.getConfigurationValue("path"),this);
-        this.connections = new ArrayList<>();
+        // Connections are added and removed by the transport's worker threads while others iterate them
+        this.connections = new CopyOnWriteArrayList<>();
         this.incomingConnections = new ArrayList<>();
+        this.clientScheduler = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "peer-clients"));
         this.syncInterval = Integer.parseInt(Configuration.getConfigurationValue("syncInterval"));
         this.maximumIncomingConnections = Integer.parseInt(Configuration.getConfigurationValue("maximumIncommingConnections"));
         this.mode = Configuration.getConfigurationValue("mode");
@@ -60,33 +69,39 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
         }
     }
 
-    public void addIncomingConnection(String host, int port, Socket socket) throws IOException, NoSuchAlgorithmException {
-        addConnection(host, port, socket);
+    public synchronized void addIncomingConnection(String host, int port, Connection connection, Set<String> extensions)
+            throws IOException, NoSuchAlgorithmException {
+        addConnection(host, port, connection, extensions);
         this.incomingConnections.add(new HostPort(host, port));
         this.currentIncomingConnections += 1;
     }
 
-    public void addIncomingConnection(String host, int port, DatagramSocket socket) throws IOException, NoSuchAlgorithmException {
-        addConnection(host, port, socket);
+    public synchronized void addIncomingConnection(String host, int port, DatagramSocket socket, Set<String> extensions)
+            throws IOException, NoSuchAlgorithmException {
+        addConnection(host, port, socket, extensions);
         this.incomingConnections.add(new HostPort(host, port));
         this.currentIncomingConnections += 1;
     }
 
-    public void addOutgoingConnection(String host, int port, Socket socket) throws IOException, NoSuchAlgorithmException {
-        addConnection(host, port, socket);
+    public void addOutgoingConnection(String host, int port, Connection connection, Set<String> extensions)
+            throws IOException, NoSuchAlgorithmException {
+        addConnection(host, port, connection, extensions);
     }
 
-    public void addOutgoingConnection(String host, int port, DatagramSocket socket) throws IOException, NoSuchAlgorithmException {
-        addConnection(host, port, socket);
+    public void addOutgoingConnection(String host, int port, DatagramSocket socket, Set<String> extensions)
+            throws IOException, NoSuchAlgorithmException {
+        addConnection(host, port, socket, extensions);
     }
 
-    private void addConnection(String host, int port, Socket socket) throws IOException, NoSuchAlgorithmException {
-        Peer peer = new Peer(host, port, socket, this);
+    private void addConnection(String host, int port, Connection connection, Set<String> extensions)
+            throws IOException, NoSuchAlgorithmException {
+        Peer peer = new Peer(host, port, connection, this, fileSystemManager, extensions, clientScheduler);
         this.connections.add(peer);
     }
 
-    private void addConnection(String host, int port, DatagramSocket socket) throws IOException, NoSuchAlgorithmException {
-        Peer peer = new Peer(host, port, socket, this);
+    private void addConnection(String host, int port, DatagramSocket socket, Set<String> extensions)
+            throws IOException, NoSuchAlgorithmException {
+        Peer peer = new Peer(host, port, socket, this, fileSystemManager, extensions, clientScheduler);
         this.connections.add(peer);
     }
 
@@ -99,6 +114,29 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
         }
     }
 
+    /**
+     * Returns the position of this peer's journal, for the handshake.
+     * @return the journal position, or null if there is no journal
+     */
+    public Document getJournalPosition() {
+        return fileSystemManager.getJournalPosition();
+    }
+
+    /**
+     * Sends a newly connected peer what it missed while it was not connected,
+     * see {@link Peer#catchUp(Document)}.
+     * @param host peer host name
+     * @param port peer port number
+     * @param journal the journal position in the peer's handshake, or null
+     */
+    public void catchUp(String host, int port, Document journal) {
+        for (Peer pc : new ArrayList<>(connections)) {
+            if (host.equals(pc.getHost()) && port == pc.getPort()) {
+                pc.catchUp(journal);
+            }
+        }
+    }
+
     /**
      * Returns whether or not a peer given by
      * host and port is already connected
@@ -119,7 +157,7 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
      * Returns whether this peer can accept any more incoming connections.
      * @return true or false
      */
-    public boolean canAcceptIncomingConnection() {
+    public synchronized boolean canAcceptIncomingConnection() {
         return this.currentIncomingConnections < this.maximumIncomingConnections;
     }
 
@@ -166,14 +204,24 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
      * Relays file system events generated by the FileSystemManager
      * method generateSyncEvents() to all PeerClient threads,
      * after every 'syncInterval' interval of time (seconds).
+     * Peers that support directory digests are instead asked to compare
+     * them, and only sent what they do not have.
      */
     private void relaySyncEvents() {
-        List<FileSystemEvent> syncEvents = fileSystemManager.generateSyncEvents();
-        log.info("generating sync events: " + syncEvents.size() + " events created");
-        for (Peer pc : connections) {
-            if (pc != null) {
-                pc.onNewSyncEvents(syncEvents);
+        List<FileSystemEvent> syncEvents = null;
+        for (Peer pc : new ArrayList<>(connections)) {
+            if (pc == null) {
+                continue;
+            }
+            if (pc.supports(Extensions.MERKLE)) {
+                pc.sync();
+                continue;
+            }
+            if (syncEvents == null) {
+                syncEvents = fileSystemManager.generateSyncEvents();
+                log.info("generating sync events: " + syncEvents.size() + " events created");
             }
+            pc.onNewSyncEvents(syncEvents);
         }
     }
 
@@ -186,7 +234,7 @@ public class PeerConnectionController implements FileSystemObserver, ConnectionO
      * @param port the peer port number
      */
     @Override
-    public void disconnect(String host, int port) {
+    public synchronized void disconnect(String host, int port) {
         // Update current peers connections list
         Peer disconnect = null;
         for (Peer pc : connections) {
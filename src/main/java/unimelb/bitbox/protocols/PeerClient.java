@@ -1,66 +1,107 @@
 package unimelb.bitbox.protocols;
 
+import unimelb.bitbox.connection.Connection;
 import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Extensions;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.FileSystemManager.FileDescriptor;
 import unimelb.bitbox.util.Messages;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+/**
+ * Sends a single connected peer the requests for file system events, and the messages
+ * that the corresponding PeerServer has queued, such as FILE_BYTES_REQUESTs.
+ * <br/>
+ * Anything queued, from any thread, has the client run on a shared scheduler straight away,
+ * unless it is already running. Each run sends everything queued, events first, in batches
+ * that are each handed to the connection in one go, so that they are written in one flush.
+ * Over UDP, which does not retransmit, the messages queued by the PeerServer are still
+ * sent one every {@link #UDP_MESSAGE_INTERVAL} milliseconds, so as not to overrun the peer.
+ */
 public class PeerClient implements Runnable {
     private static Logger log = Logger.getLogger(PeerClient.class.getName());
 
+    /**
+     * The most messages sent in one batch.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * The milliseconds between messages queued by the PeerServer, over UDP.
+     */
+    private static final long UDP_MESSAGE_INTERVAL = 50;
+
+    /**
+     * A file system event or a message.
+     */
+    private static class Outgoing {
+        private FileSystemEvent event;
+        private String message;
+
+        private Outgoing(FileSystemEvent event, String message) {
+            this.event = event;
+            this.message = message;
+        }
+    }
+
     private String host;
     private int port;
-    private Queue<FileSystemEvent> events;
-    private Queue<String> messages;
+    private Queue<Outgoing> events = new ConcurrentLinkedQueue<>();
+    private Queue<Outgoing> messages = new ConcurrentLinkedQueue<>();
+    /**
+     * True while the client is waiting to run or running.
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean();
+    private ScheduledExecutorService scheduler;
     private DatagramSocket socket;
-    private BufferedWriter out;
-    private boolean closed;
+    private Connection connection;
+    private volatile boolean closed;
     private String mode;
+    private Set<String> extensions;
 
     // TCP PeerClient constructor
-    public PeerClient(String host, int port, Socket socket) throws IOException {
+    public PeerClient(String host, int port, Connection connection, Set<String> extensions) {
         this.host = host;
         this.port = port;
-        this.events = new LinkedList<>();
-        this.messages = new LinkedList<>();
-        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.connection = connection;
         this.closed = false;
         this.mode = Configuration.getConfigurationValue("mode");
+        this.extensions = extensions;
     }
 
 
     // UDP PeerClient constructor
-    public PeerClient(String host, int port, DatagramSocket socket) {
+    public PeerClient(String host, int port, DatagramSocket socket, Set<String> extensions) {
         this.host = host;
         this.port = port;
         this.socket = socket;
-        this.events = new LinkedList<>();
-        this.messages = new LinkedList<>();
         this.closed = false;
         this.mode = Configuration.getConfigurationValue("mode");
+        this.extensions = extensions;
     }
 
 
     /**
-     * Handles an outgoing reply to the client,
+     * Gets the outgoing request to the client,
      * generated by a new file system event.
      * @param fileSystemEvent the file system event
-     * @throws IOException
+     * @return the request, or null if the event has none
      */
-    private void handleOutgoingClientMessage(FileSystemEvent fileSystemEvent) throws IOException {
+    private String getOutgoingClientMessage(FileSystemEvent fileSystemEvent) {
         String command = fileSystemEvent.event.name();
         FileDescriptor fileDescriptor = fileSystemEvent.fileDescriptor;
         String pathName = fileSystemEvent.pathName;
@@ -70,20 +111,22 @@ public class PeerClient implements Runnable {
         Long lastModified = null;
         Long fileSize = null;
 
-        // Construct and send outgoing request
-        String request;
+        // Construct outgoing request
+        String request = null;
         switch (command) {
             case "DIRECTORY_CREATE":
                 request = Messages.getDirectoryCreateRequest(pathName);
-                send(request);
                 break;
             case "DIRECTORY_DELETE":
                 request = Messages.getDirectoryDeleteRequest(pathName);
-                send(request);
+                break;
+            case "DIRECTORY_MOVE":
+                request = Messages.getDirectoryMoveRequest(pathName, fileSystemEvent.oldPathName);
                 break;
             case "FILE_CREATE":
             case "FILE_DELETE":
             case "FILE_MODIFY":
+            case "FILE_MOVE":
                 assert(fileDescriptor != null);
                 md5 = fileDescriptor.md5;
                 lastModified = fileDescriptor.lastModified;
@@ -91,15 +134,16 @@ public class PeerClient implements Runnable {
                 switch (command) {
                     case "FILE_CREATE":
                         request = Messages.getFileCreateRequest(md5, lastModified, fileSize, pathName);
-                        send(request);
                         break;
                     case "FILE_DELETE":
                         request = Messages.getFileDeleteRequest(md5, lastModified, fileSize, pathName);
-                        send(request);
                         break;
                     case "FILE_MODIFY":
                         request = Messages.getFileModifyRequest(md5, lastModified, fileSize, pathName);
-                        send(request);
+                        break;
+                    case "FILE_MOVE":
+                        request = Messages.getFileMoveRequest(md5, lastModified, fileSize, pathName,
+                                fileSystemEvent.oldPathName);
                         break;
                     default:
                         break;
@@ -109,82 +153,146 @@ public class PeerClient implements Runnable {
                 log.warning("Invalid command arose from file system event");
                 break;
         }
+        return request != null ? withSequence(request, fileSystemEvent) : null;
+    }
+
+    /**
+     * Adds the event's journal sequence number to its request, if the peer keeps track of them.
+     * @param request the request for the event
+     * @param fileSystemEvent the file system event
+     * @return the request to send
+     */
+    private String withSequence(String request, FileSystemEvent fileSystemEvent) {
+        if (fileSystemEvent.sequence == 0 || !extensions.contains(Extensions.JOURNAL)) {
+            return request;
+        }
+        Document document = Document.parse(request);
+        document.append("sequence", fileSystemEvent.sequence);
+        return document.toJson();
+    }
+
+    /**
+     * Starts running the client on a scheduler shared with other peers' clients, whenever
+     * anything is queued, until it is closed.
+     * @param scheduler the scheduler
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        schedule();
     }
 
     public void close() {
+        if (this.closed) {
+            return;
+        }
         this.closed = true;
+        this.events.clear();
+        this.messages.clear();
+        log.info("Connection to " + host + ":" + port + " has been terminated, PeerClient has stopped");
     }
 
     public void enqueue(FileSystemEvent event) {
-        this.events.add(event);
+        this.events.add(new Outgoing(event, null));
+        schedule();
     }
 
     public void enqueue(List<String> messages) {
-        this.messages.addAll(messages);
+        for (String message : messages) {
+            this.messages.add(new Outgoing(null, message));
+        }
+        schedule();
+    }
+
+    /**
+     * Has the client run, unless it is not started, closed, or already going to run.
+     */
+    private void schedule() {
+        if (scheduler != null && !closed && (!events.isEmpty() || !messages.isEmpty())
+                && scheduled.compareAndSet(false, true)) {
+            scheduler.execute(this);
+        }
     }
 
     /**
-     * Responsible for handling outgoing requests generated
-     * by general file system events to a single connected peer,
-     * until that connection is closed. Also generates
-     * and sends sync events after every syncInterval period.
+     * Responsible for sending everything queued for a single connected
+     * peer, see {@link #start}.
      */
     @Override
     public void run() {
-
-        while (!closed) {
-            try {
-                // Need to sleep to ensure file system events
-                // are actually processed. If we don't then
-                // for some reason they aren't processed.
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            // Process general file system events, relay them
-            // as outgoing messages to connected peers
-            FileSystemEvent event;
-            try {
-                while ((event = this.events.poll()) != null) {
-                    handleOutgoingClientMessage(event);
+        boolean paced = !mode.equals("tcp");
+        boolean paused = false;
+        try {
+            List<String> batch = new ArrayList<>();
+            boolean messageSent = false;
+            while (!closed) {
+                batch.clear();
+                Outgoing next;
+                // Process general file system events, relay them
+                // as outgoing requests to the connected peer
+                while (batch.size() < MAX_BATCH && (next = this.events.poll()) != null) {
+                    String request = getOutgoingClientMessage(next.event);
+                    if (request != null) {
+                        add(batch, request);
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            // Process enqueued messages to be sent to the connected
-            // peer. These are typically FILE_BYTE_REQUEST messages,
-            // which allows the corresponding PeerServer thread to
-            // not block, by having to send out all requests in one go.
-            String message;
-            try {
-                if ((message = this.messages.poll()) != null) {
-                    send(message);
+                // Process enqueued messages to be sent to the connected
+                // peer. These are typically FILE_BYTES_REQUEST messages.
+                while (batch.size() < MAX_BATCH && !paused && (next = this.messages.peek()) != null) {
+                    if (paced && messageSent) {
+                        paused = true;
+                        break;
+                    }
+                    // Only this thread takes from the queue
+                    this.messages.poll();
+                    add(batch, next.message);
+                    messageSent = true;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                try {
+                    send(batch);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+        } catch (RuntimeException e) {
+            // Otherwise the client would never run again
+            e.printStackTrace();
+            paused = false;
         }
-        log.info("Connection to " + host + ":" + port + " has been terminated, PeerClient thread has stopped");
+        if (paused && !closed) {
+            // Still scheduled, so nothing else runs the client in the meantime
+            scheduler.schedule(this, UDP_MESSAGE_INTERVAL, TimeUnit.MILLISECONDS);
+            return;
+        }
+        scheduled.set(false);
+        // Anything queued while the client was finishing
+        schedule();
+    }
+
+    private void add(List<String> batch, String message) {
+        log.info("sending to " + host + ":" + port + " " + message);
+        batch.add(message);
     }
 
     /**
-     * Sends a request/response string to the connected peer.
-     * Appends a newline char to the outgoing message.
-     * @param message request or response message
+     * Sends a batch of request/response strings to the connected peer.
+     * Over TCP they are written in one flush, with a newline char appended
+     * to each, over UDP each is a packet of its own.
+     * @param batch request or response messages
      * @throws IOException
      */
-    private void send(String message) throws IOException {
-        log.info("sending to " + host + ":" + port + " " + message);
+    private void send(List<String> batch) throws IOException {
         if (mode.equals("tcp")) {
-            out.write(message + '\n');
-            out.flush();
+            connection.send(batch, null);
         } else {
             InetAddress address = InetAddress.getByName(host);
-            byte[] sendData = message.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, port);
-            socket.send(sendPacket);
+            for (String message : batch) {
+                byte[] sendData = message.getBytes();
+                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, port);
+                socket.send(sendPacket);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package unimelb.bitbox.protocols;
 
+import unimelb.bitbox.connection.Connection;
 import unimelb.bitbox.connection.ConnectionObserver;
 import unimelb.bitbox.util.*;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
@@ -8,48 +9,71 @@ import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
-public class PeerServer implements FileSystemObserver, Runnable {
+public class PeerServer implements FileSystemObserver, Connection.Listener {
     private static Logger log = Logger.getLogger(PeerServer.class.getName());
 
-    private static FileSystemManager fileSystemManager;
+    private FileSystemManager fileSystemManager;
     private PeerClient client;
     private ConnectionObserver observer;
     private String host;
     private int port;
     private DatagramSocket socket;
-    private BufferedReader in;
-    private BufferedWriter out;
+    private Connection connection;
     private long blockSize;
     private String mode;
+    private Set<String> extensions;
+    /**
+     * The id of the peer's journal, once known, whose sequence numbers are recorded as they are seen.
+     */
+    private volatile String remoteJournal;
+    /**
+     * The pathname and hash of the file that each of the peer's requests started loading, by the
+     * request's sequence number, until the file has loaded, see {@link #updateJournalSeen(Document)}.
+     */
+    private TreeMap<Long, String[]> loadingSequences = new TreeMap<>();
+    private long lastSequence;
+    /**
+     * The old pathname, hash and last modified time of each file that the peer moved, but
+     * that is being loaded at its new pathname instead, by the new pathname, until the file
+     * has loaded, see {@link #deleteMovedFiles(Document)}.
+     */
+    private Map<String, String[]> movedFiles = new HashMap<>();
+    private RemoteState remoteState = new RemoteState();
+    private TransferWindow transferWindow;
 
     /**
      * TCP PeerServer constructor
      * @param client the corresponding peer client thread object
      * @param host the peer host name
      * @param port the peer port number
-     * @param socket the peer socket
+     * @param connection the connection to the peer
+     * @param fileSystemManager the file system manager for the share directory
+     * @param extensions the protocol extensions negotiated with the peer
      * @throws NoSuchAlgorithmException
      * @throws IOException
      */
-    public PeerServer(PeerClient client, String host, int port, Socket socket, ConnectionObserver observer)
+    public PeerServer(PeerClient client, String host, int port, Connection connection, ConnectionObserver observer,
+                      FileSystemManager fileSystemManager, Set<String> extensions)
             throws NoSuchAlgorithmException, IOException {
-        if (fileSystemManager == null) {
-            fileSystemManager = new FileSystemManager(Configuration.getConfigurationValue("path"), this);
-        }
+        this.fileSystemManager = fileSystemManager;
+        this.extensions = extensions;
         this.client = client;
         this.host = host;
         this.port = port;
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.connection = connection;
         this.observer = observer;
         this.mode = Configuration.getConfigurationValue("mode");
         if (this.mode.equals("tcp")) {
@@ -57,14 +81,15 @@ public class PeerServer implements FileSystemObserver, Runnable {
         } else {
             this.blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), 8192);
         }
+        this.transferWindow = new TransferWindow(host, port, client, fileSystemManager, blockSize);
     }
 
     // UDP PeerServer constructor
-    public PeerServer(PeerClient client, String host, int port, DatagramSocket socket, ConnectionObserver observer)
+    public PeerServer(PeerClient client, String host, int port, DatagramSocket socket, ConnectionObserver observer,
+                      FileSystemManager fileSystemManager, Set<String> extensions)
             throws NoSuchAlgorithmException, IOException {
-        if (fileSystemManager == null) {
-            fileSystemManager = new FileSystemManager(Configuration.getConfigurationValue("path"), this);
-        }
+        this.fileSystemManager = fileSystemManager;
+        this.extensions = extensions;
         this.client = client;
         this.host = host;
         this.port = port;
@@ -76,6 +101,22 @@ public class PeerServer implements FileSystemObserver, Runnable {
         } else {
             this.blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), 8192);
         }
+        this.transferWindow = new TransferWindow(host, port, client, fileSystemManager, blockSize);
+    }
+
+    /**
+     * Starts timing out the file bytes requests made to the peer, see {@link TransferWindow}.
+     * @param scheduler the scheduler shared with other peers
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        transferWindow.start(scheduler);
+    }
+
+    /**
+     * Stops fetching files from the peer, once the connection has closed.
+     */
+    public void close() {
+        transferWindow.close();
     }
 
     @Override
@@ -84,41 +125,44 @@ public class PeerServer implements FileSystemObserver, Runnable {
     }
 
     /**
-     * Responsible for handling incoming requests from
-     * a single peer, until that connection is closed.
+     * Handles an incoming request from the peer over TCP, one at a time
+     * and in the order they were received, see {@link Connection}.
+     * @param clientMessage the request
      */
     @Override
-    public void run() {
-        if (mode.equals("tcp")) {
-            // Read any incoming request from the input buffer.
-            // This blocks until an incoming message is received.
-            String clientMessage;
-            try {
-                while ((clientMessage = in.readLine()) != null) {
-                    // Parse the request into a JSON object
-                    Document clientMessageJSON = Document.parse(clientMessage);
-
-                    // Handle the incoming request
-                    try {
-                        handleIncomingClientMessage(clientMessageJSON);
-                    } catch (NoSuchAlgorithmException | IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            } catch (IOException e) {
-                observer.disconnect(host, port);
-                log.info("Connection to " + host + ":" + port + " has been terminated, PeerServer thread has stopped");
-                // Terminate the PeerClient thread as well
-                this.client.close();
-            }
-            observer.disconnect(host, port);
-            log.info("Connection to " + host + ":" + port + " has been terminated, PeerServer thread has stopped");
+    public void onMessage(String clientMessage) {
+        onMessage(clientMessage, null);
+    }
 
-            // Terminate the PeerClient thread as well
-            this.client.close();
+    /**
+     * Handles an incoming message from the peer over TCP, with the raw bytes that
+     * came with it in a binary frame, see {@link Extensions#BINARY}.
+     * @param clientMessage the message
+     * @param payload the raw bytes, or null
+     */
+    @Override
+    public void onMessage(String clientMessage, ByteBuffer payload) {
+        // Parse the request into a JSON object
+        Document clientMessageJSON = Document.parse(clientMessage);
+
+        // Handle the incoming request
+        try {
+            handleIncomingClientMessage(clientMessageJSON, payload);
+        } catch (NoSuchAlgorithmException | IOException e) {
+            e.printStackTrace();
         }
     }
 
+    @Override
+    public void onClose() {
+        observer.disconnect(host, port);
+        close();
+        log.info("Connection to " + host + ":" + port + " has been terminated, PeerServer has stopped");
+
+        // Stop the PeerClient as well
+        this.client.close();
+    }
+
     /**
      * Handles an incoming client message, sends a response.
      * @param clientMessage incoming client message in JSON
@@ -126,8 +170,21 @@ public class PeerServer implements FileSystemObserver, Runnable {
      * @throws IOException
      */
     public void handleIncomingClientMessage(Document clientMessage) throws NoSuchAlgorithmException, IOException {
+        handleIncomingClientMessage(clientMessage, null);
+    }
+
+    /**
+     * Handles an incoming client message, sends a response.
+     * @param clientMessage incoming client message in JSON
+     * @param payload the raw file bytes of a FILE_BYTES_RESPONSE in binary framing, or null
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public void handleIncomingClientMessage(Document clientMessage, ByteBuffer payload)
+            throws NoSuchAlgorithmException, IOException {
         String command = clientMessage.getString("command");
         String response;
+        remoteState.learn(clientMessage);
         switch (command) {
             case "DIRECTORY_CREATE_REQUEST":
                 sendDirectoryCreateResponse(clientMessage);
@@ -144,9 +201,27 @@ public class PeerServer implements FileSystemObserver, Runnable {
             case "FILE_MODIFY_REQUEST":
                 sendFileModifyResponse(clientMessage);
                 break;
+            case "FILE_MOVE_REQUEST":
+                sendFileMoveResponse(clientMessage);
+                break;
+            case "DIRECTORY_MOVE_REQUEST":
+                sendDirectoryMoveResponse(clientMessage);
+                break;
             case "FILE_BYTES_REQUEST":
                 sendFileBytesResponse(clientMessage);
                 break;
+            case "FILE_MANIFEST_REQUEST":
+                sendFileManifestResponse(clientMessage);
+                break;
+            case "FILE_DELTA_REQUEST":
+                sendFileDeltaResponse(clientMessage);
+                break;
+            case "FILE_CHUNKS_REQUEST":
+                sendFileChunksResponse(clientMessage);
+                break;
+            case "DIRECTORY_DIGEST_REQUEST":
+                sendDirectoryDigestResponse(clientMessage);
+                break;
             case "DIRECTORY_CREATE_RESPONSE":
                 processDirectoryCreateResponse(clientMessage);
                 break;
@@ -162,8 +237,24 @@ public class PeerServer implements FileSystemObserver, Runnable {
             case "FILE_MODIFY_RESPONSE":
                 processFileModifyResponse(clientMessage);
                 break;
+            case "FILE_MOVE_RESPONSE":
+            case "DIRECTORY_MOVE_RESPONSE":
+                processMoveResponse(clientMessage);
+                break;
             case "FILE_BYTES_RESPONSE":
-                processFileBytesResponse(clientMessage);
+                processFileBytesResponse(clientMessage, payload);
+                break;
+            case "FILE_MANIFEST_RESPONSE":
+                processFileManifestResponse(clientMessage);
+                break;
+            case "FILE_DELTA_RESPONSE":
+                processFileDeltaResponse(clientMessage);
+                break;
+            case "FILE_CHUNKS_RESPONSE":
+                processFileChunksResponse(clientMessage);
+                break;
+            case "DIRECTORY_DIGEST_RESPONSE":
+                processDirectoryDigestResponse(clientMessage);
                 break;
             case "INVALID_PROTOCOL":
                 processInvalidProtocol(clientMessage);
@@ -174,6 +265,109 @@ public class PeerServer implements FileSystemObserver, Runnable {
                 send(response);
                 break;
         }
+        deleteMovedFiles(clientMessage);
+        updateJournalSeen(clientMessage);
+    }
+
+    /**
+     * Deletes the old pathname of each file that the peer moved, once the file has loaded at
+     * its new pathname, as long as it still has the moved content, see
+     * {@link #sendFileMoveResponse(Document)}. Loaded files are looked for in the index, so
+     * whether they have loaded is checked again with each message received. A later request
+     * for either pathname replaces the move.
+     * @param clientMessage the message that has just been handled
+     */
+    private synchronized void deleteMovedFiles(Document clientMessage) {
+        if (movedFiles.isEmpty()) {
+            return;
+        }
+        switch (clientMessage.getString("command")) {
+            case "FILE_CREATE_REQUEST":
+            case "FILE_MODIFY_REQUEST":
+            case "FILE_DELETE_REQUEST":
+                String pathName = clientMessage.getString("pathName");
+                movedFiles.entrySet().removeIf(moved -> moved.getKey().equals(pathName)
+                        || moved.getValue()[0].equals(pathName));
+                break;
+            default:
+                break;
+        }
+        movedFiles.entrySet().removeIf(moved -> {
+            String pathName = moved.getKey();
+            String[] old = moved.getValue();
+            if (fileSystemManager.getMissingRanges(pathName) != null) {
+                return false;
+            }
+            if (fileSystemManager.fileNameExists(pathName, old[1]) && fileSystemManager.fileNameExists(old[0], old[1])) {
+                fileSystemManager.deleteFile(old[0], Long.parseLong(old[2]), old[1]);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Records the sequence numbers of the peer's requests as seen, see {@link Extensions#JOURNAL}.
+     * A request that started loading a file is only seen once the file has loaded, or a later
+     * request for the same pathname has replaced it, and nothing after it is seen until then,
+     * so that if the connection is lost in the meantime the peer sends it again on reconnecting.
+     * Loaded files are looked for in the index, so whether they have loaded is checked again
+     * with each message received.
+     * @param clientMessage the message that has just been handled
+     */
+    private synchronized void updateJournalSeen(Document clientMessage) {
+        String journal = remoteJournal;
+        if (journal == null) {
+            return;
+        }
+        if (clientMessage.containsKey("sequence")) {
+            long sequence = clientMessage.getLong("sequence");
+            String pathName = clientMessage.getString("pathName");
+            String oldPathName = clientMessage.getString("oldPathName");
+            loadingSequences.values().removeIf(file -> file[0].equals(pathName) || file[0].equals(oldPathName));
+            if (startedLoading(clientMessage)) {
+                Document fileDescriptor = (Document) clientMessage.get("fileDescriptor");
+                loadingSequences.put(sequence, new String[]{pathName, fileDescriptor.getString("md5")});
+            }
+            lastSequence = Math.max(lastSequence, sequence);
+        } else if (loadingSequences.isEmpty()) {
+            return;
+        }
+        loadingSequences.values().removeIf(file -> fileSystemManager.getMissingRanges(file[0]) == null
+                && fileSystemManager.fileNameExists(file[0], file[1]));
+        long seen = loadingSequences.isEmpty() ? lastSequence : loadingSequences.firstKey() - 1;
+        if (seen > 0) {
+            fileSystemManager.setJournalSeen(journal, seen);
+        }
+    }
+
+    /**
+     * @return true if the request has left a file loader for its pathname
+     */
+    private boolean startedLoading(Document clientMessage) {
+        switch (clientMessage.getString("command")) {
+            case "FILE_CREATE_REQUEST":
+            case "FILE_MODIFY_REQUEST":
+            case "FILE_MOVE_REQUEST":
+                return fileSystemManager.getMissingRanges(clientMessage.getString("pathName")) != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return what is known to be in the peer's share directory
+     */
+    public RemoteState getRemoteState() {
+        return remoteState;
+    }
+
+    /**
+     * Sets the id of the peer's journal, so that the sequence numbers of
+     * its requests are recorded as seen, see {@link Extensions#JOURNAL}.
+     * @param journalId the id of the peer's journal
+     */
+    public void setRemoteJournal(String journalId) {
+        this.remoteJournal = journalId;
     }
 
     /**
@@ -184,7 +378,7 @@ public class PeerServer implements FileSystemObserver, Runnable {
         String pathName = request.getString("pathName");
         String message;
         boolean status;
-        if (fileSystemManager.fileNameExists(pathName)) {
+        if (fileSystemManager.dirNameExists(pathName) || fileSystemManager.fileNameExists(pathName)) {
             message = "pathname already exists";
             status = false;
         } else if (!fileSystemManager.isSafePathName(pathName)) {
@@ -211,7 +405,7 @@ public class PeerServer implements FileSystemObserver, Runnable {
         if (!fileSystemManager.isSafePathName(pathName)) {
             message = "unsafe pathname given";
             status = false;
-        } else if (!fileSystemManager.fileNameExists(pathName)) {
+        } else if (!fileSystemManager.dirNameExists(pathName)) {
             message = "pathname does not exist";
             status = false;
         } else {
@@ -257,11 +451,7 @@ public class PeerServer implements FileSystemObserver, Runnable {
         // If file create request was successful
         // then attempt to get the modified file
         if (status) {
-            // Check if we can use a local copy
-            if (!fileSystemManager.checkShortcut(pathName)) {
-                // Otherwise, start requesting file bytes
-                sendFileBytesRequests(pathName, md5, lastModified, fileSize);
-            }
+            fetchFile(pathName, md5, lastModified, fileSize, false);
         }
     }
 
@@ -315,7 +505,7 @@ public class PeerServer implements FileSystemObserver, Runnable {
             message = "file already exists with matching contents";
             status = false;
         } else {
-            status = fileSystemManager.modifyFileLoader(pathName, md5, lastModified);
+            status = fileSystemManager.modifyFileLoader(pathName, md5, fileSize, lastModified);
             message = status ? "file loader ready" : "there was a problem modifying the file";
         }
         // Send the response
@@ -325,12 +515,119 @@ public class PeerServer implements FileSystemObserver, Runnable {
         // If file modify request was successful
         // then attempt to get the modified file
         if (status) {
-            // Check if we can use a local copy
-            if (!fileSystemManager.checkShortcut(pathName)) {
-                // Otherwise, start requesting file bytes
-                sendFileBytesRequests(pathName, md5, lastModified, fileSize);
+            fetchFile(pathName, md5, lastModified, fileSize, true);
+        }
+    }
+
+    /**
+     * Fills the file loader for a pathname, from a local copy if there is one, otherwise
+     * from the peer, reusing what is already here of the file if it can.
+     * @param modified true if the loader replaces a file already at the pathname
+     */
+    private void fetchFile(String pathName, String md5, long lastModified, long fileSize, boolean modified)
+            throws NoSuchAlgorithmException, IOException {
+        // Check if we can use a local copy
+        if (!fileSystemManager.checkShortcut(pathName)) {
+            // Otherwise, only request the parts that changed if we can
+            if (modified && extensions.contains(Extensions.DELTA) && fileSize > blockSize) {
+                sendFileDeltaRequest(pathName, md5, lastModified, fileSize);
+            } else if (useChunks(fileSize)) {
+                // or reuse any chunks of it we already have
+                sendFileChunksRequest(pathName, md5, lastModified, fileSize);
+            } else {
+                requestFile(pathName, md5, lastModified, fileSize);
+            }
+        }
+    }
+
+    /**
+     * Send a response to the client's request for moving a file. If the file to move
+     * isn't here, or there is already something else at the new pathname, the file is
+     * loaded at the new pathname instead, as it would be for a create or modify request.
+     * The old pathname is only deleted if it has the moved content, and not until the
+     * file has loaded, since it may be the local copy the file is loaded from, see
+     * {@link #deleteMovedFiles(Document)}.
+     * @param request a file move request in JSON
+     */
+    private void sendFileMoveResponse(Document request) throws NoSuchAlgorithmException, IOException {
+        String pathName = request.getString("pathName");
+        String oldPathName = request.getString("oldPathName");
+        Document fileDescriptor = (Document) request.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+
+        String message;
+        boolean status;
+        // Set if the file is loaded at the new pathname instead of being moved
+        Boolean modified = null;
+        if (!fileSystemManager.isSafePathName(pathName) || !fileSystemManager.isSafePathName(oldPathName)) {
+            message = "unsafe pathname given";
+            status = false;
+        } else if (fileSystemManager.fileNameExists(pathName, md5)) {
+            // Otherwise the old file would be sent back by the next sync
+            transferWindow.cancel(oldPathName);
+            fileSystemManager.cancelFileLoader(oldPathName);
+            if (fileSystemManager.fileNameExists(oldPathName, md5)) {
+                fileSystemManager.deleteFile(oldPathName, lastModified, md5);
+            }
+            message = "file already exists with matching contents";
+            status = false;
+        } else if (fileSystemManager.moveFile(oldPathName, pathName, md5)) {
+            message = "file moved";
+            status = true;
+        } else {
+            // The peer no longer has the old pathname, so nothing more of it can be fetched
+            transferWindow.cancel(oldPathName);
+            fileSystemManager.cancelFileLoader(oldPathName);
+            modified = fileSystemManager.fileNameExists(pathName);
+            if (modified) {
+                status = fileSystemManager.modifyFileLoader(pathName, md5, fileSize, lastModified);
+            } else {
+                status = fileSystemManager.createFileLoader(pathName, md5, fileSize, lastModified);
+            }
+            message = status ? "unable to move the file, file loader ready"
+                    : "unable to move the file, there was a problem loading it";
+        }
+        String response = Messages.getFileMoveResponse(md5, lastModified, fileSize, pathName, oldPathName, message, status);
+        send(response);
+
+        if (modified != null && status) {
+            synchronized (this) {
+                movedFiles.put(pathName, new String[]{oldPathName, md5, Long.toString(lastModified)});
             }
+            fetchFile(pathName, md5, lastModified, fileSize, modified);
+        }
+    }
+
+    /**
+     * Send a response to the client's request for moving a directory. If the directory
+     * can't be moved nothing is changed, and the client sends the move as separate
+     * events instead, see {@link #processMoveResponse(Document)}.
+     * @param request a directory move request in JSON
+     */
+    private void sendDirectoryMoveResponse(Document request) throws IOException {
+        String pathName = request.getString("pathName");
+        String oldPathName = request.getString("oldPathName");
+        String message;
+        boolean status;
+        if (!fileSystemManager.isSafePathName(pathName) || !fileSystemManager.isSafePathName(oldPathName)) {
+            message = "unsafe pathname given";
+            status = false;
+        } else if (fileSystemManager.dirNameExists(pathName) || fileSystemManager.fileNameExists(pathName)) {
+            message = "pathname already exists";
+            status = false;
+        } else if (fileSystemManager.dirNameExists(oldPathName)
+                && fileSystemManager.moveDirectory(oldPathName, pathName)) {
+            message = "directory moved";
+            status = true;
+        } else {
+            // e.g. something in it is still loading
+            message = "unable to move the directory";
+            status = false;
         }
+        String response = Messages.getDirectoryMoveResponse(pathName, oldPathName, message, status);
+        send(response);
     }
 
     /**
@@ -349,6 +646,22 @@ public class PeerServer implements FileSystemObserver, Runnable {
         String message;
         boolean status;
 
+        // In binary framing the bytes go straight from the file to the socket
+        if (connection != null && connection.isBinary()) {
+            FileSystemManager.FileRegion region = fileSystemManager.openFileRegion(md5, position, length);
+            status = region != null;
+            message = status ? "successful read" : "unsuccessful read";
+            String header = Messages.getFileBytesResponseHeader(md5, lastModified, fileSize, pathName, position,
+                    length, message, status);
+            log.info("sending to " + host + ":" + port + " " + header);
+            if (status) {
+                connection.send(header, region.getChannel(), region.getPosition(), region.getLength(), region::close);
+            } else {
+                connection.send(header, ByteBuffer.allocate(0), null);
+            }
+            return;
+        }
+
         // Try to read the file
         ByteBuffer buffer = fileSystemManager.readFile(md5, position, length);
         if (buffer != null) {
@@ -362,9 +675,10 @@ public class PeerServer implements FileSystemObserver, Runnable {
         // If read was successful, encode content
         String content;
         if (status) {
-            // Encode the file bytes in base 64
-            byte[] encodedBuffer = Base64.getEncoder().encode(buffer.array());
-            content = new String(encodedBuffer, StandardCharsets.UTF_8);
+            // Encode the file bytes in base 64, straight from the buffer
+            // since it may be a read only slice of a mapped file
+            ByteBuffer encodedBuffer = Base64.getEncoder().encode(buffer);
+            content = new String(encodedBuffer.array(), 0, encodedBuffer.limit(), StandardCharsets.UTF_8);
         } else {
             content = "";
         }
@@ -374,10 +688,14 @@ public class PeerServer implements FileSystemObserver, Runnable {
     }
 
     /**
-     * Processes a server's file bytes response.
+     * Processes a server's file bytes response. Responses that are not expected,
+     * e.g. the first response to a request that was made again after it seemed
+     * lost, are ignored, see {@link TransferWindow}.
      * @param response a file bytes response in JSON
+     * @param payload the file bytes, if they came raw rather than Base64 encoded in the response, or null
      */
-    private void processFileBytesResponse(Document response) throws NoSuchAlgorithmException, IOException {
+    private void processFileBytesResponse(Document response, ByteBuffer payload)
+            throws NoSuchAlgorithmException, IOException {
         String command = response.getString("command");
         String pathName = response.getString("pathName");
         long position = response.getLong("position");
@@ -385,18 +703,48 @@ public class PeerServer implements FileSystemObserver, Runnable {
         String message = response.getString("message");
         log.info("received [" + command + "] from " + host +  ":" + port);
 
+        if (!transferWindow.isExpected(pathName, position)) {
+            log.info("ignoring unexpected " + command + " for " + pathName + " at position " + position);
+            return;
+        }
         if (!status) {
+            transferWindow.cancel(pathName);
             fileSystemManager.cancelFileLoader(pathName);
             log.warning("failed to receive remote file " + pathName);
         } else {
-            String content = response.getString("content");
-            byte[] decodedBytes = Base64.getDecoder().decode(content);
-            ByteBuffer decodedByteBuffer = ByteBuffer.wrap(decodedBytes);
+            ByteBuffer decodedByteBuffer = payload;
+            if (decodedByteBuffer == null) {
+                String content = response.getString("content");
+                decodedByteBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(content));
+            }
 
-            boolean success = fileSystemManager.writeFile(pathName, decodedByteBuffer, position);
+            boolean success;
+            try {
+                success = fileSystemManager.writeFile(pathName, decodedByteBuffer, position);
+            } catch (BlockVerificationException e) {
+                // The block arrived corrupted, ask for just that block again
+                log.warning(e.getMessage());
+                transferWindow.retry(pathName, position);
+                return;
+            } catch (IOException e) {
+                // The request times out and is made again
+                log.warning("failed to receive remote file " + pathName + ": " + e.getMessage());
+                return;
+            }
             if (success) {
-                fileSystemManager.checkWriteComplete(pathName);
+                transferWindow.written(pathName, position);
+                if (!fileSystemManager.checkWriteComplete(pathName)) {
+                    // Everything was written but the file does not match, e.g. because
+                    // a part copied from the existing file had changed in the meantime
+                    List<long[]> missingRanges = fileSystemManager.getMissingRanges(pathName);
+                    if (missingRanges != null && missingRanges.isEmpty()) {
+                        transferWindow.cancel(pathName);
+                        fileSystemManager.cancelFileLoader(pathName);
+                        log.warning("received file " + pathName + " did not match");
+                    }
+                }
             } else {
+                transferWindow.cancel(pathName);
                 log.warning("failed to write to file " + pathName);
                 return;
             }
@@ -405,44 +753,424 @@ public class PeerServer implements FileSystemObserver, Runnable {
     }
 
     /**
-     * Enqueues all the file byte request messages for a given file 'pathName'
-     * and its size 'fileSize' into the PeerClient outgoing messages queue. Note
-     * that this method does not actually send any file bytes requests itself.
+     * Starts fetching the blocks of a file 'pathName' of size 'fileSize' through
+     * the transfer window, which enqueues the file bytes request messages into the
+     * PeerClient outgoing messages queue as it has room for them. Note that this
+     * method does not actually send any file bytes requests itself.
+     * Only the ranges that the file loader is missing are requested, since a
+     * loader for an earlier, interrupted transfer may have been resumed.
      * @param pathName the path to the file
      * @param md5 the MD5 hash of the file
-     * @param fileSize the size of the file
      * @param lastModified the last modified time of the file
      * @param fileSize the size of the file
      */
-    private void sendFileBytesRequests(String pathName, String md5, long lastModified, long fileSize) {
-        List<String> fileBytesRequests = new ArrayList<>();
-        long position = 0;
+    private void sendFileBytesRequests(String pathName, String md5, long lastModified, long fileSize)
+            throws NoSuchAlgorithmException, IOException {
+        List<long[]> fileBytesRequests = new ArrayList<>();
+        long position;
         long length;
 
         // Special case: empty file
         if (fileSize == 0) {
-            String fileBytesRequest =
-                    Messages.getFileBytesRequest(md5, lastModified, fileSize, pathName, 0, 0);
-            fileBytesRequests.add(fileBytesRequest);
-            this.client.enqueue(fileBytesRequests);
+            fileBytesRequests.add(new long[]{0, 0});
+            transferWindow.fetch(pathName, md5, lastModified, fileSize, fileBytesRequests);
+            return;
+        }
+
+        List<long[]> missingRanges = fileSystemManager.getMissingRanges(pathName);
+        if (missingRanges == null) {
+            return;
+        }
+        // Special case: a resumed transfer that had already received everything
+        if (missingRanges.isEmpty()) {
+            if (!fileSystemManager.checkWriteComplete(pathName)) {
+                transferWindow.cancel(pathName);
+                fileSystemManager.cancelFileLoader(pathName);
+                log.warning("resumed file " + pathName + " did not match, will try again from the start");
+            }
+            return;
+        }
+
+        // Requests blocks of size 'blockSize' bytes, aligned to multiples of
+        // 'blockSize' so each one lines up with a block of the file's manifest
+        for (long[] range : missingRanges) {
+            position = range[0];
+            long end = range[0] + range[1];
+            while (position < end) {
+                length = Math.min(blockSize - position % blockSize, end - position);
+                fileBytesRequests.add(new long[]{position, length});
+                position += length;
+            }
+        }
+        transferWindow.fetch(pathName, md5, lastModified, fileSize, fileBytesRequests);
+    }
+
+    /**
+     * Starts fetching a file that a file loader is ready for. If the peer
+     * supports block manifests, and the file spans more than one block, the
+     * manifest is requested first so that each block can be verified on
+     * arrival, otherwise file bytes are requested straight away.
+     * @param pathName the path to the file
+     * @param md5 the MD5 hash of the file
+     * @param lastModified the last modified time of the file
+     * @param fileSize the size of the file
+     */
+    private void requestFile(String pathName, String md5, long lastModified, long fileSize)
+            throws NoSuchAlgorithmException, IOException {
+        if (extensions.contains(Extensions.BLOCK_MANIFEST) && fileSize > blockSize) {
+            String fileManifestRequest =
+                    Messages.getFileManifestRequest(md5, lastModified, fileSize, pathName, blockSize);
+            List<String> requests = new ArrayList<>();
+            requests.add(fileManifestRequest);
+            this.client.enqueue(requests);
+        } else {
+            sendFileBytesRequests(pathName, md5, lastModified, fileSize);
+        }
+    }
+
+    /**
+     * Send a response to the client's request for a file's block manifest.
+     * @param request a file manifest request in JSON
+     */
+    private void sendFileManifestResponse(Document request) throws IOException, NoSuchAlgorithmException {
+        String pathName = request.getString("pathName");
+        Document fileDescriptor = (Document) request.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+        long requestedBlockSize = request.getLong("blockSize");
+
+        String message;
+        boolean status;
+        ArrayList<String> blocks = null;
+        if (requestedBlockSize <= 0) {
+            message = "invalid block size";
+            status = false;
+        } else {
+            blocks = fileSystemManager.getBlockManifest(md5, requestedBlockSize);
+            status = blocks != null;
+            message = status ? "manifest computed" : "there was a problem computing the manifest";
+        }
+        if (!status) {
+            blocks = new ArrayList<>();
+        }
+        String response = Messages.getFileManifestResponse(md5, lastModified, fileSize, pathName,
+                requestedBlockSize, blocks, message, status);
+        send(response);
+    }
+
+    /**
+     * Processes a server's file manifest response, and starts requesting
+     * file bytes. Without a usable manifest the file bytes are simply
+     * requested unverified, and the whole file hash is checked at the end.
+     * @param response a file manifest response in JSON
+     */
+    @SuppressWarnings("unchecked")
+    private void processFileManifestResponse(Document response) throws NoSuchAlgorithmException, IOException {
+        String command = response.getString("command");
+        String pathName = response.getString("pathName");
+        Document fileDescriptor = (Document) response.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+        boolean status = response.getBoolean("status");
+        String message = response.getString("message");
+        log.info("received [" + command + "] from " + host +  ":" + port);
+
+        if (status) {
+            ArrayList<String> blocks = (ArrayList<String>) response.get("blocks");
+            if (blocks == null) {
+                log.warning("manifest for " + pathName + " has no blocks");
+            } else if (!fileSystemManager.setBlockManifest(pathName, response.getLong("blockSize"), blocks)) {
+                log.warning("could not use the manifest for " + pathName);
+            }
+        } else {
+            log.warning(command + " " + message);
+        }
+        sendFileBytesRequests(pathName, md5, lastModified, fileSize);
+    }
+
+    /**
+     * Enqueues a file delta request, with the checksums of the blocks of the
+     * existing file, so that the peer can say which parts of the new file
+     * are already here. If the checksums cannot be computed then the file
+     * is requested in full instead.
+     * @param pathName the path to the file
+     * @param md5 the MD5 hash of the new file
+     * @param lastModified the last modified time of the new file
+     * @param fileSize the size of the new file
+     */
+    private void sendFileDeltaRequest(String pathName, String md5, long lastModified, long fileSize)
+            throws NoSuchAlgorithmException, IOException {
+        long deltaBlockSize = FileSystemManager.getDeltaBlockSize(fileSize);
+        ArrayList<String> checksums = fileSystemManager.getBlockChecksums(pathName, deltaBlockSize);
+        if (checksums == null || checksums.isEmpty()) {
+            requestFile(pathName, md5, lastModified, fileSize);
             return;
         }
+        String fileDeltaRequest =
+                Messages.getFileDeltaRequest(md5, lastModified, fileSize, pathName, deltaBlockSize, checksums);
+        List<String> requests = new ArrayList<>();
+        requests.add(fileDeltaRequest);
+        this.client.enqueue(requests);
+    }
 
-        // Requests blocks of size 'blockSize' bytes
-        for (int i = 0; i < fileSize / blockSize; i++) {
-            length = blockSize;
-            String fileBytesRequest =
-                    Messages.getFileBytesRequest(md5, lastModified, fileSize, pathName, position, length);
-            fileBytesRequests.add(fileBytesRequest);
-            position += blockSize;
+    /**
+     * Send a response to the client's request for the parts of a file that
+     * it already has, given the checksums of the blocks of its existing file.
+     * @param request a file delta request in JSON
+     */
+    @SuppressWarnings("unchecked")
+    private void sendFileDeltaResponse(Document request) throws IOException, NoSuchAlgorithmException {
+        String pathName = request.getString("pathName");
+        Document fileDescriptor = (Document) request.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+        long deltaBlockSize = request.getLong("blockSize");
+        ArrayList<String> checksums = (ArrayList<String>) request.get("checksums");
+
+        ArrayList<long[]> found = null;
+        if (checksums != null) {
+            found = fileSystemManager.getDeltaCopies(md5, deltaBlockSize, checksums);
+        }
+        String message;
+        boolean status = found != null;
+        ArrayList<Document> copies = new ArrayList<>();
+        if (status) {
+            long reused = 0;
+            for (long[] copy : found) {
+                Document doc = new Document();
+                doc.append("position", copy[0]);
+                doc.append("length", copy[1]);
+                doc.append("source", copy[2]);
+                copies.add(doc);
+                reused += copy[1];
+            }
+            message = reused + " of " + fileSize + " bytes found";
+        } else {
+            message = "there was a problem finding the blocks";
         }
-        // Request last block, which may be smaller than 'blockSize'
-        if ((length = fileSize % blockSize) > 0) {
-            String fileBytesRequest =
-                    Messages.getFileBytesRequest(md5, lastModified, fileSize, pathName, position, length);
-            fileBytesRequests.add(fileBytesRequest);
+        String response = Messages.getFileDeltaResponse(md5, lastModified, fileSize, pathName, copies, message, status);
+        send(response);
+    }
+
+    /**
+     * Processes a server's file delta response, by copying the parts of the
+     * existing file that are in the new file, and then requesting the rest.
+     * @param response a file delta response in JSON
+     */
+    @SuppressWarnings("unchecked")
+    private void processFileDeltaResponse(Document response) throws NoSuchAlgorithmException, IOException {
+        String command = response.getString("command");
+        String pathName = response.getString("pathName");
+        Document fileDescriptor = (Document) response.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+        boolean status = response.getBoolean("status");
+        String message = response.getString("message");
+        log.info("received [" + command + "] from " + host +  ":" + port);
+
+        if (status) {
+            log.info(command + " " + message);
+            List<long[]> copies = new ArrayList<>();
+            for (Document copy : (ArrayList<Document>) response.get("copies")) {
+                copies.add(new long[]{copy.getLong("position"), copy.getLong("length"), copy.getLong("source")});
+            }
+            try {
+                if (!fileSystemManager.applyDeltaCopies(pathName, copies)) {
+                    log.warning("could not copy the unchanged parts of " + pathName);
+                }
+            } catch (IOException e) {
+                log.warning("failed to copy the unchanged parts of " + pathName + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            log.warning(command + " " + message);
+        }
+        requestFile(pathName, md5, lastModified, fileSize);
+    }
+
+    /**
+     * Returns whether a file should be fetched by its chunks, which is only
+     * worth doing for files large enough to have been split into chunks.
+     * @param fileSize the size of the file
+     * @return true or false
+     */
+    private boolean useChunks(long fileSize) {
+        return extensions.contains(Extensions.CHUNKS) && fileSize >= FileSystemManager.CHUNK_MIN_FILE_SIZE;
+    }
+
+    /**
+     * Enqueues a file chunks request, asking the peer how the file is split
+     * into chunks, so that the chunks we already have can be copied.
+     * @param pathName the path to the file
+     * @param md5 the MD5 hash of the file
+     * @param lastModified the last modified time of the file
+     * @param fileSize the size of the file
+     */
+    private void sendFileChunksRequest(String pathName, String md5, long lastModified, long fileSize) {
+        String fileChunksRequest = Messages.getFileChunksRequest(md5, lastModified, fileSize, pathName);
+        List<String> requests = new ArrayList<>();
+        requests.add(fileChunksRequest);
+        this.client.enqueue(requests);
+    }
+
+    /**
+     * Send a response to the client's request for the chunks of a file.
+     * @param request a file chunks request in JSON
+     */
+    private void sendFileChunksResponse(Document request) throws IOException, NoSuchAlgorithmException {
+        String pathName = request.getString("pathName");
+        Document fileDescriptor = (Document) request.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+
+        ArrayList<String> chunks = fileSystemManager.getChunks(md5);
+        boolean status = chunks != null;
+        String message = status ? chunks.size() + " chunks" : "there was a problem chunking the file";
+        if (!status) {
+            chunks = new ArrayList<>();
+        }
+        String response = Messages.getFileChunksResponse(md5, lastModified, fileSize, pathName, chunks, message, status);
+        send(response);
+    }
+
+    /**
+     * Processes a server's file chunks response, by copying the chunks that
+     * are already in the share, and then requesting the rest.
+     * @param response a file chunks response in JSON
+     */
+    @SuppressWarnings("unchecked")
+    private void processFileChunksResponse(Document response) throws NoSuchAlgorithmException, IOException {
+        String command = response.getString("command");
+        String pathName = response.getString("pathName");
+        Document fileDescriptor = (Document) response.get("fileDescriptor");
+        String md5 = fileDescriptor.getString("md5");
+        long lastModified = fileDescriptor.getLong("lastModified");
+        long fileSize = fileDescriptor.getLong("fileSize");
+        boolean status = response.getBoolean("status");
+        String message = response.getString("message");
+        log.info("received [" + command + "] from " + host +  ":" + port);
+
+        if (status) {
+            List<String> chunks = (ArrayList<String>) response.get("chunks");
+            try {
+                long copied = fileSystemManager.applyChunks(pathName, chunks);
+                if (copied < 0) {
+                    log.warning("could not use the chunks of " + pathName);
+                } else {
+                    log.info("reused " + copied + " of " + fileSize + " bytes of " + pathName);
+                }
+            } catch (IOException e) {
+                log.warning("failed to copy the chunks of " + pathName + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            log.warning(command + " " + message);
+        }
+        requestFile(pathName, md5, lastModified, fileSize);
+    }
+
+    /**
+     * Starts syncing the share with the peer, by sending the digest of the share directory.
+     * Only the directories whose digests differ are then listed and compared, and only
+     * what the peer does not have is sent to it.
+     */
+    public void sync() {
+        requestDirectoryDigest("");
+    }
+
+    private void requestDirectoryDigest(String pathName) {
+        String digest = fileSystemManager.getDirectoryDigest(pathName);
+        if (digest == null) {
+            // deleted since the peer listed it
+            return;
+        }
+        List<String> requests = new ArrayList<>();
+        requests.add(Messages.getDirectoryDigestRequest(pathName, digest));
+        this.client.enqueue(requests);
+    }
+
+    /**
+     * Send a response to the client's request for comparing a directory. If the directory
+     * here has a different digest, everything in it is listed with its hash or digest.
+     * @param request a directory digest request in JSON
+     */
+    private void sendDirectoryDigestResponse(Document request) throws IOException {
+        String pathName = request.getString("pathName");
+        String digest = request.getString("digest");
+        ArrayList<Document> files = new ArrayList<>();
+        ArrayList<Document> directories = new ArrayList<>();
+        String message;
+        boolean status;
+        FileSystemManager.DirectoryListing listing = null;
+        if (!pathName.isEmpty() && !fileSystemManager.isSafePathName(pathName)) {
+            message = "unsafe pathname given";
+            status = false;
+        } else if ((listing = fileSystemManager.getDirectoryListing(pathName)) == null) {
+            message = "directory does not exist";
+            status = false;
+        } else if (listing.digest.equals(digest)) {
+            message = "directory is in sync";
+            status = true;
+        } else {
+            for (Map.Entry<String, String> entry : listing.files.entrySet()) {
+                Document file = new Document();
+                file.append("name", entry.getKey());
+                file.append("md5", entry.getValue());
+                files.add(file);
+            }
+            for (Map.Entry<String, String> entry : listing.directories.entrySet()) {
+                Document directory = new Document();
+                directory.append("name", entry.getKey());
+                directory.append("digest", entry.getValue());
+                directories.add(directory);
+            }
+            message = "directory differs";
+            status = false;
+        }
+        String response = Messages.getDirectoryDigestResponse(pathName, listing != null ? listing.digest : null,
+                files, directories, message, status);
+        send(response);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processDirectoryDigestResponse(Document response) {
+        String command = response.getString("command");
+        String pathName = response.getString("pathName");
+        boolean status = response.getBoolean("status");
+        String message = response.getString("message");
+        log.info("received [" + command + "] from " + host +  ":" + port);
+        if (status) {
+            log.info(command + " " + message);
+            return;
+        }
+        String digest = response.getString("digest");
+        if (digest == null) {
+            // the peer doesn't have the directory, it is created when its parent is compared
+            log.warning(command + " " + message);
+            return;
+        }
+        FileSystemManager.DirectoryListing listing = new FileSystemManager.DirectoryListing(digest);
+        for (Document file : (ArrayList<Document>) response.get("files")) {
+            listing.files.put(file.getString("name"), file.getString("md5"));
+        }
+        for (Document directory : (ArrayList<Document>) response.get("directories")) {
+            listing.directories.put(directory.getString("name"), directory.getString("digest"));
+        }
+        List<String> differing = new ArrayList<>();
+        List<FileSystemEvent> syncEvents = fileSystemManager.generateSyncEvents(pathName, listing, differing);
+        log.info(command + " " + pathName + ": " + syncEvents.size() + " sync events, "
+                + differing.size() + " directories to compare");
+        for (FileSystemEvent event : syncEvents) {
+            this.client.enqueue(event);
+        }
+        for (String directory : differing) {
+            requestDirectoryDigest(directory);
         }
-        this.client.enqueue(fileBytesRequests);
     }
 
     private void processDirectoryCreateResponse(Document response) {
@@ -505,6 +1233,32 @@ public class PeerServer implements FileSystemObserver, Runnable {
         }
     }
 
+    /**
+     * Processes a server's file or directory move response. A directory that the peer
+     * could not move is created there under its new pathname and deleted from its old one
+     * with separate events instead, so that its old contents are not left behind.
+     * @param response a file or directory move response in JSON
+     */
+    private void processMoveResponse(Document response) {
+        String command = response.getString("command");
+        boolean status = response.getBoolean("status");
+        String message = response.getString("message");
+        log.info("received [" + command + "] from " + host +  ":" + port);
+        if (status) {
+            log.info(command + " " + message);
+        } else {
+            log.warning(command + " " + message);
+            String pathName = response.getString("pathName");
+            String oldPathName = response.getString("oldPathName");
+            if (command.equals("DIRECTORY_MOVE_RESPONSE") && fileSystemManager.isSafePathName(pathName)
+                    && fileSystemManager.isSafePathName(oldPathName) && fileSystemManager.dirNameExists(pathName)) {
+                for (FileSystemEvent event : fileSystemManager.expandDirectoryMove(pathName, oldPathName)) {
+                    this.client.enqueue(event);
+                }
+            }
+        }
+    }
+
     private void processInvalidProtocol(Document response) {
         String command = response.getString("command");
         String message = response.getString("message");
@@ -521,8 +1275,7 @@ public class PeerServer implements FileSystemObserver, Runnable {
     private void send(String message) throws IOException {
         log.info("sending to " + host + ":" + port + " " + message);
         if (mode.equals("tcp")) {
-            out.write(message + '\n');
-            out.flush();
+            connection.send(message);
         } else {
             InetAddress address = InetAddress.getByName(host);
             byte[] sendData = message.getBytes();
@@ -0,0 +1,157 @@
+package unimelb.bitbox.protocols;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * What is known to be in a connected peer's share directory, learned from the peer's
+ * requests, which it makes for what is in its share, and from its responses to this peer's
+ * requests, which say what it already has. Used to leave out of a sync what the peer is known
+ * to have already.
+ * <br/>
+ * Only what the peer has said it has is known, not what it was asked to load, since a file
+ * loader can fail. Once the peer has loaded a file it makes its own request for it.
+ */
+public class RemoteState {
+    /**
+     * The hash of each file the peer has, by pathname, or null if the peer has
+     * a file with that pathname but its content is not known.
+     */
+    private Map<String, String> files = new HashMap<>();
+    private HashSet<String> directories = new HashSet<>();
+
+    /**
+     * Learns from a request made by the peer, or from the peer's response to a request.
+     * @param message a message received from the peer
+     */
+    public synchronized void learn(Document message) {
+        String command = message.getString("command");
+        String pathName = message.getString("pathName");
+        if (command == null || pathName == null) {
+            return;
+        }
+        String md5 = null;
+        if (message.get("fileDescriptor") instanceof Document) {
+            md5 = ((Document) message.get("fileDescriptor")).getString("md5");
+        }
+        String responseMessage = message.getString("message");
+        boolean status = message.containsKey("status") && message.getBoolean("status");
+        switch (command) {
+            case "DIRECTORY_CREATE_REQUEST":
+                directories.add(pathName);
+                break;
+            case "DIRECTORY_DELETE_REQUEST":
+                removeDirectory(pathName);
+                break;
+            case "FILE_CREATE_REQUEST":
+            case "FILE_MODIFY_REQUEST":
+                files.put(pathName, md5);
+                break;
+            case "FILE_DELETE_REQUEST":
+                files.remove(pathName);
+                break;
+            case "FILE_MOVE_REQUEST":
+                files.remove(message.getString("oldPathName"));
+                files.put(pathName, md5);
+                break;
+            case "DIRECTORY_MOVE_REQUEST":
+                moveDirectory(message.getString("oldPathName"), pathName);
+                break;
+            case "DIRECTORY_CREATE_RESPONSE":
+                if (status || "pathname already exists".equals(responseMessage)) {
+                    directories.add(pathName);
+                }
+                break;
+            case "DIRECTORY_DELETE_RESPONSE":
+                if (status || "pathname does not exist".equals(responseMessage)) {
+                    removeDirectory(pathName);
+                }
+                break;
+            case "FILE_CREATE_RESPONSE":
+                if ("pathname already exists".equals(responseMessage) && !files.containsKey(pathName)) {
+                    files.put(pathName, null);
+                }
+                break;
+            case "FILE_MODIFY_RESPONSE":
+                if ("file already exists with matching contents".equals(responseMessage)) {
+                    files.put(pathName, md5);
+                }
+                break;
+            case "FILE_DELETE_RESPONSE":
+                if (status || "pathname does not exist".equals(responseMessage)) {
+                    files.remove(pathName);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param event a sync event, see {@link FileSystemManager#generateSyncEvents()}
+     * @return true if the peer is known to have what the event would create, so that
+     * sending it would have no effect
+     */
+    public synchronized boolean satisfies(FileSystemEvent event) {
+        switch (event.event) {
+            case FILE_CREATE:
+                // an existing file is never replaced by a create
+                return files.containsKey(event.pathName);
+            case DIRECTORY_CREATE:
+                return directories.contains(event.pathName);
+            default:
+                return false;
+        }
+    }
+
+    private void removeDirectory(String pathName) {
+        directories.remove(pathName);
+        directories.removeIf(directory -> isUnder(directory, pathName));
+        files.keySet().removeIf(file -> isUnder(file, pathName));
+    }
+
+    private void moveDirectory(String oldPathName, String pathName) {
+        if (oldPathName == null) {
+            return;
+        }
+        directories.remove(oldPathName);
+        directories.add(pathName);
+        ArrayList<String> moved = new ArrayList<>();
+        for (Iterator<String> it = directories.iterator(); it.hasNext(); ) {
+            String directory = it.next();
+            if (isUnder(directory, oldPathName)) {
+                it.remove();
+                moved.add(pathName + directory.substring(oldPathName.length()));
+            }
+        }
+        directories.addAll(moved);
+        Map<String, String> movedFiles = new HashMap<>();
+        for (Iterator<Map.Entry<String, String>> it = files.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> file = it.next();
+            if (isUnder(file.getKey(), oldPathName)) {
+                it.remove();
+                movedFiles.put(pathName + file.getKey().substring(oldPathName.length()), file.getValue());
+            }
+        }
+        files.putAll(movedFiles);
+    }
+
+    /**
+     * @return true if the pathname is inside the directory, with either separator,
+     * since the peer may not use the same one
+     */
+    private static boolean isUnder(String pathName, String directory) {
+        if (pathName.length() <= directory.length() || !pathName.startsWith(directory)) {
+            return false;
+        }
+        char separator = pathName.charAt(directory.length());
+        return separator == '/' || separator == '\\';
+    }
+}
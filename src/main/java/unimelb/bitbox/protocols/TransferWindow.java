@@ -0,0 +1,365 @@
+package unimelb.bitbox.protocols;
+
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.Messages;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Flow control for the FILE_BYTES_REQUESTs made to one peer. Each file being fetched has a
+ * window of bytes that may have been requested without a response yet, and its next block is
+ * only requested as a response is written, so that a slow peer is not sent more requests than
+ * it can answer, and a fast one is kept busy.
+ * <br/>
+ * The window is twice the bandwidth-delay product of the transfer: the highest rate at which
+ * responses have recently been delivered, times the lowest recent round trip time. Starting
+ * from {@link #INITIAL_WINDOW_BLOCKS} blocks, it doubles each round trip for as long as the
+ * delivery rate keeps up, and stops growing once it does not.
+ * <br/>
+ * A request that has no response within the retransmission timeout, worked out from the round
+ * trip times as TCP does, is made again, and the transfer's rate is halved. After
+ * {@link #MAX_ATTEMPTS} attempts the file loader is cancelled.
+ */
+public class TransferWindow {
+    private static Logger log = Logger.getLogger(TransferWindow.class.getName());
+
+    public static final int INITIAL_WINDOW_BLOCKS = 4;
+    public static final int MIN_WINDOW_BLOCKS = 2;
+    public static final long MAX_WINDOW = 64L * 1024 * 1024;
+
+    /**
+     * The most bytes that may be requested without a response from the peer, over all transfers.
+     */
+    public static final long MAX_IN_FLIGHT = 128L * 1024 * 1024;
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final double WINDOW_GAIN = 2;
+    private static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(15);
+    private static final long MIN_RTO = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(120);
+
+    /**
+     * The lowest round trip time is forgotten after this long, in case the route has changed.
+     */
+    private static final long MIN_RTT_EXPIRY = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The highest delivery rate is forgotten after this many round trips, in case the link has slowed.
+     */
+    private static final int RATE_EXPIRY_RTTS = 10;
+
+    private static final long TIMER_INTERVAL = 250;
+
+    private static class Request {
+        private long position;
+        private long length;
+        private long sent;
+        private int attempts;
+        /**
+         * The bytes of the transfer delivered when the request was made.
+         */
+        private long deliveredAtSend;
+    }
+
+    private static class Transfer {
+        private String pathName;
+        private String md5;
+        private long lastModified;
+        private long fileSize;
+        private ArrayDeque<long[]> pending = new ArrayDeque<>();
+        private LinkedHashMap<Long, Request> inFlight = new LinkedHashMap<>();
+        private long inFlightBytes;
+        private long delivered;
+        private long started = System.nanoTime();
+        /**
+         * The highest recent delivery rate, in bytes per nanosecond, or 0 before the first response.
+         */
+        private double rate;
+        private long rateStamp;
+    }
+
+    private String host;
+    private int port;
+    private PeerClient client;
+    private FileSystemManager fileSystemManager;
+    private long blockSize;
+    private LinkedHashMap<String, Transfer> transfers = new LinkedHashMap<>();
+    private long inFlightBytes;
+    private ScheduledFuture<?> timer;
+
+    // Round trip times of the peer, in nanoseconds
+    private long srtt;
+    private long rttvar;
+    private long minRtt;
+    private long minRttStamp;
+
+    /**
+     * @param host the peer host name
+     * @param port the peer port number
+     * @param client where requests are queued to be sent to the peer
+     * @param fileSystemManager the file system manager, whose file loaders are fetched into
+     * @param blockSize the size of the blocks requested
+     */
+    public TransferWindow(String host, int port, PeerClient client, FileSystemManager fileSystemManager,
+                          long blockSize) {
+        this.host = host;
+        this.port = port;
+        this.client = client;
+        this.fileSystemManager = fileSystemManager;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Starts checking for requests that have had no response, on a scheduler shared with other peers.
+     * @param scheduler the scheduler
+     */
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        timer = scheduler.scheduleWithFixedDelay(this::checkTimeouts, TIMER_INTERVAL, TIMER_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops every transfer, once the connection to the peer has closed.
+     */
+    public synchronized void close() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        transfers.clear();
+        inFlightBytes = 0;
+    }
+
+    /**
+     * Starts fetching a file, in place of any transfer of the same file already going.
+     * @param pathName the path to the file
+     * @param md5 the MD5 hash of the file
+     * @param lastModified the last modified time of the file
+     * @param fileSize the size of the file
+     * @param requests the position and length of each block to request, in order
+     */
+    public synchronized void fetch(String pathName, String md5, long lastModified, long fileSize,
+                                   List<long[]> requests) {
+        cancel(pathName);
+        Transfer transfer = new Transfer();
+        transfer.pathName = pathName;
+        transfer.md5 = md5;
+        transfer.lastModified = lastModified;
+        transfer.fileSize = fileSize;
+        transfer.pending.addAll(requests);
+        transfers.put(pathName, transfer);
+        pump();
+    }
+
+    /**
+     * @return true if the block at the position has been requested and has had no response
+     * yet, otherwise a response for it is a duplicate, or is for a transfer that has stopped
+     */
+    public synchronized boolean isExpected(String pathName, long position) {
+        Transfer transfer = transfers.get(pathName);
+        return transfer != null && transfer.inFlight.containsKey(position);
+    }
+
+    /**
+     * A response has been written to the file loader, so the window moves on,
+     * and more blocks are requested if it has room for them.
+     * @param pathName the path to the file
+     * @param position the position of the block in the response
+     */
+    public synchronized void written(String pathName, long position) {
+        Transfer transfer = transfers.get(pathName);
+        if (transfer == null) {
+            return;
+        }
+        Request request = transfer.inFlight.remove(position);
+        if (request == null) {
+            return;
+        }
+        transfer.inFlightBytes -= request.length;
+        inFlightBytes -= request.length;
+        transfer.delivered += request.length;
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - request.sent, 1);
+        // The time of a response to a request that was made more than once is ambiguous
+        if (request.attempts == 1) {
+            sampleRtt(elapsed, now);
+        }
+        double rate = (double) (transfer.delivered - request.deliveredAtSend) / elapsed;
+        if (rate >= transfer.rate || now - transfer.rateStamp > RATE_EXPIRY_RTTS * minRtt) {
+            transfer.rate = rate;
+            transfer.rateStamp = now;
+        }
+        if (transfer.pending.isEmpty() && transfer.inFlight.isEmpty()) {
+            transfers.remove(pathName);
+            log.info(String.format("fetched %s from %s:%d, %d bytes in %d ms, window %d bytes, rtt %.1f ms",
+                    pathName, host, port, transfer.delivered,
+                    TimeUnit.NANOSECONDS.toMillis(now - transfer.started), window(transfer), srtt / 1e6));
+        }
+        pump();
+    }
+
+    /**
+     * A response was not written, because its block did not match the block manifest,
+     * so the block is requested again.
+     * @param pathName the path to the file
+     * @param position the position of the block
+     */
+    public synchronized void retry(String pathName, long position) {
+        Transfer transfer = transfers.get(pathName);
+        if (transfer == null) {
+            return;
+        }
+        Request request = transfer.inFlight.remove(position);
+        if (request == null) {
+            return;
+        }
+        transfer.inFlightBytes -= request.length;
+        inFlightBytes -= request.length;
+        transfer.pending.addFirst(new long[]{request.position, request.length});
+        pump();
+    }
+
+    /**
+     * Stops fetching a file, e.g. because its file loader has been cancelled.
+     * @param pathName the path to the file
+     */
+    public synchronized void cancel(String pathName) {
+        Transfer transfer = transfers.remove(pathName);
+        if (transfer != null) {
+            inFlightBytes -= transfer.inFlightBytes;
+            pump();
+        }
+    }
+
+    /**
+     * Requests as many blocks as the windows have room for, taking turns between transfers.
+     */
+    private void pump() {
+        List<String> requests = new ArrayList<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Transfer transfer : transfers.values()) {
+                long[] next = transfer.pending.peek();
+                if (next == null) {
+                    continue;
+                }
+                // There is always one request of a transfer in flight
+                boolean room = transfer.inFlight.isEmpty()
+                        || (transfer.inFlightBytes + next[1] <= window(transfer)
+                        && inFlightBytes + next[1] <= MAX_IN_FLIGHT);
+                if (!room) {
+                    continue;
+                }
+                transfer.pending.poll();
+                Request request = new Request();
+                request.position = next[0];
+                request.length = next[1];
+                request.attempts = 1;
+                request.sent = System.nanoTime();
+                request.deliveredAtSend = transfer.delivered;
+                transfer.inFlight.put(request.position, request);
+                transfer.inFlightBytes += request.length;
+                inFlightBytes += request.length;
+                requests.add(getRequest(transfer, request));
+                progress = true;
+            }
+        }
+        if (!requests.isEmpty()) {
+            client.enqueue(requests);
+        }
+    }
+
+    /**
+     * @return the number of bytes of the transfer that may be requested without a response
+     */
+    private long window(Transfer transfer) {
+        if (transfer.rate == 0 || minRtt == 0) {
+            return INITIAL_WINDOW_BLOCKS * blockSize;
+        }
+        long window = (long) (WINDOW_GAIN * transfer.rate * minRtt);
+        return Math.min(Math.max(window, MIN_WINDOW_BLOCKS * blockSize), MAX_WINDOW);
+    }
+
+    private void sampleRtt(long rtt, long now) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        if (minRtt == 0 || rtt <= minRtt || now - minRttStamp > MIN_RTT_EXPIRY) {
+            minRtt = rtt;
+            minRttStamp = now;
+        }
+    }
+
+    private long rto() {
+        if (srtt == 0) {
+            return INITIAL_RTO;
+        }
+        return Math.min(Math.max(srtt + 4 * rttvar, MIN_RTO), MAX_RTO);
+    }
+
+    /**
+     * Makes again the requests that have had no response within the retransmission timeout,
+     * which doubles with each attempt.
+     */
+    private synchronized void checkTimeouts() {
+        try {
+            long now = System.nanoTime();
+            List<String> requests = new ArrayList<>();
+            for (Iterator<Map.Entry<String, Transfer>> it = transfers.entrySet().iterator(); it.hasNext(); ) {
+                Transfer transfer = it.next().getValue();
+                for (Request request : transfer.inFlight.values()) {
+                    if (now - request.sent < Math.min(rto() << (request.attempts - 1), MAX_RTO)) {
+                        continue;
+                    }
+                    if (fileSystemManager.getMissingRanges(transfer.pathName) == null) {
+                        // The file loader was cancelled, e.g. because the file was deleted
+                        it.remove();
+                        inFlightBytes -= transfer.inFlightBytes;
+                        break;
+                    }
+                    if (request.attempts >= MAX_ATTEMPTS) {
+                        log.warning("giving up on fetching " + transfer.pathName + " from " + host + ":" + port);
+                        it.remove();
+                        inFlightBytes -= transfer.inFlightBytes;
+                        fileSystemManager.cancelFileLoader(transfer.pathName);
+                        break;
+                    }
+                    log.info("no response from " + host + ":" + port + " for " + transfer.pathName
+                            + " at position " + request.position + ", requesting it again");
+                    request.attempts++;
+                    request.sent = now;
+                    transfer.rate /= 2;
+                    transfer.rateStamp = now;
+                    requests.add(getRequest(transfer, request));
+                }
+            }
+            if (!requests.isEmpty()) {
+                client.enqueue(requests);
+            }
+            pump();
+        } catch (IOException | RuntimeException e) {
+            // Otherwise the scheduler would stop checking
+            e.printStackTrace();
+        }
+    }
+
+    private String getRequest(Transfer transfer, Request request) {
+        return Messages.getFileBytesRequest(transfer.md5, transfer.lastModified, transfer.fileSize,
+                transfer.pathName, request.position, request.length);
+    }
+}
@@ -0,0 +1,34 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a block written to a file loader does not match the digest for that block in
+ * the file's block manifest. The block has not been written, and can be requested again.
+ *
+ */
+@SuppressWarnings("serial")
+public class BlockVerificationException extends IOException {
+	private long position;
+	private long length;
+	
+	public BlockVerificationException(String pathName, long position, long length) {
+		super("block at "+position+" of "+pathName+" does not match its digest");
+		this.position=position;
+		this.length=length;
+	}
+	
+	/**
+	 * @return The position in the file of the block that did not match.
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * @return The length of the block that did not match.
+	 */
+	public long getLength() {
+		return length;
+	}
+}
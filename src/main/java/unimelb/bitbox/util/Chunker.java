@@ -0,0 +1,130 @@
+package unimelb.bitbox.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Splits content into chunks at positions chosen by the content itself, using FastCDC. A gear
+ * hash of the last 64 bytes is computed at every byte, and a chunk ends where the hash has enough
+ * zero bits, so an insertion or deletion only changes the chunks around it, and identical runs of
+ * bytes in different files are split into identical chunks.
+ * <br/>
+ * Chunks are given as their hash, with the given {@link Digest}, a colon, and their length, e.g.
+ * <code>"d41d...:65536"</code>.
+ * Every peer must split content in the same way for chunks to be found on another peer, so the
+ * gear table and the sizes below must not be changed.
+ *
+ */
+public class Chunker {
+	/**
+	 * No chunk is smaller than this, other than the last chunk.
+	 */
+	public static final int MIN_SIZE = 16*1024;
+
+	/**
+	 * The size that chunks are normalized towards.
+	 */
+	public static final int AVG_SIZE = 64*1024;
+
+	/**
+	 * No chunk is larger than this.
+	 */
+	public static final int MAX_SIZE = 256*1024;
+
+	private static final long[] GEAR = new long[256];
+	static {
+		// java.util.Random is specified to give the same sequence for a seed on every JVM
+		Random random = new Random(0x42424358L);
+		for(int i=0;i<GEAR.length;i++) {
+			GEAR[i]=random.nextLong();
+		}
+	}
+
+	/**
+	 * Normalized chunking, it is harder to end a chunk smaller than the average size
+	 * and easier to end one larger than it.
+	 */
+	private static final long MASK_S = mask(18);
+	private static final long MASK_L = mask(14);
+
+	private Digest digest;
+	private Digest.Hasher hasher;
+	private long fingerprint;
+	private int size;
+	private ArrayList<String> chunks = new ArrayList<String>();
+
+	public Chunker(Digest digest) {
+		this.digest=digest;
+		hasher=digest.newHasher();
+	}
+
+	/**
+	 * Adds the next bytes of the content.
+	 */
+	public void update(byte[] bytes, int offset, int length) {
+		int start = offset;
+		int end = offset+length;
+		for(int i=offset;i<end;i++) {
+			size++;
+			if(size<MIN_SIZE) continue;
+			fingerprint=(fingerprint<<1)+GEAR[bytes[i] & 0xff];
+			if((fingerprint & (size<AVG_SIZE ? MASK_S : MASK_L))==0 || size>=MAX_SIZE) {
+				hasher.update(bytes,start,i+1-start);
+				endChunk();
+				start=i+1;
+			}
+		}
+		hasher.update(bytes,start,end-start);
+	}
+
+	/**
+	 * @return The chunks of the content, once all of it has been added.
+	 */
+	public ArrayList<String> finish() {
+		if(size>0) endChunk();
+		return chunks;
+	}
+
+	private void endChunk() {
+		chunks.add(hasher.digest()+":"+size);
+		hasher=digest.newHasher();
+		fingerprint=0;
+		size=0;
+	}
+
+	/**
+	 * @return The length of the content split into the given chunks, or -1 if any of them
+	 * is not a valid chunk.
+	 */
+	public static long length(Iterable<String> chunks) {
+		long length = 0;
+		for(String chunk : chunks) {
+			int chunkLength = chunkLength(chunk);
+			if(chunkLength<0) return -1;
+			length+=chunkLength;
+		}
+		return length;
+	}
+
+	/**
+	 * @return The length of the given chunk, or -1 if it is not a valid chunk.
+	 */
+	public static int chunkLength(String chunk) {
+		int colon = chunk.indexOf(':');
+		if(colon<1) return -1;
+		try {
+			int length = Integer.parseInt(chunk.substring(colon+1));
+			return length>0 && length<=MAX_SIZE ? length : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return A mask of the given number of the highest bits, the ones that the
+	 * last 64 bytes all have an effect on.
+	 */
+	private static long mask(int bits) {
+		return ((1L<<bits)-1)<<(64-bits);
+	}
+}
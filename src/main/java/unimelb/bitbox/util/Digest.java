@@ -0,0 +1,291 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * A way of hashing file content, used for the hashes of files and of the blocks and chunks of
+ * files. Every peer in a share must use the same digest, which is configured with the
+ * <code>digest</code> configuration value:
+ * <li>{@link #MD5}, the default, which is what peers without any extensions use</li>
+ * <li>{@link #XXH64}, the 64 bit xxHash, see {@link XXHash64}</li>
+ * <li>{@link #XXH64_TREE}, a tree of xxHash, where each {@link #TREE_LEAF_SIZE} bytes of a file
+ * are hashed separately, so that a large file can be hashed by all processors at once</li>
+ * Hashes are given as lower case hex strings.
+ *
+ */
+public abstract class Digest {
+	public static final String MD5 = "md5";
+	public static final String XXH64 = "xxh64";
+	public static final String XXH64_TREE = "xxh64-tree";
+
+	/**
+	 * The number of bytes of a file in each leaf of a tree hash.
+	 */
+	public static final int TREE_LEAF_SIZE = 4*1024*1024;
+
+	private static Digest configured;
+
+	/**
+	 * @return The digest named by the <code>digest</code> configuration value, or MD5 if there is none.
+	 * @throws NoSuchAlgorithmException If the configured digest is unknown.
+	 */
+	public static synchronized Digest getConfigured() throws NoSuchAlgorithmException {
+		if(configured==null) {
+			String name = Configuration.getConfigurationValue("digest");
+			configured = getInstance(name!=null ? name.trim() : MD5);
+		}
+		return configured;
+	}
+
+	/**
+	 * @param name One of {@link #MD5}, {@link #XXH64} or {@link #XXH64_TREE}.
+	 * @return The digest with the given name.
+	 * @throws NoSuchAlgorithmException If the name is unknown, or MD5 is not available.
+	 */
+	public static Digest getInstance(String name) throws NoSuchAlgorithmException {
+		switch(name) {
+			case MD5:
+				MessageDigest.getInstance("MD5");
+				return new Md5();
+			case XXH64:
+				return new XxHash();
+			case XXH64_TREE:
+				return new XxHashTree();
+			default:
+				throw new NoSuchAlgorithmException("unknown digest "+name);
+		}
+	}
+
+	/**
+	 * @return The name of the digest, as it is configured.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return A new hasher, for hashing content that is given a piece at a time.
+	 */
+	public abstract Hasher newHasher();
+
+	/**
+	 * @return The hash of the bytes between the buffer's position and limit, which are left as they are.
+	 */
+	public String hash(ByteBuffer bytes) {
+		Hasher hasher = newHasher();
+		hasher.update(bytes.duplicate());
+		return hasher.digest();
+	}
+
+	/**
+	 * @return The hash of the given bytes.
+	 */
+	public String hash(byte[] bytes, int offset, int length) {
+		Hasher hasher = newHasher();
+		hasher.update(bytes,offset,length);
+		return hasher.digest();
+	}
+
+	/**
+	 * Hashes a whole file, using positional reads so that the channel may be shared.
+	 * @return The hash of the file's content.
+	 * @throws IOException If the file could not be read.
+	 */
+	public String hashFile(FileChannel channel) throws IOException {
+		Hasher hasher = newHasher();
+		update(hasher,channel,0,channel.size());
+		return hasher.digest();
+	}
+
+	/**
+	 * @return True if {@link #hashFile(FileChannel)} hashes a large file on more than one thread.
+	 */
+	public boolean isParallel() {
+		return false;
+	}
+
+	private static void update(Hasher hasher, FileChannel channel, long position, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		while(position<end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(),end-position));
+			int read = channel.read(buffer,position);
+			if(read<0) throw new IOException("file is shorter than expected");
+			buffer.flip();
+			hasher.update(buffer.array(),0,read);
+			position+=read;
+		}
+	}
+
+	private static String toHexString(long value) {
+		return String.format("%016x",value);
+	}
+
+	/**
+	 * Hashes content that is given a piece at a time.
+	 */
+	public static abstract class Hasher {
+		public abstract void update(byte[] bytes, int offset, int length);
+
+		/**
+		 * Adds the bytes between the buffer's position and limit, leaving the buffer's position at its limit.
+		 */
+		public void update(ByteBuffer bytes) {
+			if(bytes.hasArray()) {
+				update(bytes.array(),bytes.arrayOffset()+bytes.position(),bytes.remaining());
+				bytes.position(bytes.limit());
+				return;
+			}
+			byte[] copy = new byte[Math.min(bytes.remaining(),65536)];
+			while(bytes.hasRemaining()) {
+				int n = Math.min(copy.length,bytes.remaining());
+				bytes.get(copy,0,n);
+				update(copy,0,n);
+			}
+		}
+
+		/**
+		 * @return The hash of the content, after which the hasher must not be used again.
+		 */
+		public abstract String digest();
+	}
+
+	private static class Md5 extends Digest {
+		public String getName() {
+			return MD5;
+		}
+
+		public Hasher newHasher() {
+			final MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				// checked when the digest was created
+				throw new IllegalStateException(e);
+			}
+			return new Hasher() {
+				public void update(byte[] bytes, int offset, int length) {
+					digest.update(bytes,offset,length);
+				}
+
+				public void update(ByteBuffer bytes) {
+					digest.update(bytes);
+				}
+
+				public String digest() {
+					StringBuilder sb = new StringBuilder();
+					for(byte b : digest.digest()) {
+						sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+					}
+					return sb.toString();
+				}
+			};
+		}
+	}
+
+	private static class XxHash extends Digest {
+		public String getName() {
+			return XXH64;
+		}
+
+		public Hasher newHasher() {
+			final XXHash64 xxhash = new XXHash64();
+			return new Hasher() {
+				public void update(byte[] bytes, int offset, int length) {
+					xxhash.update(bytes,offset,length);
+				}
+
+				public String digest() {
+					return toHexString(xxhash.digest());
+				}
+			};
+		}
+	}
+
+	/**
+	 * The root hash is the xxHash of the hashes of the leaves, in order, followed by the length of the
+	 * content, so that the same content gives the same hash however it was hashed.
+	 */
+	private static class XxHashTree extends Digest {
+		public String getName() {
+			return XXH64_TREE;
+		}
+
+		public boolean isParallel() {
+			return true;
+		}
+
+		public Hasher newHasher() {
+			return new Hasher() {
+				private XXHash64 root = new XXHash64();
+				private XXHash64 leaf = new XXHash64();
+				private int leafLength;
+				private long length;
+
+				public void update(byte[] bytes, int offset, int length) {
+					this.length+=length;
+					while(length>0) {
+						int n = Math.min(TREE_LEAF_SIZE-leafLength,length);
+						leaf.update(bytes,offset,n);
+						leafLength+=n;
+						offset+=n;
+						length-=n;
+						if(leafLength==TREE_LEAF_SIZE) {
+							root.update(leaf.digest());
+							leaf=new XXHash64();
+							leafLength=0;
+						}
+					}
+				}
+
+				public String digest() {
+					if(leafLength>0) root.update(leaf.digest());
+					root.update(length);
+					return toHexString(root.digest());
+				}
+			};
+		}
+
+		public String hashFile(FileChannel channel) throws IOException {
+			long size = channel.size();
+			int leaves = (int) ((size+TREE_LEAF_SIZE-1)/TREE_LEAF_SIZE);
+			if(leaves<=1) return super.hashFile(channel);
+			long[] leafHashes = new long[leaves];
+			try {
+				IntStream.range(0,leaves).parallel().forEach(i ->
+					{
+						XXHash64 leaf = new XXHash64();
+						Hasher hasher = new Hasher() {
+							public void update(byte[] bytes, int offset, int length) {
+								leaf.update(bytes,offset,length);
+							}
+
+							public String digest() {
+								return null;
+							}
+						};
+						try {
+							long position = (long) i*TREE_LEAF_SIZE;
+							update(hasher,channel,position,Math.min(position+TREE_LEAF_SIZE,size));
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						leafHashes[i]=leaf.digest();
+					}
+				);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			XXHash64 root = new XXHash64();
+			for(long leafHash : leafHashes) {
+				root.update(leafHash);
+			}
+			root.update(size);
+			return toHexString(root.digest());
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package unimelb.bitbox.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+import unimelb.bitbox.util.FileSystemManager.EVENT;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+/**
+ * Holds back the events for each file until the file has not changed for a quiet period, so that
+ * a file that is being written is only sent once it has been written, rather than once for each
+ * time it is seen to have changed:
+ * <li>a {@link EVENT#FILE_CREATE} followed by {@link EVENT#FILE_MODIFY}s is a single create of the last content</li>
+ * <li>a {@link EVENT#FILE_MODIFY} followed by more is a single modify of the last content</li>
+ * <li>a {@link EVENT#FILE_CREATE} followed by a {@link EVENT#FILE_DELETE} is nothing at all</li>
+ * A file that is modified and then deleted is still sent both, since another peer can only delete
+ * the content it has been told about. Directory events and moves are not held back, and are only
+ * emitted once every event held back before them has been, so that they are never emitted out of order.
+ *
+ */
+public class EventCoalescer {
+	private Consumer<FileSystemEvent> emitter;
+	private long quietPeriod;
+	/**
+	 * The events held back, by pathname, in the order that they were first held back.
+	 */
+	private LinkedHashMap<String,Held> held = new LinkedHashMap<String,Held>();
+
+	private static class Held {
+		private FileSystemEvent event;
+		private long deadline;
+	}
+
+	/**
+	 * @param emitter Where events are emitted to, once they have been held back for long enough.
+	 * It is only ever called by one thread at a time.
+	 * @param quietPeriod The number of milliseconds that a file must not change for before
+	 * its events are emitted.
+	 */
+	public EventCoalescer(Consumer<FileSystemEvent> emitter, long quietPeriod) {
+		this.emitter=emitter;
+		this.quietPeriod=quietPeriod;
+		Thread thread = new Thread(this::emitQuietEvents,"event-coalescer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Adds an event, which is held back if it is for a file, and otherwise emitted straight after
+	 * any events that are being held back.
+	 */
+	public synchronized void add(FileSystemEvent event) {
+		Held pending = held.get(event.pathName);
+		switch(event.event) {
+			case FILE_CREATE:
+			case FILE_MODIFY:
+				if(pending==null) {
+					pending = new Held();
+					pending.event=event;
+					held.put(event.pathName,pending);
+				} else if(pending.event.event==EVENT.FILE_CREATE && event.event==EVENT.FILE_MODIFY) {
+					// the other peers still need to create it, with the latest content
+					pending.event.fileDescriptor=event.fileDescriptor;
+				} else {
+					pending.event=event;
+				}
+				pending.deadline=System.currentTimeMillis()+quietPeriod;
+				notifyAll();
+				return;
+			case FILE_DELETE:
+				if(pending!=null) {
+					held.remove(event.pathName);
+					if(pending.event.event==EVENT.FILE_CREATE) return;
+					emitter.accept(pending.event);
+				}
+				emitter.accept(event);
+				return;
+			default:
+				flush();
+				emitter.accept(event);
+				return;
+		}
+	}
+
+	/**
+	 * @return The pathnames of the files whose events are being held back. Until their events
+	 * are emitted, other peers should not be sent these files by a sync either.
+	 */
+	public synchronized HashSet<String> getHeld() {
+		return new HashSet<String>(held.keySet());
+	}
+
+	/**
+	 * Emits every event being held back, in the order that they were first held back.
+	 */
+	public synchronized void flush() {
+		ArrayList<Held> pending = new ArrayList<Held>(held.values());
+		held.clear();
+		for(Held event : pending) {
+			emitter.accept(event.event);
+		}
+	}
+
+	/**
+	 * Emits the events for files that have not changed for the quiet period, for as long as
+	 * the file system manager is running.
+	 */
+	private synchronized void emitQuietEvents() {
+		while(true) {
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			for(Iterator<Held> it=held.values().iterator();it.hasNext();) {
+				Held pending = it.next();
+				if(pending.deadline<=now) {
+					it.remove();
+					emitter.accept(pending.event);
+				} else {
+					next=Math.min(next,pending.deadline);
+				}
+			}
+			try {
+				if(next==Long.MAX_VALUE) {
+					wait();
+				} else {
+					wait(next-now);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
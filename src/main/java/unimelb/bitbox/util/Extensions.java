@@ -0,0 +1,146 @@
+package unimelb.bitbox.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Optional additions to the peer protocol. Each peer lists the extensions it supports in its
+ * handshake message, and an extension is only used on a connection when both peers have listed it,
+ * so that peers without any extensions can still connect as before.
+ *
+ */
+public class Extensions {
+	/**
+	 * FILE_MANIFEST_REQUEST and FILE_MANIFEST_RESPONSE, used to get the digest of every block
+	 * of a file before loading it, so that each block can be checked as it arrives.
+	 */
+	public static final String BLOCK_MANIFEST = "blockManifest";
+	
+	/**
+	 * FILE_DELTA_REQUEST and FILE_DELTA_RESPONSE, used when a file is modified to find the parts
+	 * of the existing file that are in the new content, so that only the rest is loaded.
+	 */
+	public static final String DELTA = "delta";
+	
+	/**
+	 * FILE_CHUNKS_REQUEST and FILE_CHUNKS_RESPONSE, used to get the content defined chunks of a
+	 * file before loading it, so that the chunks already in the share are copied instead of loaded.
+	 */
+	public static final String CHUNKS = "chunks";
+	
+	/**
+	 * FILE_MOVE_REQUEST and DIRECTORY_MOVE_REQUEST, and their responses, used to move a file or a
+	 * directory that was moved on another peer, rather than delete it and create it again.
+	 */
+	public static final String MOVE = "move";
+	
+	/**
+	 * DIRECTORY_DIGEST_REQUEST and DIRECTORY_DIGEST_RESPONSE, used for syncing instead of sending
+	 * every file and directory in the share, so that only the directories whose digests differ from
+	 * the other peer's are listed and compared.
+	 */
+	public static final String MERKLE = "merkle";
+	
+	/**
+	 * A <code>journal</code> position in the handshake, and a <code>sequence</code> number on each
+	 * request made for a file system event, used to send a peer that reconnects only the events
+	 * that it missed. Over UDP a request can be lost, so having seen one does not mean having seen
+	 * those before it.
+	 */
+	public static final String JOURNAL = "journal";
+	
+	/**
+	 * Binary framing of every message sent after the handshake, with the content of a
+	 * FILE_BYTES_RESPONSE sent as raw bytes after the rest of the message rather than
+	 * Base64 encoded into it, see {@link unimelb.bitbox.connection.Connection}.
+	 */
+	public static final String BINARY = "binary";
+	
+	/**
+	 * Followed by the name of the {@link Digest} that the peer hashes content with. Peers without
+	 * any extensions use MD5. The digest is not chosen per connection: the index, block manifests,
+	 * chunks and directory digests are all kept in the one digest, so a peer that lists a different
+	 * digest is refused, see {@link #isDigestCompatible(Document)}. That is also why MD5 stays the
+	 * default, a faster default would cut every peer off from those without any extensions.
+	 */
+	public static final String DIGEST_PREFIX = "digest:";
+	
+	/**
+	 * @return The extensions supported by this peer, in the configured mode.
+	 */
+	public static ArrayList<String> getSupported() {
+		ArrayList<String> supported = new ArrayList<String>();
+		supported.add(DIGEST_PREFIX+getDigestName());
+		supported.add(MOVE);
+		if ("tcp".equals(Configuration.getConfigurationValue("mode"))) {
+			// block manifests, checksums and directory listings do not fit in a datagram
+			supported.add(BLOCK_MANIFEST);
+			supported.add(DELTA);
+			supported.add(CHUNKS);
+			supported.add(MERKLE);
+			supported.add(JOURNAL);
+			supported.add(BINARY);
+		}
+		return supported;
+	}
+	
+	/**
+	 * @param handshake A handshake request or response from another peer.
+	 * @return The extensions listed by the other peer that are also supported by this peer.
+	 */
+	public static Set<String> negotiate(Document handshake) {
+		Set<String> negotiated = new HashSet<String>();
+		Object listed = handshake.get("extensions");
+		if (listed instanceof List) {
+			List<String> supported = getSupported();
+			for (Object extension : (List<?>) listed) {
+				if (supported.contains(extension)) negotiated.add((String) extension);
+			}
+		}
+		return negotiated;
+	}
+	
+	/**
+	 * @param handshake A handshake request or response from another peer.
+	 * @return True if the other peer hashes content with the same digest as this peer.
+	 */
+	public static boolean isDigestCompatible(Document handshake) {
+		return getDigestName().equals(getListedDigest(handshake));
+	}
+	
+	/**
+	 * @param handshake A handshake request or response from another peer.
+	 * @return Why the other peer's digest is refused, naming both digests, for the peer's operators.
+	 */
+	public static String getDigestMismatch(Document handshake) {
+		return "file digests do not match, this peer uses "+getDigestName()+" and the other peer uses "+
+				getListedDigest(handshake)+", every peer in a share must be configured with the same digest";
+	}
+	
+	/**
+	 * @return The name of the digest that the other peer lists in its handshake, MD5 if it lists none.
+	 */
+	private static String getListedDigest(Document handshake) {
+		Object listed = handshake.get("extensions");
+		if (listed instanceof List) {
+			for (Object extension : (List<?>) listed) {
+				if (extension instanceof String && ((String) extension).startsWith(DIGEST_PREFIX)) {
+					return ((String) extension).substring(DIGEST_PREFIX.length());
+				}
+			}
+		}
+		return Digest.MD5;
+	}
+	
+	private static String getDigestName() {
+		try {
+			return Digest.getConfigured().getName();
+		} catch (NoSuchAlgorithmException e) {
+			// the file system manager will not have started either
+			return Digest.MD5;
+		}
+	}
+}
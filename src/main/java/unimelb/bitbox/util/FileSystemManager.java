@@ -1,27 +1,59 @@
 package unimelb.bitbox.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.nio.file.CopyOption;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
 
 /**
@@ -32,8 +64,76 @@ import java.util.logging.Logger;
  * then the deepest deletions are always given first, up to the shallowest deletions. Similarly
  * when creating nested directories, and for files that appear in directories.
  * <br/>
+ * Changes are detected using a {@link java.nio.file.WatchService} that has every directory
+ * in the share registered with it, so that only the directories reported by the operating
+ * system are examined. A full scan of the share is still done every
+ * {@link #DEFAULT_FULL_SCAN_INTERVAL} seconds (configurable via <code>fullScanInterval</code>),
+ * and whenever the watch service reports that events were lost. If no watch service is available
+ * then the share is polled once a second.
+ * <br/>
+ * The file descriptors of everything in the share are saved to an index file in the
+ * {@link #metadataDirectory}, so that when the file system manager is restarted only the files whose
+ * size or last modified timestamp have changed need to be hashed again.
+ * <br/>
+ * New and modified files are hashed by a bounded pool of hash worker threads
+ * (<code>hashThreads</code>, by default one per processor), without holding the lock that
+ * protects the API below. Their {@link EVENT#FILE_CREATE} and {@link EVENT#FILE_MODIFY} events
+ * are only emitted once the new hash has been recorded.
+ * <br/>
+ * Full scans walk the directory tree on a fork/join pool (<code>scanThreads</code>, by default one
+ * per processor, or a sequential walk when set to 1), with each directory scanned by its own task.
+ * The last modified timestamp of every directory is remembered along with its contents, and a
+ * directory whose timestamp has not changed since it was last listed is not listed again, since
+ * nothing can have been added to or removed from it. Only the files already known to be in it
+ * are checked. Files and directories that have gone are noticed when their parent is listed.
+ * <br/>
+ * The index is protected by a read/write lock, which is only written by the monitor thread and the hash
+ * workers, so that the API can be used by any number of threads at once. File loaders, and the files
+ * that are read from, are locked individually, so that different files are read and written in parallel.
+ * <br/>
+ * A file loader can be given a block manifest, the MD5 hash of every block of the file, in which case
+ * each whole block is checked before it is written, and a block that does not match can be loaded
+ * again on its own rather than the whole file failing its final check.
+ * <br/>
+ * When a file is modified, the blocks of the existing file can be found in the new content using
+ * rolling checksums, as rsync does, so that a file loader copies the parts of the file that have
+ * not changed from the existing file and only the rest of the file needs to be loaded.
+ * <br/>
+ * Content is hashed with the configured {@link Digest}, MD5 by default. With a tree digest each
+ * large file is hashed by all processors at once.
+ * <br/>
+ * Files of at least {@link #CHUNK_MIN_FILE_SIZE} bytes are also split into content defined chunks
+ * by {@link Chunker} when they are hashed, and every chunk in the share is indexed, so that a file
+ * loader can copy any chunk of a new file that is already somewhere in the share, from whichever
+ * file it is in. The chunks are saved in the index file along with the file descriptors.
+ * <br/>
+ * A file loader whose content is already in another file uses a shortcut, copying the other file in
+ * the kernel with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * When <code>shortcutMode</code> is <code>link</code> the file is instead made a hard link to the
+ * other file, which takes no time or space at all, but the two names then share their content, so this
+ * is only suitable for shares whose files are never changed in place. Files that a loader has completed
+ * are not hashed again when they are next scanned, since their hash is already known.
+ * <br/>
+ * Files and directories that are renamed or moved within the share are recognised by their file key
+ * (e.g. their inode), which a rename does not change, when a scan finds one dropped and another found
+ * with the same key. They are emitted as a single {@link EVENT#FILE_MOVE} or {@link EVENT#DIRECTORY_MOVE}
+ * rather than as deletes and creates, and are not hashed again. File keys are not saved in the index,
+ * so nothing is recognised as moved until it has been scanned since starting, and nothing is on systems
+ * without file keys.
+ * <br/>
+ * Each directory has a digest of everything in it, which peers compare rather than
+ * sending each other everything in the share, see {@link #getDirectoryDigest(String)}.
+ * <br/>
+ * Every event is numbered and added to a journal before it is emitted, so that a peer that
+ * reconnects can be sent only the events that it missed, see {@link #getJournalPosition()}.
+ * <br/>
+ * The events of a file are held back until it has not changed for <code>eventQuietPeriod</code>
+ * milliseconds, and then emitted as a single event, see {@link EventCoalescer}.
+ * <br/>
  * The file system manager also provides an API
  * for safely making modifications to the files and directories in the share directory:
+ * <li>{@link #applyChunks(String, List)}</li>
+ * <li>{@link #applyDeltaCopies(String, List)}</li>
  * <li>{@link #cancelFileLoader(String)}</li>
  * <li>{@link #createFileLoader(String, String)}</li>
  * <li>{@link #checkShortcut(String)}</li>
@@ -44,10 +144,27 @@ import java.util.logging.Logger;
  * <li>{@link #fileNameExists(String)}</li>
  * <li>{@link #fileNameExists(String, String)}</li>
  * <li>{@link #generateSyncEvents()}</li>
+ * <li>{@link #generateSyncEvents(String, DirectoryListing, List)}</li>
+ * <li>{@link #getDirectoryDigest(String)}</li>
+ * <li>{@link #getDirectoryListing(String)}</li>
+ * <li>{@link #getJournalEvents(Document)}</li>
+ * <li>{@link #getJournalPosition()}</li>
+ * <li>{@link #setJournalSeen(String, long)}</li>
+ * <li>{@link #getBlockChecksums(String, long)}</li>
+ * <li>{@link #getBlockManifest(String, long)}</li>
+ * <li>{@link #getChunks(String)}</li>
+ * <li>{@link #getDeltaCopies(String, long, List)}</li>
+ * <li>{@link #getMissingRanges(String)}</li>
  * <li>{@link #isSafePathName(String)}</li>
  * <li>{@link #readFile(String, long, long)}</li>
  * <li>{@link #makeDirectory(String)}</li>
- * <li>{@link #modifyFileLoader(String, String, long)}</li>
+ * <li>{@link #modifyFileLoader(String, String, long, long)}</li>
+ * <li>{@link #openFileRegion(String, long, long)}</li>
+ * <li>{@link #moveDirectory(String, String)}</li>
+ * <li>{@link #moveFile(String, String, String)}</li>
+ * <li>{@link #expandMove(FileSystemEvent)}</li>
+ * <li>{@link #expandDirectoryMove(String, String)}</li>
+ * <li>{@link #setBlockManifest(String, long, List)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
@@ -62,6 +179,70 @@ public class FileSystemManager extends Thread {
 	 */
 	public final String loadingSuffix = "(bitbox)";
 	
+	/**
+	 * The name of the directory, directly inside the share directory, where the file system
+	 * manager keeps its own files. It ends with {@link #loadingSuffix} and so, like loader files,
+	 * never generates file system events.
+	 */
+	public final String metadataDirectory = loadingSuffix;
+	
+	/**
+	 * The default number of seconds between full scans of the share directory, when
+	 * changes are otherwise being detected by the watch service.
+	 */
+	public static final long DEFAULT_FULL_SCAN_INTERVAL = 300;
+	
+	/**
+	 * The minimum number of seconds between saves of the index file, while the contents
+	 * of the share directory are changing.
+	 */
+	public static final long INDEX_SAVE_INTERVAL = 30;
+	
+	/**
+	 * The name of the directory, in the {@link #metadataDirectory}, that the journal is kept in.
+	 */
+	public static final String JOURNAL_DIRECTORY = "journal";
+	
+	/**
+	 * The default number of milliseconds that a file must not change for before its
+	 * events are emitted, see {@link EventCoalescer}.
+	 */
+	public static final long DEFAULT_EVENT_QUIET_PERIOD = 2000;
+	
+	/**
+	 * The maximum number of files that may be waiting for a hash worker, after which the
+	 * monitor thread hashes files itself.
+	 */
+	public static final int HASH_QUEUE_SIZE = 1024;
+	
+	/**
+	 * The number of files that are kept open for reading, after which the least recently
+	 * read file is closed.
+	 */
+	public static final int READ_HANDLE_CACHE_SIZE = 64;
+	
+	/**
+	 * The number of block manifests that are kept, after which the least recently
+	 * requested manifest is dropped, see {@link #getBlockManifest(String, long)}.
+	 */
+	public static final int MANIFEST_CACHE_SIZE = 32;
+	
+	/**
+	 * The most blocks that a block manifest may have, larger files are loaded without one.
+	 */
+	public static final int MAX_MANIFEST_BLOCKS = 65536;
+	
+	/**
+	 * The smallest blocks that a file is split into when looking for the parts of it that
+	 * have not changed, see {@link #getDeltaBlockSize(long)}.
+	 */
+	public static final long DELTA_MIN_BLOCK_SIZE = 2048;
+	
+	/**
+	 * Files at least this many bytes long are split into chunks, see {@link Chunker}.
+	 */
+	public static final long CHUNK_MIN_FILE_SIZE = 1024*1024;
+	
 	/**
 	 * Possible file system events.
 	 * <li>{@link #FILE_CREATE}</li>
@@ -94,7 +275,20 @@ public class FileSystemManager extends Thread {
 		 * be empty for this event to be emitted, and its parent
 		 * directory must exist.
 		 */
-		DIRECTORY_DELETE
+		DIRECTORY_DELETE,
+		/**
+		 * An existing file has been moved to a new pathname, which did not
+		 * exist, without its content changing. The parent directory of the
+		 * new pathname must exist for this event to be emitted.
+		 */
+		FILE_MOVE,
+		/**
+		 * An existing directory has been moved, along with everything in it, to a
+		 * new pathname, which did not exist. The parent directory of the new pathname
+		 * must exist for this event to be emitted. Anything that was added to or removed
+		 * from the directory at the same time is emitted afterwards, under the new pathname.
+		 */
+		DIRECTORY_MOVE
 	}
 	
 	/**
@@ -105,6 +299,8 @@ public class FileSystemManager extends Thread {
 	 * <li>{@link #pathName}</li>
 	 * <li>{@link #event}</li>
 	 * <li>{@link #fileDescriptor}</li>
+	 * <li>{@link #oldPathName}</li>
+	 * <li>{@link #sequence}</li>
 	 */
 	public class FileSystemEvent {
 		/**
@@ -129,6 +325,16 @@ public class FileSystemManager extends Thread {
 		 * Additional information for the file/directory.
 		 */
 		public FileDescriptor fileDescriptor;
+		/**
+		 * For move events, the pathname that the file/directory was moved from,
+		 * <i>relative</i> to the share directory.
+		 */
+		public String oldPathName;
+		/**
+		 * The sequence number of the event in the journal, once it has been emitted,
+		 * or 0 if it is not in the journal.
+		 */
+		public long sequence;
 		
 		/**
 		 * Constructor for file events.
@@ -160,8 +366,21 @@ public class FileSystemManager extends Thread {
 			this.event=event;
 		}
 		
+		/**
+		 * Constructor for move events.
+		 * @param path The path to the file/directory, including the share directory.
+		 * @param name The name of the file/directory, excluding its path.
+		 * @param oldPathName The pathname it was moved from, relative to the share directory.
+		 * @param event The type of event.
+		 * @param fileDescriptor The associated file descriptor for a file, or null for a directory.
+		 */
+		public FileSystemEvent(String path, String name, String oldPathName, EVENT event, FileDescriptor fileDescriptor) {
+			this(path,name,event,fileDescriptor);
+			this.oldPathName=oldPathName;
+		}
+		
 		public String toString() {
-			return event.name()+" " +pathName;
+			return event.name()+" " +pathName+(oldPathName!=null ? " from "+oldPathName : "");
 		}
 	}
 	
@@ -175,13 +394,18 @@ public class FileSystemManager extends Thread {
 		 */
 		public long lastModified;
 		/**
-		 * The MD5 hash of the file's content.
+		 * The hash of the file's content, an MD5 hash unless another {@link Digest} is configured.
 		 */
 		public String md5;
 		/**
 		 * The size of the file in bytes.
 		 */
 		public long fileSize;
+		/**
+		 * The file key of the file, see {@link BasicFileAttributes#fileKey()}, once it has been
+		 * scanned, or null. Used to recognise the file when it is moved.
+		 */
+		private Object fileKey;
 		
 		/**
 		 * Constructor
@@ -206,6 +430,79 @@ public class FileSystemManager extends Thread {
 		}
 	}
 	
+	/**
+	 * A range of bytes of a file with specific content, as given by {@link #openFileRegion(String, long, long)},
+	 * that can be written straight from the file with {@link FileChannel#transferTo}. The file is kept
+	 * open until the region is closed.
+	 */
+	public class FileRegion implements Closeable {
+		private ReadHandle handle;
+		private long position;
+		private long length;
+		private boolean closed;
+		
+		private FileRegion(ReadHandle handle, long position, long length) {
+			this.handle=handle;
+			this.position=position;
+			this.length=length;
+		}
+		
+		/**
+		 * @return The channel of the file, which must only be read with positional reads and transfers.
+		 */
+		public FileChannel getChannel() {
+			return handle.channel;
+		}
+		
+		/**
+		 * @return The position in the file of the first byte of the region.
+		 */
+		public long getPosition() {
+			return position;
+		}
+		
+		/**
+		 * @return The number of bytes in the region.
+		 */
+		public long getLength() {
+			return length;
+		}
+		
+		/**
+		 * Lets go of the file, only the first time it is called.
+		 */
+		@Override
+		public void close() {
+			synchronized(this) {
+				if(closed) return;
+				closed=true;
+			}
+			releaseReadHandle(handle);
+		}
+	}
+	
+	/**
+	 * What is directly in a directory, as given by {@link #getDirectoryListing(String)}.
+	 */
+	public static class DirectoryListing {
+		/**
+		 * The digest of the directory, see {@link #getDirectoryDigest(String)}.
+		 */
+		public String digest;
+		/**
+		 * The hash of each file in the directory, by its name.
+		 */
+		public HashMap<String,String> files = new HashMap<String,String>();
+		/**
+		 * The digest of each directory in the directory, by its name.
+		 */
+		public HashMap<String,String> directories = new HashMap<String,String>();
+		
+		public DirectoryListing(String digest) {
+			this.digest=digest;
+		}
+	}
+	
 	/**
 	 * Construct a new file system manager. If the supplied share directory is not a directory
 	 * that exists then the constructor will return without starting the monitor thread.
@@ -218,9 +515,35 @@ public class FileSystemManager extends Thread {
 		this.fileSystemObserver=fileSystemObserver;
 		this.root=root;
 		watchedFiles=new HashMap<String,FileDescriptor>();
-		loadingFiles=new HashMap<String,FileLoader>();
+		loadingFiles=new ConcurrentHashMap<String,FileLoader>();
 		watchedDirectories=new HashSet<String>();
+		directoryDescriptors=new HashMap<String,DirectoryDescriptor>();
+		directoryDescriptors.put(root,new DirectoryDescriptor());
 		hashMap=new HashMap<String,HashSet<String>>();
+		fileChunks=new HashMap<String,ArrayList<String>>();
+		chunkMap=new HashMap<String,HashMap<String,Long>>();
+		watchKeys=new HashMap<WatchKey,String>();
+		watchedKeys=new HashMap<String,WatchKey>();
+		pendingHashes=new HashSet<String>();
+		String interval = Configuration.getConfigurationValue("fullScanInterval");
+		fullScanInterval = (interval!=null ? Long.parseLong(interval.trim()) : DEFAULT_FULL_SCAN_INTERVAL)*1000;
+		String threads = Configuration.getConfigurationValue("scanThreads");
+		int scanThreads = threads!=null ? Integer.parseInt(threads.trim()) : Runtime.getRuntime().availableProcessors();
+		if(scanThreads>1) scanPool = new ForkJoinPool(scanThreads);
+		threads = Configuration.getConfigurationValue("hashThreads");
+		int hashThreads = threads!=null ? Integer.parseInt(threads.trim()) : Runtime.getRuntime().availableProcessors();
+		digest = Digest.getConfigured();
+		String shortcutMode = Configuration.getConfigurationValue("shortcutMode");
+		linkShortcuts = shortcutMode!=null && shortcutMode.trim().equals("link");
+		AtomicInteger hashThreadCount = new AtomicInteger();
+		hashPool = new ThreadPoolExecutor(hashThreads, hashThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(HASH_QUEUE_SIZE),
+				r -> {
+					Thread t = new Thread(r,"hash-"+hashThreadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
 		File file = new File(root);
 		if(!file.exists() || !file.isDirectory()) {
 			log.severe("incorrect root given: "+root);
@@ -228,7 +551,69 @@ public class FileSystemManager extends Thread {
 		}
 		cannonicalRoot = file.getCanonicalPath();
 		log.info("monitoring "+cannonicalRoot);
-		scanDirectoryTree(root);
+		File metadata = new File(root+FileSystems.getDefault().getSeparator()+metadataDirectory);
+		metadata.mkdir();
+		indexFile = metadata.getPath()+FileSystems.getDefault().getSeparator()+"index";
+		loadIndex();
+		String segments = Configuration.getConfigurationValue("journalSegments");
+		try {
+			journal = new Journal(new File(metadata,JOURNAL_DIRECTORY),
+					segments!=null ? Integer.parseInt(segments.trim()) : Journal.DEFAULT_SEGMENTS);
+		} catch (IOException e) {
+			log.warning("unable to open the journal, peers will be synced in full: "+e.getMessage());
+		}
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			log.warning("watch service not available, polling instead: "+e.getMessage());
+		}
+		// directories are watched before they are scanned, so nothing is missed in between
+		watchDir(root);
+		ArrayList<HashJob> hashJobs = new ArrayList<HashJob>();
+		ArrayList<FileSystemEvent> pathevents = new ArrayList<FileSystemEvent>();
+		ArrayList<FileSystemEvent> deleteevents = new ArrayList<FileSystemEvent>();
+		lock.writeLock().lock();
+		try {
+			// anything in the index that has gone is dropped without an event
+			scanDirectoryTree(root,pathevents,deleteevents,hashJobs);
+			clearDropped();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if(journal!=null && !(pathevents.isEmpty() && deleteevents.isEmpty() && hashJobs.isEmpty())) {
+			// what changed while stopped was never journaled
+			try {
+				journal.reset();
+			} catch (IOException e) {
+				log.warning("unable to reset the journal, peers will be synced in full: "+e.getMessage());
+				journal=null;
+			}
+		}
+		// the initial contents are not emitted as events, but must be hashed before continuing
+		submitHashJobs(hashJobs,false);
+		lock.writeLock().lock();
+		try {
+			while(!pendingHashes.isEmpty()) {
+				try {
+					hashesFinished.await();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted while hashing the share directory");
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		saveIndex();
+		String quietPeriod = Configuration.getConfigurationValue("eventQuietPeriod");
+		long eventQuietPeriod = quietPeriod!=null ? Long.parseLong(quietPeriod.trim()) : DEFAULT_EVENT_QUIET_PERIOD;
+		if(eventQuietPeriod>0) coalescer = new EventCoalescer(this::emit,eventQuietPeriod);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			// whatever is held back must be in the journal, or it will never be sent
+			if(coalescer!=null) coalescer.flush();
+			saveLoaderRanges();
+			saveIndex();
+			saveJournal();
+		}));
 		log.info("starting file system monitor thread");
 		start();
 	}
@@ -247,10 +632,14 @@ public class FileSystemManager extends Thread {
 	   * to the share directory.
 	   * @return boolean True if the path name is safe to use, false otherwise
 	   * including if
-	   * there was an IO error accessing the file system.
+	   * there was an IO error accessing the file system, or if the path name refers
+	   * to a loader file or the {@link #metadataDirectory}.
 	   */
 	public boolean isSafePathName(String pathName) {
 		pathName=separatorsToSystem(pathName);
+		for(String part : pathName.split(Pattern.quote(FileSystems.getDefault().getSeparator()))) {
+			if(part.endsWith(loadingSuffix)) return false;
+		}
 		File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
 		String cannonicalName;
 		try {
@@ -274,8 +663,11 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean dirNameExists(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
+		lock.readLock().lock();
+		try {
 			return watchedDirectories.contains(root+FileSystems.getDefault().getSeparator()+pathName);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 	
@@ -289,10 +681,8 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean makeDirectory(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-			return file.mkdir();
-		}
+		File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+		return file.mkdir();
 	}
 	
 	/**
@@ -304,11 +694,48 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean deleteDirectory(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-			if(file.isDirectory()) {
-				return file.delete();
-			} else return false;
+		File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+		if(file.isDirectory()) {
+			return file.delete();
+		} else return false;
+	}
+	
+	/**
+	   * Attempts to move a directory, along with everything in it, to a new
+	   * pathname. Nothing may already be at the new pathname. Any file loaders
+	   * in the directory are cancelled.
+	   * @param oldPathName The name of the directory to move, relative
+	   * to the share directory.
+	   * @param pathName The name to move the directory to, relative
+	   * to the share directory.
+	   * @return boolean True if the directory was successfully moved.
+	   */
+	public boolean moveDirectory(String oldPathName, String pathName) {
+		String separator = FileSystems.getDefault().getSeparator();
+		String oldFullPathName=root+separator+separatorsToSystem(oldPathName);
+		String fullPathName=root+separator+separatorsToSystem(pathName);
+		if(!new File(oldFullPathName).isDirectory()) return false;
+		for(String loading : new ArrayList<String>(loadingFiles.keySet())) {
+			if(!loading.startsWith(oldFullPathName+separator)) continue;
+			synchronized(loaderLock(loading)) {
+				FileLoader loader = loadingFiles.remove(loading);
+				if(loader==null) continue;
+				log.info("cancelling file loader for "+loading+" to move its directory");
+				try {
+					loader.cancel();
+				} catch (IOException e) {
+					log.warning("unable to cancel file loader for "+loading+": "+e.getMessage());
+				}
+			}
+		}
+		log.info("moving "+oldFullPathName+" to "+fullPathName);
+		try {
+			// fails rather than replace anything
+			Files.move(Paths.get(oldFullPathName),Paths.get(fullPathName));
+			return true;
+		} catch (IOException e) {
+			log.warning("unable to move "+oldFullPathName+": "+e.getMessage());
+			return false;
 		}
 	}
 	
@@ -325,8 +752,11 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean fileNameExists(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
+		lock.readLock().lock();
+		try {
 			return watchedFiles.containsKey(root+FileSystems.getDefault().getSeparator()+pathName);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 	
@@ -342,10 +772,13 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean fileNameExists(String pathName, String md5) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
+		lock.readLock().lock();
+		try {
 			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
 			return watchedFiles.containsKey(fullPathName) &&
 					watchedFiles.get(fullPathName).md5.equals(md5);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 	
@@ -360,26 +793,68 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean deleteFile(String pathName, long lastModified, String md5) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(watchedFiles.containsKey(fullPathName) && (watchedFiles.get(fullPathName).lastModified<=lastModified||
-					watchedFiles.get(fullPathName).md5.equals(md5))) {
-				log.info("deleting "+fullPathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		FileDescriptor fileDescriptor = indexedFile(fullPathName);
+		if(fileDescriptor!=null && (fileDescriptor.lastModified<=lastModified||
+				fileDescriptor.md5.equals(md5))) {
+			log.info("deleting "+fullPathName);
+			synchronized(fileLock(fullPathName)) {
 				File file = new File(fullPathName);
 				if(file.isFile()) {
 					return file.delete();
 				} else return false;
-			} else return false;
+			}
+		} else return false;
+	}
+	
+	/**
+	 * Attempt to move a file to a new pathname. The file must exist with the
+	 * given content, nothing may already be at the new pathname, and neither
+	 * pathname may be loading.
+	 * @param oldPathName The name of the file to move, relative to
+	 * the share directory.
+	 * @param pathName The name to move the file to, relative to
+	 * the share directory.
+	 * @param md5 The MD5 hash of content to match against.
+	 * @return boolean True if the file was moved.
+	 */
+	public boolean moveFile(String oldPathName, String pathName, String md5) {
+		String separator = FileSystems.getDefault().getSeparator();
+		String oldFullPathName=root+separator+separatorsToSystem(oldPathName);
+		String fullPathName=root+separator+separatorsToSystem(pathName);
+		FileDescriptor fileDescriptor = indexedFile(oldFullPathName);
+		if(fileDescriptor==null || !fileDescriptor.md5.equals(md5)) return false;
+		// neither pathname can start loading until the file has been moved, the stripes
+		// are always taken in the same order so that two moves cannot deadlock
+		int oldStripe = lockStripe(oldFullPathName);
+		int stripe = lockStripe(fullPathName);
+		synchronized(loaderLocks[Math.min(oldStripe,stripe)]) {
+			synchronized(loaderLocks[Math.max(oldStripe,stripe)]) {
+				if(loadingFiles.containsKey(oldFullPathName) || loadingFiles.containsKey(fullPathName)) return false;
+				log.info("moving "+oldFullPathName+" to "+fullPathName);
+				synchronized(fileLock(oldFullPathName)) {
+					try {
+						// fails rather than replace anything
+						Files.move(Paths.get(oldFullPathName),Paths.get(fullPathName));
+						return true;
+					} catch (IOException e) {
+						log.warning("unable to move "+oldFullPathName+": "+e.getMessage());
+						return false;
+					}
+				}
+			}
 		}
 	}
 	
 	/**
 	   * Create a file loader for given file name. The file name must not
-	   * already exist, otherwise use {@link #modifyFileLoader(String, String, long)}.
+	   * already exist, otherwise use {@link #modifyFileLoader(String, String, long, long)}.
 	   * The file loader maintains a place holder file with prefix {@link #loadingSuffix}
 	   * on its filename, called a <i>loader file</i>. Such files never generate file system events. The file loader
 	   * can be subsequently accessed via the given name using {@link #writeFile(String, ByteBuffer, long)},
 	   * {@link #checkWriteComplete(String)} and {@link #checkShortcut(String)}.
+	   * A loader file left behind by an earlier loader for the same content is picked up again,
+	   * as is a file loader that has stalled, see {@link #getMissingRanges(String)}.
 	   * @param pathName The name of the file to create, when loading is complete, relative to
 	   * the share directory.
 	   * @param md5 The MD5 hash of the content that the file contents <i>must</i> match
@@ -392,10 +867,10 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean createFileLoader(String pathName, String md5, long length, long lastModified) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(watchedFiles.containsKey(fullPathName)) return false;
-			if(loadingFiles.containsKey(fullPathName)) return false;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
+			if(indexedFile(fullPathName)!=null) return false;
+			if(loadingFiles.containsKey(fullPathName)) return loadingFiles.get(fullPathName).resume(md5,length);
 			loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
 		}
 		return true;
@@ -409,14 +884,27 @@ public class FileSystemManager extends Thread {
 	 * @param position The position to write the bytes.
 	 * @return True if successfully written, false if there was no associated file loader for the given
 	 * name.
-	 * @throws IOException If there was an error writing the bytes.
+	 * @throws BlockVerificationException If the loader has a block manifest, see
+	 * {@link #setBlockManifest(String, long, List)}, and the bytes are a whole block that does not match
+	 * its digest. Nothing is written, and the block can be written again.
+	 * @throws IOException If there was an error writing the bytes, or the same block has failed verification
+	 * too many times, the loader is no longer available in this case.
 	 */
 	public boolean writeFile(String pathName, ByteBuffer src, long position) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
 			if(!loadingFiles.containsKey(fullPathName)) return false;
-			loadingFiles.get(fullPathName).writeFile(src, position);
+			FileLoader fl = loadingFiles.get(fullPathName);
+			try {
+				fl.writeFile(src, position);
+			} catch (BlockVerificationException e) {
+				if(fl.blockFailures(e.getPosition())<MAX_BLOCK_FAILURES) throw e;
+				loadingFiles.remove(fullPathName);
+				fl.cancel();
+				throw new IOException("giving up on "+pathName+", block at "+e.getPosition()+
+						" failed verification "+MAX_BLOCK_FAILURES+" times");
+			}
 		}
 		return true;
 	}
@@ -427,41 +915,60 @@ public class FileSystemManager extends Thread {
 	 * @param position The position in the file to start reading from.
 	 * @param length The number of bytes to read.
 	 * @return A {@link java.nio.ByteBuffer} if the bytes are successfully read, otherwise null if 
-	 * there was no such file with that content.
+	 * there was no such file with that content. The bytes are between the buffer's position and limit.
 	 * @throws IOException If there were any problems accessing the file system.
 	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
 	 */
 	public ByteBuffer readFile(String md5, long position, long length) throws IOException, NoSuchAlgorithmException {
-		synchronized(this) {
-			if(hashMap.containsKey(md5)) {
-				for(String attempt: hashMap.get(md5)) {
-					try {
-						File file = new File(attempt);
-						log.info("reading file "+file);
-						RandomAccessFile raf = new RandomAccessFile(file, "rw");
-						FileChannel channel = raf.getChannel();
-						FileLock lock = channel.lock();
-						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-						if(currentMd5.equals(md5)) {
-							ByteBuffer bb = ByteBuffer.allocate((int) length);
-							channel.position(position);
-							int read = channel.read(bb);
-							lock.release();
-							channel.close();
-							raf.close();
-							if(read<length) throw new IOException("did not read everything expected");
-							return bb;
-						}
-						lock.release();
-						channel.close();
-						raf.close();
-					} catch (IOException e) {
-						// try another one
-					}
-				}
+		for(Map.Entry<String,Long> attempt : filesWithHash(md5)) {
+			ReadHandle handle = null;
+			try {
+				handle = openReadHandle(attempt.getKey(),md5,attempt.getValue());
+				if(handle==null) continue;
+				log.info("reading file "+attempt.getKey());
+				ByteBuffer bb = ByteBuffer.allocate((int) length);
+				int read = handle.read(bb,position);
+				if(read<length) throw new IOException("did not read everything expected");
+				bb.flip();
+				return bb;
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				if(handle!=null) releaseReadHandle(handle);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Opens a range of bytes of any file containing the matching specific content, to be written
+	 * straight from the file rather than read into memory first, see {@link #readFile(String, long, long)}.
+	 * @param md5 The MD5 hash of the content of the file to read from.
+	 * @param position The position in the file of the range.
+	 * @param length The number of bytes in the range.
+	 * @return The region, which must be closed once it has been written, or null if there was no such
+	 * file with that content, or the range is not within the file.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
+	 */
+	public FileRegion openFileRegion(String md5, long position, long length) throws IOException, NoSuchAlgorithmException {
+		for(Map.Entry<String,Long> attempt : filesWithHash(md5)) {
+			ReadHandle handle = null;
+			try {
+				handle = openReadHandle(attempt.getKey(),md5,attempt.getValue());
+				if(handle==null) continue;
+				if(position<0 || length<0 || position+length>handle.channel.size()) return null;
+				log.info("reading file "+attempt.getKey());
+				FileRegion region = new FileRegion(handle,position,length);
+				handle = null;
+				return region;
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				if(handle!=null) releaseReadHandle(handle);
 			}
-			return null;
 		}
+		return null;
 	}
 	
 	/**
@@ -479,8 +986,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean checkWriteComplete(String pathName) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
 			if(!loadingFiles.containsKey(fullPathName)) return false;
 			boolean check=false;
 			try {
@@ -501,7 +1008,8 @@ public class FileSystemManager extends Thread {
 	/**
 	 * Should be called directly after creating a file loader, but can be called at any time.
 	 * Requests the file loader to check if another file already exists with the same content,
-	 * and if so, uses that file's content (i.e. does a copy) to create the intended file. The
+	 * and if so, uses that file's content (i.e. does a copy, or makes a hard link when
+	 * <code>shortcutMode</code> is <code>link</code>) to create the intended file. The
 	 * file loader is then complete and is no longer accessible.
 	 * This is much faster than transferring the bytes of the file
 	 * from a remote source.
@@ -512,8 +1020,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean checkShortcut(String pathName) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
 			if(!loadingFiles.containsKey(fullPathName)) return false;
 			boolean check=false;
 			try {
@@ -542,16 +1050,36 @@ public class FileSystemManager extends Thread {
 	 * for the loader to be successfully created.
 	 * @return True if the loader was successfully created.
 	 * @throws IOException If there were any errors accessing the file system. 
+	 * @deprecated The loaded file is expected to be the same length as the existing file, use
+	 * {@link #modifyFileLoader(String, String, long, long)} instead.
 	 */
+	@Deprecated
 	public boolean modifyFileLoader(String pathName, String md5, long lastModified) throws IOException {
+		return modifyFileLoader(pathName,md5,-1,lastModified);
+	}
+	
+	/**
+	 * Called to create a file loader in the case when a file name already exists. The existing
+	 * file must have a last modified timestamp that is less than or equal to the supplied one. See
+	 * {@link #createFileLoader(String, String)} for more details about the file loader.
+	 * @param pathName The name of the file to modify.
+	 * @param md5 The MD5 hash of the content that the loaded file <i>must</i> have in order
+	 * for the loading to complete.
+	 * @param length The length of the file when loading is complete.
+	 * @param lastModified The existing file's timestamp must be less than this time stamp
+	 * for the loader to be successfully created.
+	 * @return True if the loader was successfully created.
+	 * @throws IOException If there were any errors accessing the file system. 
+	 */
+	public boolean modifyFileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(loadingFiles.containsKey(fullPathName)) return false;
-			if(watchedFiles.containsKey(fullPathName) && watchedFiles.get(fullPathName).lastModified<=lastModified) {
-				loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,
-													watchedFiles.get(fullPathName).fileSize,
-													lastModified));
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
+			FileDescriptor fileDescriptor = indexedFile(fullPathName);
+			if(fileDescriptor!=null && fileDescriptor.lastModified<=lastModified) {
+				if(length<0) length=fileDescriptor.fileSize;
+				if(loadingFiles.containsKey(fullPathName)) return loadingFiles.get(fullPathName).resume(md5,length);
+				loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
 			} else return false;
 		}
 		return true;
@@ -566,8 +1094,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean cancelFileLoader(String pathName) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
 			if(loadingFiles.containsKey(fullPathName)) {
 				boolean success = false;
 				try {
@@ -585,268 +1113,2446 @@ public class FileSystemManager extends Thread {
 		return false;
 	}
 	
-	// synchronization
+	/**
+	 * Lists the parts of the file that the file loader for the given name has not been given yet,
+	 * which may be less than the whole file when a loader has been picked up again.
+	 * @param pathName The name of the file for the associated file loader.
+	 * @return The missing ranges as pairs of position and length, in order, or null if there is
+	 * no file loader for the given name.
+	 */
+	public ArrayList<long[]> getMissingRanges(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
+			FileLoader loader = loadingFiles.get(fullPathName);
+			return loader!=null ? loader.missing() : null;
+		}
+	}
 	
 	/**
-	 * Typically called at the beginning of a connection, in order to ensure that
-	 * the remote directory has all of the same contents as the local directory.
-	 * @return A list of file system events that create the entire contents of the
-	 * share directory.
+	 * Gives the file loader for the given name the digest of every block of the file, so that
+	 * whole blocks can be checked before they are written, see {@link #writeFile(String, ByteBuffer, long)}.
+	 * @param pathName The name of the file for the associated file loader.
+	 * @param blockSize The size of the blocks, all but the last block are this size.
+	 * @param blocks The MD5 hash of each block, in order, as given by {@link #getBlockManifest(String, long)}.
+	 * @return True if the manifest was accepted, false if there is no file loader for the given name or the
+	 * manifest does not fit the file.
 	 */
-	public ArrayList<FileSystemEvent> generateSyncEvents() {
-		synchronized(this) {
-			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
-			ArrayList<String> keys = new ArrayList<String>(watchedDirectories);
-			for(String pathname : keys) {
-				File file = new File(pathname);
-				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+	public boolean setBlockManifest(String pathName, long blockSize, List<String> blocks) {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
+			FileLoader loader = loadingFiles.get(fullPathName);
+			return loader!=null && loader.setManifest(blockSize, blocks);
+		}
+	}
+	
+	/**
+	 * Computes the block manifest of any file containing the matching specific content, i.e. the MD5 hash
+	 * of each block of the file, which a remote file loader can use to check each block as it arrives.
+	 * The last {@link #MANIFEST_CACHE_SIZE} manifests are kept, so that a file fetched by several peers
+	 * is only read for the first of them.
+	 * @param md5 The MD5 hash of the content of the file.
+	 * @param blockSize The size of the blocks, all but the last block are this size.
+	 * @return The MD5 hash of each block, in order, or null if there was no such file with that content
+	 * or it has more than {@link #MAX_MANIFEST_BLOCKS} blocks.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<String> getBlockManifest(String md5, long blockSize) throws IOException, NoSuchAlgorithmException {
+		if(blockSize<=0) return null;
+		String key = md5+":"+blockSize;
+		// peers asking for the same manifest at once wait for the first to compute it
+		synchronized(manifestLocks[lockStripe(key)]) {
+			synchronized(manifests) {
+				ArrayList<String> blocks = manifests.get(key);
+				if(blocks!=null) return new ArrayList<String>(blocks);
 			}
-			Collections.sort(pathevents,(arg0,arg1) ->
-				{
-					return arg0.path.length()-arg1.path.length();	
+			ArrayList<String> blocks = computeBlockManifest(md5,blockSize);
+			if(blocks==null) return null;
+			synchronized(manifests) {
+				manifests.put(key,blocks);
+				Iterator<ArrayList<String>> eldest = manifests.values().iterator();
+				while(manifests.size()>MANIFEST_CACHE_SIZE) {
+					eldest.next();
+					eldest.remove();
 				}
-			);
-			keys = new ArrayList<String>(watchedFiles.keySet());
-			for(String pathname : keys) {
-				File file = new File(pathname);
-				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, watchedFiles.get(pathname)));
 			}
-			return pathevents;
+			return new ArrayList<String>(blocks);
 		}
 	}
 	
-	////////////////////
-	// Internals
-	////////////////////
-	
-	private class FileLoader {
-		private String md5;
-		private long length;
-		private long lastModified;
-		private String pathName;
-		private FileChannel channel;
-		private FileLock lock; 
-		private File file;
-		private RandomAccessFile raf;
-		public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
-			this.pathName=pathName;
-			this.md5=md5;
-			this.length=length;
-			this.lastModified=lastModified;
-			file = new File(pathName+loadingSuffix);
-			if(file.exists()) throw new IOException("file loader already in progress");
-			log.info("creating file "+file.getPath());
-			file.createNewFile();
-			raf = new RandomAccessFile(file, "rw");
-			channel = raf.getChannel();
-			lock = channel.lock();
+	private ArrayList<String> computeBlockManifest(String md5, long blockSize) throws IOException, NoSuchAlgorithmException {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		for(Map.Entry<String,Long> attempt : filesWithHash(md5)) {
+			ReadHandle handle = null;
+			try {
+				handle = openReadHandle(attempt.getKey(),md5,attempt.getValue());
+				if(handle==null) continue;
+				long size = handle.channel.size();
+				if((size+blockSize-1)/blockSize>MAX_MANIFEST_BLOCKS) return null;
+				log.info("computing block manifest of "+attempt.getKey());
+				ArrayList<String> blocks = new ArrayList<String>();
+				for(long position=0;position<size;position+=blockSize) {
+					long end = Math.min(position+blockSize,size);
+					Digest.Hasher hasher = digest.newHasher();
+					for(long read=position;read<end;) {
+						buffer.clear();
+						buffer.limit((int) Math.min(buffer.capacity(),end-read));
+						if(handle.read(buffer,read)<buffer.limit()) throw new IOException("did not read everything expected");
+						buffer.flip();
+						hasher.update(buffer);
+						read+=buffer.limit();
+					}
+					blocks.add(hasher.digest());
+				}
+				return blocks;
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				if(handle!=null) releaseReadHandle(handle);
+			}
 		}
-		
-		public boolean cancel() throws IOException {
+		return null;
+	}
+	
+	/**
+	 * Gives the chunks of any file containing the matching specific content, see {@link Chunker}. The
+	 * chunks recorded when the file was hashed are used if there are any, otherwise the file is read.
+	 * @param md5 The MD5 hash of the content of the file.
+	 * @return The chunks in order, or null if there was no such file with that content or it has more
+	 * than {@link #MAX_MANIFEST_BLOCKS} chunks.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<String> getChunks(String md5) throws NoSuchAlgorithmException {
+		ArrayList<Map.Entry<String,Long>> attempts = filesWithHash(md5);
+		lock.readLock().lock();
+		try {
+			for(Map.Entry<String,Long> attempt : attempts) {
+				ArrayList<String> chunks = fileChunks.get(attempt.getKey());
+				FileDescriptor fileDescriptor = watchedFiles.get(attempt.getKey());
+				if(chunks!=null && fileDescriptor!=null && fileDescriptor.md5.equals(md5)) {
+					return chunks.size()<=MAX_MANIFEST_BLOCKS ? chunks : null;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		for(Map.Entry<String,Long> attempt : attempts) {
+			ReadHandle handle = null;
+			try {
+				handle = openReadHandle(attempt.getKey(),md5,attempt.getValue());
+				if(handle==null) continue;
+				log.info("chunking file "+attempt.getKey());
+				Chunker chunker = new Chunker(digest);
+				ByteBuffer buffer = ByteBuffer.allocate(65536);
+				long size = handle.channel.size();
+				for(long position=0;position<size;position+=buffer.limit()) {
+					buffer.clear();
+					if(handle.read(buffer,position)==0) throw new IOException("did not read everything expected");
+					buffer.flip();
+					chunker.update(buffer.array(),0,buffer.limit());
+				}
+				ArrayList<String> chunks = chunker.finish();
+				return chunks.size()<=MAX_MANIFEST_BLOCKS ? chunks : null;
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				if(handle!=null) releaseReadHandle(handle);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Copies every chunk of a file that is already somewhere in the share into the file loader for it,
+	 * so that those chunks do not need to be loaded. Each chunk is checked against its MD5 hash as it is
+	 * copied, and chunks that the loader already has are left alone.
+	 * @param pathName The name of the file for the associated file loader.
+	 * @param chunks The chunks of the file, as given by {@link #getChunks(String)}.
+	 * @return The number of bytes copied, or -1 if there is no file loader for the given name or the
+	 * chunks do not fit the file.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 * @throws IOException If there were any errors writing to the loader file, the loader is no longer
+	 * available in this case.
+	 */
+	public long applyChunks(String pathName, List<String> chunks) throws NoSuchAlgorithmException, IOException {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
+			FileLoader loader = loadingFiles.get(fullPathName);
+			if(loader==null || Chunker.length(chunks)!=loader.length) return -1;
+			long copied = 0;
+			long position = 0;
+			try {
+				for(String chunk : chunks) {
+					int length = Chunker.chunkLength(chunk);
+					if(!loader.isWritten(position,position+length)) {
+						for(Map.Entry<String,Long> source : chunkSources(chunk)) {
+							if(copyChunk(loader,source.getKey(),source.getValue(),position,chunk)) {
+								copied+=length;
+								break;
+							}
+						}
+					}
+					position+=length;
+				}
+			} catch (IOException e) {
+				loadingFiles.remove(fullPathName);
+				loader.cancel();
+				throw e;
+			}
+			log.info("copied "+copied+" bytes of "+fullPathName+" from chunks already in the share");
+			return copied;
+		}
+	}
+	
+	/**
+	 * The size of the blocks to split a file into when looking for the parts of it that have not
+	 * changed. Smaller blocks find more of the file, but need more checksums, so like rsync this is
+	 * around the square root of the file size, and never so small that there are more than
+	 * {@link #MAX_MANIFEST_BLOCKS} blocks.
+	 * @param fileSize The size of the file.
+	 * @return The block size to use for {@link #getBlockChecksums(String, long)}.
+	 */
+	public static long getDeltaBlockSize(long fileSize) {
+		long blockSize = Math.max(DELTA_MIN_BLOCK_SIZE,(long) Math.sqrt(fileSize));
+		return Math.max(blockSize,(fileSize+MAX_MANIFEST_BLOCKS-1)/MAX_MANIFEST_BLOCKS);
+	}
+	
+	/**
+	 * Computes checksums of each whole block of an existing file, which a remote peer with the new
+	 * content for the file can use to find those blocks in it, see {@link #getDeltaCopies(String, long, List)}.
+	 * @param pathName The name of the file, relative to the share directory.
+	 * @param blockSize The size of the blocks, any partial block at the end of the file is left out.
+	 * @return The checksums of each block in order, each of which is the rolling checksum of the block
+	 * as 8 hex digits, a colon, and the hash of the block. Null if the file does not exist, could
+	 * not be read, or has more than {@link #MAX_MANIFEST_BLOCKS} blocks.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<String> getBlockChecksums(String pathName, long blockSize) throws NoSuchAlgorithmException {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		FileDescriptor fileDescriptor = indexedFile(fullPathName);
+		if(fileDescriptor==null || blockSize<=0 || blockSize>Integer.MAX_VALUE ||
+				fileDescriptor.fileSize/blockSize>MAX_MANIFEST_BLOCKS) return null;
+		ReadHandle handle = null;
+		try {
+			handle = openReadHandle(fullPathName,fileDescriptor.md5,fileDescriptor.lastModified);
+			if(handle==null) return null;
+			log.info("computing block checksums of "+fullPathName);
+			long size = handle.channel.size();
+			byte[] block = new byte[(int) blockSize];
+			ArrayList<String> checksums = new ArrayList<String>();
+			for(long position=0;position+blockSize<=size;position+=blockSize) {
+				if(handle.read(ByteBuffer.wrap(block),position)<blockSize) throw new IOException("did not read everything expected");
+				checksums.add(String.format("%08x",rollingChecksum(block))+":"+digest.hash(block,0,block.length));
+			}
+			return checksums;
+		} catch (IOException e) {
+			log.warning("unable to compute block checksums of "+fullPathName+": "+e.getMessage());
+			return null;
+		} finally {
+			if(handle!=null) releaseReadHandle(handle);
+		}
+	}
+	
+	/**
+	 * Finds the blocks of a remote file, given by their checksums, in any file containing the matching
+	 * specific content. The blocks may be found at any position, not just at multiples of the block size.
+	 * The parts of the content that are not in the list of copies have to be read from this file instead.
+	 * @param md5 The MD5 hash of the content of the file to search.
+	 * @param blockSize The size of the blocks.
+	 * @param checksums The checksums of the blocks, as given by {@link #getBlockChecksums(String, long)}.
+	 * @return Where the blocks were found, as the position in the content, the length, and the position in
+	 * the remote file to copy from, in order. Adjacent blocks are combined. Null if there was no such file
+	 * with that content or the checksums are not valid.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<long[]> getDeltaCopies(String md5, long blockSize, List<String> checksums) throws NoSuchAlgorithmException {
+		if(blockSize<=0 || blockSize>Integer.MAX_VALUE || checksums.size()>MAX_MANIFEST_BLOCKS) return null;
+		HashMap<Integer,ArrayList<Integer>> weak = new HashMap<Integer,ArrayList<Integer>>();
+		String[] strong = new String[checksums.size()];
+		for(int i=0;i<checksums.size();i++) {
+			String checksum = checksums.get(i);
+			if(checksum.length()<10 || checksum.charAt(8)!=':') return null;
+			try {
+				int rolling = (int) Long.parseLong(checksum.substring(0,8),16);
+				if(!weak.containsKey(rolling)) weak.put(rolling,new ArrayList<Integer>());
+				weak.get(rolling).add(i);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			strong[i]=checksum.substring(9);
+		}
+		for(Map.Entry<String,Long> attempt : filesWithHash(md5)) {
+			ReadHandle handle = null;
+			try {
+				handle = openReadHandle(attempt.getKey(),md5,attempt.getValue());
+				if(handle==null) continue;
+				log.info("finding blocks of a remote file in "+attempt.getKey());
+				return findBlocks(handle,(int) blockSize,weak,strong);
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				if(handle!=null) releaseReadHandle(handle);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Copies parts of the existing file into the file loader for it, e.g. those given by
+	 * {@link #getDeltaCopies(String, long, List)}, so that they do not need to be loaded.
+	 * @param pathName The name of the file for the associated file loader, which must already exist.
+	 * @param copies The parts to copy, as the position in the loaded file, the length, and the
+	 * position in the existing file.
+	 * @return True if the parts were copied, false if there is no file loader for the given name or
+	 * the existing file has changed.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 * @throws IOException If there were any errors accessing the file system, or the parts are not
+	 * within the files, the loader is no longer available in this case.
+	 */
+	public boolean applyDeltaCopies(String pathName, List<long[]> copies) throws NoSuchAlgorithmException, IOException {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(loaderLock(fullPathName)) {
+			FileLoader loader = loadingFiles.get(fullPathName);
+			FileDescriptor fileDescriptor = indexedFile(fullPathName);
+			if(loader==null || fileDescriptor==null) return false;
+			ReadHandle handle = null;
+			try {
+				handle = openReadHandle(fullPathName,fileDescriptor.md5,fileDescriptor.lastModified);
+				if(handle==null) return false;
+				loader.copyFrom(handle,copies);
+			} catch (IOException e) {
+				loadingFiles.remove(fullPathName);
+				loader.cancel();
+				throw e;
+			} finally {
+				if(handle!=null) releaseReadHandle(handle);
+			}
+			return true;
+		}
+	}
+	
+	// synchronization
+	
+	/**
+	 * Typically called at the beginning of a connection, in order to ensure that
+	 * the remote directory has all of the same contents as the local directory.
+	 * @return A list of file system events that create the entire contents of the
+	 * share directory.
+	 */
+	public ArrayList<FileSystemEvent> generateSyncEvents() {
+		HashSet<String> held = getHeldPathNames();
+		lock.readLock().lock();
+		try {
+			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+			ArrayList<String> keys = new ArrayList<String>(watchedDirectories);
+			for(String pathname : keys) {
+				File file = new File(pathname);
+				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+			}
+			Collections.sort(pathevents,(arg0,arg1) ->
+				{
+					return arg0.path.length()-arg1.path.length();	
+				}
+			);
+			keys = new ArrayList<String>(watchedFiles.keySet());
+			for(String pathname : keys) {
+				File file = new File(pathname);
+				if(held.contains(pathname.substring(root.length()+1))) continue;
+				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, watchedFiles.get(pathname)));
+			}
+			return pathevents;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The digest of a directory, which is the {@link Digest} of the names of everything in it along
+	 * with the hash of each file and the digest of each directory, so that two peers' directories
+	 * have the same digest only if they have all of the same contents. Digests are remembered
+	 * and only computed again for the directories above whatever has changed, so comparing a whole
+	 * share with another peer's takes one digest when they are the same.
+	 * @param pathName The name of the directory, relative to the share directory, or the empty
+	 * string for the share directory itself.
+	 * @return The digest of the directory, or null if there is no such directory.
+	 */
+	public String getDirectoryDigest(String pathName) {
+		lock.readLock().lock();
+		try {
+			DirectoryDescriptor descriptor = directoryDescriptors.get(fullDirectoryName(pathName));
+			return descriptor!=null ? directoryDigest(descriptor) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param pathName The name of the directory, relative to the share directory, or the empty
+	 * string for the share directory itself.
+	 * @return What is directly in the directory, or null if there is no such directory.
+	 */
+	public DirectoryListing getDirectoryListing(String pathName) {
+		lock.readLock().lock();
+		try {
+			DirectoryDescriptor descriptor = directoryDescriptors.get(fullDirectoryName(pathName));
+			if(descriptor==null) return null;
+			DirectoryListing listing = new DirectoryListing(directoryDigest(descriptor));
+			for(String pathname : descriptor.files) {
+				FileDescriptor fileDescriptor = watchedFiles.get(pathname);
+				if(fileDescriptor!=null) listing.files.put(new File(pathname).getName(),fileDescriptor.md5);
+			}
+			for(String pathname : descriptor.directories) {
+				DirectoryDescriptor child = directoryDescriptors.get(pathname);
+				if(child!=null) listing.directories.put(new File(pathname).getName(),directoryDigest(child));
+			}
+			return listing;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Compares a directory with another peer's listing of the same directory, in order to ensure
+	 * that the remote directory has all of the same contents as the local one, like
+	 * {@link #generateSyncEvents()} but for only what the remote directory does not have.
+	 * Files that the remote directory has with different content are left alone, as they are by a full sync,
+	 * and files whose events are still being held back are left out.
+	 * @param pathName The name of the directory, relative to the share directory, or the empty
+	 * string for the share directory itself.
+	 * @param listing The other peer's listing of the directory.
+	 * @param differing The directories in this directory, relative to the share directory,
+	 * that the remote directory also has but with different contents, are added to this list.
+	 * @return A list of file system events that create what is in the directory, and in the
+	 * directories in it, that the remote directory does not have.
+	 */
+	public ArrayList<FileSystemEvent> generateSyncEvents(String pathName, DirectoryListing listing, List<String> differing) {
+		HashSet<String> held = getHeldPathNames();
+		lock.readLock().lock();
+		try {
+			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+			ArrayList<FileSystemEvent> fileevents=new ArrayList<FileSystemEvent>();
+			DirectoryDescriptor descriptor = directoryDescriptors.get(fullDirectoryName(pathName));
+			if(descriptor==null) return pathevents;
+			for(String pathname : descriptor.files) {
+				File file = new File(pathname);
+				if(!listing.files.containsKey(file.getName()) && !held.contains(pathname.substring(root.length()+1))) {
+					fileevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(pathname)));
+				}
+			}
+			for(String pathname : descriptor.directories) {
+				DirectoryDescriptor child = directoryDescriptors.get(pathname);
+				String remoteDigest = listing.directories.get(new File(pathname).getName());
+				if(remoteDigest==null) {
+					addSyncEvents(pathname,child,held,pathevents,fileevents);
+				} else if(!remoteDigest.equals(directoryDigest(child))) {
+					differing.add(pathname.substring(root.length()+1));
+				}
+			}
+			pathevents.addAll(fileevents);
+			return pathevents;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds the events that create a directory and everything in it, parents before children.
+	 */
+	private void addSyncEvents(String name, DirectoryDescriptor descriptor, HashSet<String> held,
+			ArrayList<FileSystemEvent> pathevents, ArrayList<FileSystemEvent> fileevents) {
+		File file = new File(name);
+		pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+		for(String pathname : descriptor.files) {
+			File child = new File(pathname);
+			if(held.contains(pathname.substring(root.length()+1))) continue;
+			fileevents.add(new FileSystemEvent(child.getParent(),child.getName(),EVENT.FILE_CREATE,watchedFiles.get(pathname)));
+		}
+		for(String pathname : descriptor.directories) {
+			addSyncEvents(pathname,directoryDescriptors.get(pathname),held,pathevents,fileevents);
+		}
+	}
+	
+	/**
+	 * @return The pathnames, relative to the share directory, of the files whose events are
+	 * being held back, which are left out of syncs until they are emitted. Taken before the
+	 * read lock, since the coalescer emits events while holding its own lock.
+	 */
+	private HashSet<String> getHeldPathNames() {
+		return coalescer!=null ? coalescer.getHeld() : new HashSet<String>();
+	}
+	
+	private String fullDirectoryName(String pathName) {
+		if(pathName.isEmpty()) return root;
+		return root+FileSystems.getDefault().getSeparator()+separatorsToSystem(pathName);
+	}
+	
+	/**
+	 * Every event that is emitted is first added to a journal, with the next sequence number,
+	 * so that a peer that has seen the events up to some number can be sent only the ones after it,
+	 * see {@link #getJournalEvents(Document)}. The journal is kept in the {@link #metadataDirectory}
+	 * with the last <code>journalSegments</code> segments of {@link Journal#SEGMENT_RECORDS} events,
+	 * and is reset when the share is found to have changed while the file system manager was stopped.
+	 * @return The position of the journal, as the journal's <code>id</code>, and the last
+	 * sequence number <code>seen</code> of each other peer's journal, by its id, or null if
+	 * there is no journal.
+	 */
+	public Document getJournalPosition() {
+		Journal journal = this.journal;
+		if(journal==null) return null;
+		Document seen = new Document();
+		for(Map.Entry<String,Long> entry : journal.getSeen().entrySet()) {
+			seen.append(entry.getKey(),entry.getValue());
+		}
+		Document position = new Document();
+		position.append("id",journal.getId());
+		position.append("seen",seen);
+		return position;
+	}
+	
+	/**
+	 * @param position Another peer's journal position, see {@link #getJournalPosition()}.
+	 * @return The events that the other peer has not seen, in order, or null if the other peer
+	 * has not seen this journal, or the journal no longer goes back far enough.
+	 */
+	public ArrayList<FileSystemEvent> getJournalEvents(Document position) {
+		Journal journal = this.journal;
+		if(journal==null || position==null || !(position.get("seen") instanceof Document)) return null;
+		Document seen = (Document) position.get("seen");
+		if(!seen.containsKey(journal.getId())) return null;
+		ArrayList<Document> records;
+		try {
+			records = journal.readAfter(seen.getLong(journal.getId()));
+		} catch (IOException e) {
+			log.warning("unable to read the journal: "+e.getMessage());
+			return null;
+		}
+		if(records==null) return null;
+		ArrayList<FileSystemEvent> pathevents = new ArrayList<FileSystemEvent>();
+		for(Document record : records) {
+			pathevents.add(fromJournalRecord(record));
+		}
+		return pathevents;
+	}
+	
+	/**
+	 * Records the sequence number of the last event received from another peer's journal.
+	 * @param journalId The id of the other peer's journal.
+	 * @param sequence The sequence number of the event.
+	 */
+	public void setJournalSeen(String journalId, long sequence) {
+		Journal journal = this.journal;
+		if(journal!=null) journal.setSeen(journalId,sequence);
+	}
+	
+	/**
+	 * Gives the events that have the same effect as a move event, for those that cannot
+	 * move files and directories: everything is created under the new pathname and then deleted
+	 * from the old one. A moved directory is taken to have had what it has now.
+	 * @param move A {@link EVENT#FILE_MOVE} or {@link EVENT#DIRECTORY_MOVE} event.
+	 * @return The events to use instead, in order.
+	 */
+	public ArrayList<FileSystemEvent> expandMove(FileSystemEvent move) {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		ArrayList<FileSystemEvent> deleteevents=new ArrayList<FileSystemEvent>();
+		String oldName=root+FileSystems.getDefault().getSeparator()+separatorsToSystem(move.oldPathName);
+		if(move.event==EVENT.FILE_MOVE) {
+			File oldFile = new File(oldName);
+			pathevents.add(new FileSystemEvent(move.path,move.name,EVENT.FILE_CREATE,move.fileDescriptor));
+			pathevents.add(new FileSystemEvent(oldFile.getParent(),oldFile.getName(),EVENT.FILE_DELETE,move.fileDescriptor));
+			return pathevents;
+		}
+		lock.readLock().lock();
+		try {
+			expandDirectoryMove(move.path+FileSystems.getDefault().getSeparator()+move.name,oldName,
+					pathevents,deleteevents);
+		} finally {
+			lock.readLock().unlock();
+		}
+		// the contents of each directory are deleted before it
+		Collections.reverse(deleteevents);
+		pathevents.addAll(deleteevents);
+		return pathevents;
+	}
+	
+	/**
+	 * Gives the events that have the same effect as moving a directory that is now at the given
+	 * pathname, for a peer that could not move it, see {@link #expandMove(FileSystemEvent)}.
+	 * @param pathName The name the directory was moved to, relative to the share directory.
+	 * @param oldPathName The name the directory was moved from, relative to the share directory.
+	 * @return The events to use instead, in order.
+	 */
+	public ArrayList<FileSystemEvent> expandDirectoryMove(String pathName, String oldPathName) {
+		File file = new File(root+FileSystems.getDefault().getSeparator()+separatorsToSystem(pathName));
+		return expandMove(new FileSystemEvent(file.getParent(),file.getName(),oldPathName,EVENT.DIRECTORY_MOVE,null));
+	}
+	
+	////////////////////
+	// Internals
+	////////////////////
+	
+	/**
+	 * Adds the events for creating a directory and everything in it to pathevents, and the events
+	 * for deleting the same from its old pathname to deleteevents, parents first. Must be called
+	 * while holding the lock.
+	 */
+	private void expandDirectoryMove(String name, String oldName, ArrayList<FileSystemEvent> pathevents,
+			ArrayList<FileSystemEvent> deleteevents) {
+		File file = new File(name);
+		File oldFile = new File(oldName);
+		pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+		deleteevents.add(new FileSystemEvent(oldFile.getParent(),oldFile.getName(),EVENT.DIRECTORY_DELETE));
+		DirectoryDescriptor descriptor = directoryDescriptors.get(name);
+		if(descriptor==null) return;
+		for(String fileName : descriptor.files) {
+			FileDescriptor fileDescriptor = watchedFiles.get(fileName);
+			file = new File(fileName);
+			oldFile = new File(oldName+fileName.substring(name.length()));
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,fileDescriptor));
+			deleteevents.add(new FileSystemEvent(oldFile.getParent(),oldFile.getName(),EVENT.FILE_DELETE,fileDescriptor));
+		}
+		for(String dirName : descriptor.directories) {
+			expandDirectoryMove(dirName,oldName+dirName.substring(name.length()),pathevents,deleteevents);
+		}
+	}
+	
+	/**
+	 * A read only channel to a file in the share directory, with a shared lock on the file, that
+	 * is kept open for as long as it stays in the {@link #readHandles} cache. The channel is only ever
+	 * read with positional reads, so that any number of threads can use it at once.
+	 */
+	private class ReadHandle {
+		private String name;
+		private String md5;
+		private long lastModified;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private FileLock lock;
+		private int users;
+		private boolean cached;
+		
+		public ReadHandle(String name, String md5, long lastModified) throws IOException {
+			this.name=name;
+			this.md5=md5;
+			this.lastModified=lastModified;
+			raf = new RandomAccessFile(name, "r");
+			channel = raf.getChannel();
+			try {
+				lock = channel.lock(0, Long.MAX_VALUE, true);
+			} catch (OverlappingFileLockException e) {
+				// a retired handle that is still being read from holds the lock
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Reads from the given position until the buffer is full or the end of the file is reached.
+		 * @return The number of bytes read.
+		 */
+		public int read(ByteBuffer dst, long position) throws IOException {
+			int total = 0;
+			while(dst.hasRemaining()) {
+				int read = channel.read(dst, position+total);
+				if(read<0) break;
+				total+=read;
+			}
+			return total;
+		}
+		
+		private void close() {
+			try {
+				if(lock!=null) lock.release();
+				channel.close();
+				raf.close();
+			} catch (IOException e) {
+				log.warning("unable to close "+name+": "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Loads a file from blocks that may arrive in any order. The byte ranges that have been
+	 * written are remembered, and the MD5 hash is computed as the bytes from the start of the
+	 * file arrive, so that the file is only checked once all of it has been written.
+	 * <br/>
+	 * The written ranges are also saved next to the loader file, so that a loader file left
+	 * behind by a lost connection or a restart is picked up again by the next loader for the
+	 * same content, and only the missing ranges need to be loaded.
+	 */
+	private class FileLoader {
+		private String md5;
+		private long length;
+		private long lastModified;
+		private String pathName;
+		private FileChannel channel;
+		private FileLock lock; 
+		private File file;
+		private RandomAccessFile raf;
+		/**
+		 * The ranges of bytes written so far, as start to end (exclusive), none of them adjacent.
+		 */
+		private TreeMap<Long,Long> written = new TreeMap<Long,Long>();
+		private Digest.Hasher hasher;
+		/**
+		 * The number of bytes from the start of the file that have been given to the digest, unless
+		 * bytes already digested have been written again, in which case the digest is no good.
+		 */
+		private long digested;
+		private boolean digestValid = true;
+		private File rangesFile;
+		private long lastRangesSave;
+		private long lastWrite;
+		/**
+		 * The block manifest of the file, if one was given, and how often each block failed to match.
+		 */
+		private long manifestBlockSize;
+		private List<String> manifest;
+		private int[] manifestFailures;
+		public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
+			this.pathName=pathName;
+			this.md5=md5;
+			this.length=length;
+			this.lastModified=lastModified;
+			hasher = digest.newHasher();
+			file = new File(pathName+loadingSuffix);
+			rangesFile = new File(pathName+loadingSuffix+".ranges"+loadingSuffix);
+			boolean resuming = file.exists();
+			log.info((resuming ? "reopening file " : "creating file ")+file.getPath());
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			lock = channel.tryLock();
+			if(lock==null) {
+				channel.close();
+				raf.close();
+				throw new IOException("file loader already in progress");
+			}
+			lastRangesSave=System.currentTimeMillis();
+			lastWrite=lastRangesSave;
+			try {
+				if(resuming && loadRanges()) {
+					log.info("resuming "+file.getPath()+" with "+(length-missingBytes())+" of "+length+" bytes");
+					digestWritten();
+				} else {
+					written.clear();
+					channel.truncate(0);
+					rangesFile.delete();
+				}
+			} catch (IOException e) {
+				lock.release();
+				channel.close();
+				raf.close();
+				throw e;
+			}
+		}
+		
+		public boolean cancel() throws IOException {
 			lock.release();
 			channel.close();
 			raf.close();
+			rangesFile.delete();
 			return file.delete();
 		}
 		
-		public boolean checkShortcut() throws NoSuchAlgorithmException, IOException {
-			// check for a shortcut
-			boolean success=false;
-			if(hashMap.containsKey(md5)) {
-				for(String attempt: hashMap.get(md5)) {
-					RandomAccessFile raf2 = null;
-					FileChannel channel2 = null;
-					FileLock lock2 = null;
-					try {
-						File file = new File(attempt);
-						raf2 = new RandomAccessFile(file, "rw");
-						channel2 = raf2.getChannel();
-						lock2 = channel2.lock();
-						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-						if(currentMd5.equals(md5)) {
-							Path dest = Paths.get(pathName);
-							CopyOption[] options = new CopyOption[]{
-							          StandardCopyOption.REPLACE_EXISTING
-							};
-							InputStream is = Channels.newInputStream(channel2);
-							Files.copy(is, dest, options);
-				    		dest.toFile().setLastModified(lastModified);
-							success=true;
-							break;
-						}
-					} catch (IOException e) {
-						e.printStackTrace(); // try another one
-					}
-					finally {
-						if (lock2 != null) lock2.release();
-						if (channel2 != null) channel2.close();
-						if (raf2 != null) raf2.close();
-					}
+		/**
+		 * Called when another loader is wanted for the same file, which it can be
+		 * if it is for the same content and the current transfer has stalled.
+		 * @return True if this loader should be used again.
+		 */
+		public boolean resume(String md5, long length) {
+			return this.md5.equals(md5) && this.length==length &&
+					System.currentTimeMillis()-lastWrite>=LOADER_IDLE_TIME*1000;
+		}
+		
+		public boolean setManifest(long blockSize, List<String> blocks) {
+			if(blockSize<=0 || blocks.size()!=(length+blockSize-1)/blockSize) return false;
+			manifestBlockSize=blockSize;
+			manifest=new ArrayList<String>(blocks);
+			manifestFailures=new int[blocks.size()];
+			return true;
+		}
+		
+		/**
+		 * @return How many times the block at the given position has failed verification.
+		 */
+		public int blockFailures(long position) {
+			return manifest!=null ? manifestFailures[(int) (position/manifestBlockSize)] : 0;
+		}
+		
+		/**
+		 * Checks the bytes against the manifest, if they are exactly one block of it.
+		 */
+		private void verifyBlock(ByteBuffer src, long position) throws BlockVerificationException {
+			if(manifest==null || position%manifestBlockSize!=0) return;
+			long blockEnd = Math.min(position+manifestBlockSize,length);
+			if(position+src.remaining()!=blockEnd) return;
+			int index = (int) (position/manifestBlockSize);
+			if(!digest.hash(src).equals(manifest.get(index))) {
+				manifestFailures[index]++;
+				throw new BlockVerificationException(pathName,position,blockEnd-position);
+			}
+		}
+		
+		public void copyFrom(ReadHandle handle, List<long[]> copies) throws IOException {
+			long sourceSize = handle.channel.size();
+			for(long[] copy : copies) {
+				long position = copy[0];
+				long end = copy[0]+copy[1];
+				long source = copy[2];
+				if(position<0 || end<position || end>length || source<0 || source+copy[1]>sourceSize) {
+					throw new IOException("trying to copy bytes beyond what is expected");
+				}
+				while(position<end) {
+					channel.position(position);
+					long copied = handle.channel.transferTo(source,end-position,channel);
+					if(copied<=0) throw new IOException("did not copy everything expected");
+					position+=copied;
+					source+=copied;
+				}
+				if(copy[0]<digested) digestValid=false;
+				addWritten(copy[0],end);
+			}
+			lastWrite=System.currentTimeMillis();
+			saveRanges();
+			if(digestValid) digestWritten();
+		}
+		
+		/**
+		 * @return The ranges of the file that have not been written yet, as position and length.
+		 */
+		public ArrayList<long[]> missing() {
+			ArrayList<long[]> missing = new ArrayList<long[]>();
+			long position = 0;
+			for(Map.Entry<Long,Long> range : written.entrySet()) {
+				if(range.getKey()>position) missing.add(new long[]{position,range.getKey()-position});
+				position=range.getValue();
+			}
+			if(position<length) missing.add(new long[]{position,length-position});
+			return missing;
+		}
+		
+		private long missingBytes() {
+			long missing = 0;
+			for(long[] range : missing()) missing+=range[1];
+			return missing;
+		}
+		
+		/**
+		 * Reads the written ranges saved by an earlier loader for this file.
+		 * @return False if there are none, or they were for different content.
+		 */
+		private boolean loadRanges() {
+			if(!rangesFile.exists()) return false;
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(rangesFile)))) {
+				if(in.readInt()!=LOADER_MAGIC || !in.readUTF().equals(md5) || in.readLong()!=length) return false;
+				int count = in.readInt();
+				for(int i=0;i<count;i++) {
+					long start = in.readLong();
+					long end = in.readLong();
+					if(start<0 || end<start || end>length || end>channel.size()) return false;
+					addWritten(start,end);
+				}
+				return in.readInt()==LOADER_MAGIC;
+			} catch (IOException e) {
+				log.warning("ignoring unreadable ranges "+rangesFile.getPath()+": "+e.getMessage());
+				return false;
+			}
+		}
+		
+		/**
+		 * Saves the written ranges, once the bytes in them are safely on disk.
+		 */
+		public void saveRanges() {
+			lastRangesSave=System.currentTimeMillis();
+			try {
+				channel.force(false);
+				FileOutputStream fos = new FileOutputStream(rangesFile);
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+					out.writeInt(LOADER_MAGIC);
+					out.writeUTF(md5);
+					out.writeLong(length);
+					out.writeInt(written.size());
+					for(Map.Entry<Long,Long> range : written.entrySet()) {
+						out.writeLong(range.getKey());
+						out.writeLong(range.getValue());
+					}
+					out.writeInt(LOADER_MAGIC);
+					out.flush();
+					fos.getFD().sync();
+				}
+			} catch (IOException e) {
+				log.warning("unable to save ranges "+rangesFile.getPath()+": "+e.getMessage());
+			}
+		}
+		
+		public boolean checkShortcut() throws NoSuchAlgorithmException, IOException {
+			// check for a shortcut
+			for(Map.Entry<String,Long> attempt : filesWithHash(md5)) {
+				ReadHandle handle = null;
+				try {
+					handle = openReadHandle(attempt.getKey(),md5,attempt.getValue());
+					if(handle==null) continue;
+					if(linkShortcuts && link(attempt.getKey())) {
+						lock.release();
+						channel.close();
+						raf.close();
+						file.delete();
+						rangesFile.delete();
+						loaded(new File(pathName));
+						return true;
+					}
+					// the content is the same, so whatever was already written is overwritten with the same bytes
+					long size = handle.channel.size();
+					long position = 0;
+					channel.position(0);
+					while(position<size) {
+						long transferred = handle.channel.transferTo(position,size-position,channel);
+						if(transferred<=0) throw new IOException("file is shorter than expected");
+						position+=transferred;
+					}
+					channel.truncate(size);
+				} catch (IOException e) {
+					e.printStackTrace(); // try another one
+					continue;
+				} finally {
+					if(handle!=null) releaseReadHandle(handle);
+				}
+				complete();
+				return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Makes the file a hard link to the given file, replacing the existing file in one step.
+		 * @return True if the link was made, false if links are not supported here.
+		 */
+		private boolean link(String source) {
+			Path temp = Paths.get(pathName+loadingSuffix+".link"+loadingSuffix);
+			Path dest = Paths.get(pathName);
+			try {
+				Files.deleteIfExists(temp);
+				Files.createLink(temp, Paths.get(source));
+				try {
+					Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING);
+				}
+				// renaming a link over another link to the same file does nothing
+				Files.deleteIfExists(temp);
+				log.info("linked "+pathName+" to "+source+", keeping its last modified timestamp");
+				return true;
+			} catch (IOException | UnsupportedOperationException e) {
+				log.warning("unable to link "+pathName+" to "+source+", copying instead: "+e.getMessage());
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e2) {
+					// the scanner ignores it
+				}
+				return false;
+			}
+		}
+		
+		/**
+		 * Closes the loader file and puts it in place of the file being loaded.
+		 */
+		private void complete() throws IOException {
+			lock.release();
+			channel.close();
+			raf.close();
+			rangesFile.delete();
+			File dest = new File(pathName);
+			if(dest.exists()) dest.delete();
+			file.renameTo(dest);
+			dest.setLastModified(lastModified);
+			loaded(dest);
+		}
+		
+		/**
+		 * Remembers the hash of the completed file, so that the scanner does not need to read it again.
+		 */
+		private void loaded(File dest) {
+			loadedFiles.put(pathName, new FileDescriptor(dest.lastModified(),md5,dest.length()));
+		}
+		
+		public void writeFile(ByteBuffer src, long position) throws IOException {
+			long end = position+src.remaining();
+			if(position<0 || end>length) throw new IOException("trying to write bytes beyond what is expected");
+			verifyBlock(src, position);
+			ByteBuffer block = src.duplicate();
+			long start = position;
+			long offset = position;
+			while(src.hasRemaining()) {
+				offset+=channel.write(src, offset);
+			}
+			addWritten(start,end);
+			lastWrite=System.currentTimeMillis();
+			if(lastWrite-lastRangesSave>=LOADER_RANGES_SAVE_INTERVAL*1000) saveRanges();
+			if(!digestValid) return;
+			if(start<digested) {
+				digestValid=false;
+				return;
+			}
+			if(start==digested) {
+				hasher.update(block);
+				digested=end;
+			}
+			// blocks that arrived early can now be digested too
+			digestWritten();
+		}
+		
+		/**
+		 * Gives the digest any written bytes that follow on from those already digested.
+		 */
+		private void digestWritten() throws IOException {
+			Map.Entry<Long,Long> range = written.floorEntry(digested);
+			if(range!=null && range.getValue()>digested) {
+				ByteBuffer buffer = ByteBuffer.allocate(65536);
+				while(digested<range.getValue()) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(),range.getValue()-digested));
+					int read = channel.read(buffer, digested);
+					if(read<0) throw new IOException("loader file is shorter than what was written");
+					buffer.flip();
+					hasher.update(buffer);
+					digested+=read;
+				}
+			}
+		}
+		
+		private void addWritten(long start, long end) {
+			if(start==end) return;
+			Map.Entry<Long,Long> before = written.floorEntry(start);
+			if(before!=null && before.getValue()>=start) {
+				start=before.getKey();
+				end=Math.max(end,before.getValue());
+			}
+			Map.Entry<Long,Long> after = written.ceilingEntry(start);
+			while(after!=null && after.getKey()<=end) {
+				end=Math.max(end,after.getValue());
+				written.remove(after.getKey());
+				after=written.ceilingEntry(start);
+			}
+			written.put(start,end);
+		}
+		
+		/**
+		 * @return True if every byte in the given range has been written.
+		 */
+		public boolean isWritten(long start, long end) {
+			Map.Entry<Long,Long> range = written.floorEntry(start);
+			return start==end || (range!=null && range.getValue()>=end);
+		}
+		
+		/**
+		 * @return True if every byte of the file has been written.
+		 */
+		private boolean isWritten() {
+			return length==0 || (written.size()==1 && written.firstKey()==0 && written.firstEntry().getValue()==length);
+		}
+		
+		public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
+			if(!isWritten()) return false;
+			String currentMd5;
+			if(digestValid && digested==length) {
+				currentMd5 = hasher.digest();
+				digestValid=false; // the hasher is used up
+			} else {
+				currentMd5 = hashFile(file,pathName,0,raf);
+			}
+			if(currentMd5.equals(md5)) {
+				complete();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * What was in a directory when it was last listed.
+	 */
+	private class DirectoryDescriptor {
+		/**
+		 * The last modified timestamp of the directory when it was last listed, or 0 if
+		 * it needs to be listed again.
+		 */
+		private long lastModified;
+		/**
+		 * The file key of the directory once it has been scanned, or null.
+		 */
+		private Object fileKey;
+		/**
+		 * The digest of everything in the directory, see {@link #getDirectoryDigest(String)}, or
+		 * null if something in it has changed since it was last computed.
+		 */
+		private String digest;
+		private HashSet<String> files = new HashSet<String>();
+		private HashSet<String> directories = new HashSet<String>();
+	}
+	
+	private HashSet<String> watchedDirectories;
+	private HashMap<String,DirectoryDescriptor> directoryDescriptors;
+	private HashMap<String,HashSet<String>> hashMap;
+	/**
+	 * How the content of files, and of their blocks and chunks, is hashed. The hashes are still
+	 * called md5 in the API and the protocol, but are only MD5 hashes if that is the digest.
+	 */
+	private Digest digest;
+	/**
+	 * The chunks of each file that has been split into chunks, and where each chunk is,
+	 * as the files it is in and its position in each of them.
+	 */
+	private HashMap<String,ArrayList<String>> fileChunks;
+	private HashMap<String,HashMap<String,Long>> chunkMap;
+	/**
+	 * The files that file loaders have completed, whose hash is already known, until they are scanned.
+	 */
+	private final ConcurrentHashMap<String,FileDescriptor> loadedFiles = new ConcurrentHashMap<String,FileDescriptor>();
+	private boolean linkShortcuts;
+	/**
+	 * What the current scan has dropped that may turn out to have been moved, the file keys of the
+	 * directories and the chunks of the files. Cleared at the end of every scan.
+	 */
+	private HashMap<String,Object> droppedDirectoryKeys = new HashMap<String,Object>();
+	private HashMap<String,ArrayList<String>> droppedChunks = new HashMap<String,ArrayList<String>>();
+	private FileSystemObserver fileSystemObserver;
+	private HashMap<String,FileDescriptor> watchedFiles;
+	private String root;
+	private String cannonicalRoot;
+	private ConcurrentHashMap<String,FileLoader> loadingFiles;
+	private WatchService watchService;
+	private HashMap<WatchKey,String> watchKeys;
+	private HashMap<String,WatchKey> watchedKeys;
+	private long fullScanInterval;
+	private ForkJoinPool scanPool;
+	private ThreadPoolExecutor hashPool;
+	private HashSet<String> pendingHashes;
+	private final Object observerLock = new Object();
+	/**
+	 * Protects the index, i.e. the watched files and directories and everything kept with them.
+	 * Only the monitor thread and the hash workers change the index.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Condition hashesFinished = lock.writeLock().newCondition();
+	/**
+	 * Held while using a file loader, so that loaders for different files are used in parallel.
+	 */
+	private final Object[] loaderLocks = newLockStripes();
+	/**
+	 * Held while opening and locking a file in the share directory, or deleting it, since the
+	 * {@link FileLock} on a file is held by the whole process, not by one thread.
+	 */
+	private final Object[] fileLocks = newLockStripes();
+	/**
+	 * The files most recently read from, in least recently used order. Retired when the
+	 * scanner sees the file change or be deleted.
+	 */
+	private final LinkedHashMap<String,ReadHandle> readHandles = new LinkedHashMap<String,ReadHandle>(16,0.75f,true);
+	
+	/**
+	 * The block manifests most recently requested, by content hash and block size, in least
+	 * recently used order. A manifest only depends on the content, so it never goes stale.
+	 */
+	private final LinkedHashMap<String,ArrayList<String>> manifests = new LinkedHashMap<String,ArrayList<String>>(16,0.75f,true);
+	private final Object[] manifestLocks = newLockStripes();
+	private String indexFile;
+	/**
+	 * Every event emitted, or null if the journal can not be written.
+	 */
+	private volatile Journal journal;
+	/**
+	 * Holds back the events of files that are still changing, or null if events are emitted straight away.
+	 */
+	private EventCoalescer coalescer;
+	private boolean indexDirty;
+	private long lastIndexSave;
+	private final Object indexLock = new Object();
+	
+	private static final int LOCK_STRIPES = 256;
+	
+	/**
+	 * The number of times the same block may fail verification before its file loader is cancelled.
+	 */
+	private static final int MAX_BLOCK_FAILURES = 3;
+	
+	private static final int LOADER_MAGIC = 0x4242584c;
+	
+	/**
+	 * The minimum number of seconds between saves of a file loader's written ranges.
+	 */
+	private static final long LOADER_RANGES_SAVE_INTERVAL = 1;
+	
+	/**
+	 * The number of seconds without any bytes being written after which a file loader is
+	 * taken to have stalled, and can be picked up by a new request for the same content.
+	 */
+	private static final long LOADER_IDLE_TIME = 30;
+	
+	private static final int INDEX_MAGIC = 0x42425849;
+	private static final int INDEX_VERSION = 4;
+	
+	/**
+	 * Directories modified more recently than this many milliseconds before they were listed
+	 * are listed again next time, since a change in the same tick of a coarse timestamp
+	 * would not change the directory's last modified timestamp.
+	 */
+	private static final long MTIME_GRANULARITY = 2000;
+	
+	/**
+	 * Once the watch service has reported a change, the number of milliseconds to wait for it
+	 * to report more, since the two ends of a move may be reported separately. No more than
+	 * {@link #MAX_MOVE_WINDOWS} of these are waited for at a time.
+	 */
+	private static final long MOVE_WINDOW = 100;
+	private static final int MAX_MOVE_WINDOWS = 10;
+	
+	
+	public void run() {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		long lastFullScan = System.currentTimeMillis();
+		while (!isInterrupted()) {
+			
+			if(System.currentTimeMillis()-lastIndexSave>=INDEX_SAVE_INTERVAL*1000) {
+				saveIndex();
+				saveJournal();
+			}
+			
+			// wait for the watch service to report changes, unless a full scan is due
+			HashSet<String> changedPaths = new HashSet<String>();
+			boolean fullScan = watchService==null || System.currentTimeMillis()-lastFullScan>=fullScanInterval;
+			if(!fullScan) {
+				try {
+					fullScan = !pollWatchService(changedPaths);
+				} catch (InterruptedException e) {
+					log.warning(e.getMessage());
+					interrupt();
+					continue;
+				}
+			}
+			if(!fullScan) {
+				if(!changedPaths.isEmpty()) scanChangedPaths(changedPaths);
+				continue;
+			}
+			lastFullScan = System.currentTimeMillis();
+			
+			pathevents.clear();
+			// check for new/modified files, new directories are emitted before any of their files
+			ArrayList<FileSystemEvent> deleteevents=new ArrayList<FileSystemEvent>();
+			ArrayList<HashJob> hashJobs = new ArrayList<HashJob>();
+			lock.writeLock().lock();
+			try {
+				scanDirectoryTree(root,pathevents,deleteevents,hashJobs);
+				detectMoves(pathevents,deleteevents,hashJobs);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			for(FileSystemEvent pathevent : pathevents) {
+				notifyObserver(pathevent);
+			}
+			submitHashJobs(hashJobs,true);
+			
+			// deleted files and directories, deepest first
+			sortDeepestFirst(deleteevents);
+			for(FileSystemEvent pathevent : deleteevents) {
+				notifyObserver(pathevent);
+			}
+			
+			if(watchService==null) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					log.warning(e.getMessage());
+				}
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Sorts delete events so that the contents of a directory are deleted before the directory.
+	 */
+	private static void sortDeepestFirst(ArrayList<FileSystemEvent> pathevents) {
+		Collections.sort(pathevents,(arg0,arg1) ->
+			{
+				return arg1.path.length()-arg0.path.length();	
+			}
+		);
+	}
+	
+	/**
+	 * Saves the written ranges of every file loader, so that they can be resumed after a restart.
+	 */
+	private void saveLoaderRanges() {
+		for(FileLoader loader : loadingFiles.values()) {
+			synchronized(loaderLock(loader.pathName)) {
+				if(loadingFiles.get(loader.pathName)==loader) loader.saveRanges();
+			}
+		}
+	}
+	
+	/**
+	 * Reads the index file, if there is one, into the watched files and directories. Nothing
+	 * is read unless the whole index is intact.
+	 */
+	private void loadIndex() {
+		File file = new File(indexFile);
+		if(!file.exists()) return;
+		HashMap<String,Long> directories = new HashMap<String,Long>();
+		HashMap<String,FileDescriptor> files = new HashMap<String,FileDescriptor>();
+		HashMap<String,ArrayList<String>> chunks = new HashMap<String,ArrayList<String>>();
+		String prefix = root+FileSystems.getDefault().getSeparator();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int version = in.readInt()==INDEX_MAGIC ? in.readInt() : -1;
+			if(version<1 || version>INDEX_VERSION) {
+				log.warning("ignoring index in an unknown format "+indexFile);
+				return;
+			}
+			// versions before 4 were always hashed with MD5
+			String digestName = version>3 ? in.readUTF() : Digest.MD5;
+			if(!digestName.equals(digest.getName())) {
+				log.warning("ignoring index hashed with "+digestName+" instead of "+digest.getName());
+				return;
+			}
+			int count = in.readInt();
+			for(int i=0;i<count;i++) {
+				String name = prefix+separatorsToSystem(in.readUTF());
+				// version 1 did not record directory timestamps, so everything is listed again
+				directories.put(name,version>1 ? in.readLong() : 0);
+			}
+			count = in.readInt();
+			for(int i=0;i<count;i++) {
+				String name = prefix+separatorsToSystem(in.readUTF());
+				long lastModified = in.readLong();
+				long fileSize = in.readLong();
+				files.put(name,new FileDescriptor(lastModified,in.readUTF(),fileSize));
+				// versions before 3 did not record chunks, those files are not chunked until they change
+				int chunkCount = version>2 ? in.readInt() : 0;
+				if(chunkCount>0) {
+					ArrayList<String> fileChunks = new ArrayList<String>(chunkCount);
+					for(int j=0;j<chunkCount;j++) {
+						fileChunks.add(in.readUTF());
+					}
+					chunks.put(name,fileChunks);
+				}
+			}
+			if(in.readInt()!=INDEX_MAGIC) throw new IOException("index is incomplete");
+		} catch (IOException e) {
+			log.warning("ignoring unreadable index "+indexFile+": "+e.getMessage());
+			return;
+		}
+		// parents before their contents
+		ArrayList<String> names = new ArrayList<String>(directories.keySet());
+		Collections.sort(names,(arg0,arg1) ->
+			{
+				return arg0.length()-arg1.length();
+			}
+		);
+		lock.writeLock().lock();
+		try {
+			for(String name : names) {
+				putDir(name);
+				directoryDescriptors.get(name).lastModified=directories.get(name);
+			}
+			for(Map.Entry<String,FileDescriptor> entry : files.entrySet()) {
+				putFile(entry.getKey(),entry.getValue());
+			}
+			for(Map.Entry<String,ArrayList<String>> entry : chunks.entrySet()) {
+				setChunks(entry.getKey(),entry.getValue());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		log.info("loaded index of "+files.size()+" files and "+directories.size()+" directories");
+	}
+	
+	/**
+	 * Writes the watched files and directories to the index file, if they have changed
+	 * since it was last written. The index is written to a temporary file first and then moved
+	 * into place, so that the index file is always complete.
+	 */
+	private void saveIndex() {
+		synchronized(indexLock) {
+			lastIndexSave=System.currentTimeMillis();
+			ArrayList<Map.Entry<String,Long>> directories = new ArrayList<Map.Entry<String,Long>>();
+			ArrayList<Map.Entry<String,FileDescriptor>> files = new ArrayList<Map.Entry<String,FileDescriptor>>();
+			HashMap<String,ArrayList<String>> chunks;
+			lock.writeLock().lock();
+			try {
+				if(!indexDirty || indexFile==null) return;
+				indexDirty=false;
+				for(String name : watchedDirectories) {
+					directories.add(new AbstractMap.SimpleImmutableEntry<String,Long>(name,
+							directoryDescriptors.get(name).lastModified));
+				}
+				for(Map.Entry<String,FileDescriptor> entry : watchedFiles.entrySet()) {
+					FileDescriptor fd = entry.getValue();
+					files.add(new AbstractMap.SimpleImmutableEntry<String,FileDescriptor>(entry.getKey(),
+							new FileDescriptor(fd.lastModified,fd.md5,fd.fileSize)));
+				}
+				// the chunk lists themselves are never changed, only replaced
+				chunks = new HashMap<String,ArrayList<String>>(fileChunks);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			File tmp = new File(indexFile+".tmp");
+			try {
+				FileOutputStream fos = new FileOutputStream(tmp);
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+					out.writeInt(INDEX_MAGIC);
+					out.writeInt(INDEX_VERSION);
+					out.writeUTF(digest.getName());
+					out.writeInt(directories.size());
+					for(Map.Entry<String,Long> entry : directories) {
+						out.writeUTF(entry.getKey().substring(root.length()+1));
+						out.writeLong(entry.getValue());
+					}
+					out.writeInt(files.size());
+					for(Map.Entry<String,FileDescriptor> entry : files) {
+						out.writeUTF(entry.getKey().substring(root.length()+1));
+						out.writeLong(entry.getValue().lastModified);
+						out.writeLong(entry.getValue().fileSize);
+						out.writeUTF(entry.getValue().md5);
+						ArrayList<String> fileChunks = chunks.get(entry.getKey());
+						if(fileChunks==null) {
+							out.writeInt(0);
+						} else {
+							out.writeInt(fileChunks.size());
+							for(String chunk : fileChunks) {
+								out.writeUTF(chunk);
+							}
+						}
+					}
+					out.writeInt(INDEX_MAGIC);
+					out.flush();
+					fos.getFD().sync();
+				}
+				try {
+					Files.move(tmp.toPath(), Paths.get(indexFile), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp.toPath(), Paths.get(indexFile), StandardCopyOption.REPLACE_EXISTING);
+				}
+				log.info("saved index of "+files.size()+" files and "+directories.size()+" directories");
+			} catch (IOException e) {
+				log.warning("unable to save index "+indexFile+": "+e.getMessage());
+				lock.writeLock().lock();
+				try {
+					indexDirty=true;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Waits up to a second for the watch service to report changes, and then collects
+	 * the pathnames of everything that was reported as changed, until nothing more has been
+	 * reported for {@link #MOVE_WINDOW} milliseconds, so that both ends of a move are scanned together.
+	 * @return false if events were lost and a full scan is required.
+	 */
+	private boolean pollWatchService(HashSet<String> changedPaths) throws InterruptedException {
+		boolean complete = true;
+		WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+		long deadline = System.currentTimeMillis()+MAX_MOVE_WINDOWS*MOVE_WINDOW;
+		while(key!=null) {
+			String dir;
+			lock.readLock().lock();
+			try {
+				dir = watchKeys.get(key);
+			} finally {
+				lock.readLock().unlock();
+			}
+			for(WatchEvent<?> event : key.pollEvents()) {
+				if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+					complete=false;
+				} else if(dir!=null) {
+					changedPaths.add(dir+FileSystems.getDefault().getSeparator()+event.context());
+				}
+			}
+			if(!key.reset() && dir!=null && !dir.equals(root)) {
+				// the watched directory itself has gone
+				changedPaths.add(dir);
+			}
+			key = watchService.poll();
+			if(key==null && System.currentTimeMillis()<deadline) {
+				key = watchService.poll(MOVE_WINDOW, TimeUnit.MILLISECONDS);
+			}
+		}
+		return complete;
+	}
+	
+	/**
+	 * Examines only the given pathnames, emitting events for those that have been
+	 * created, modified or deleted. New directories are scanned recursively.
+	 */
+	private void scanChangedPaths(HashSet<String> changedPaths) {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		ArrayList<FileSystemEvent> deleteevents=new ArrayList<FileSystemEvent>();
+		// shallowest first, so that parent directories are created before their contents
+		ArrayList<String> names = new ArrayList<String>(changedPaths);
+		Collections.sort(names,(arg0,arg1) ->
+			{
+				return arg0.length()-arg1.length();
+			}
+		);
+		ArrayList<HashJob> hashJobs = new ArrayList<HashJob>();
+		lock.writeLock().lock();
+		try {
+			for(String name : names) {
+				if(name.endsWith(loadingSuffix)) continue;
+				File file = new File(name);
+				if(file.exists()) {
+					// existing directories report their own contents
+					if(file.isDirectory() && watchedDirectories.contains(name)) continue;
+					scanDirectoryTree(name,pathevents,deleteevents,hashJobs);
+				} else {
+					dropTree(name,deleteevents);
+				}
+			}
+			detectMoves(pathevents,deleteevents,hashJobs);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		for(FileSystemEvent pathevent : pathevents) {
+			notifyObserver(pathevent);
+		}
+		submitHashJobs(hashJobs,true);
+		sortDeepestFirst(deleteevents);
+		for(FileSystemEvent pathevent : deleteevents) {
+			notifyObserver(pathevent);
+		}
+	}
+	
+	/**
+	 * Emits an event, through the {@link EventCoalescer} unless the quiet period is 0.
+	 */
+	private void notifyObserver(FileSystemEvent pathevent) {
+		if(coalescer!=null) {
+			coalescer.add(pathevent);
+		} else {
+			emit(pathevent);
+		}
+	}
+	
+	/**
+	 * Emits an event to the observer, once it has been added to the journal. Events are emitted
+	 * both by the monitor thread and by the hash workers, but the observer only ever sees one at
+	 * a time, in the order of their sequence numbers.
+	 */
+	private void emit(FileSystemEvent pathevent) {
+		synchronized(observerLock) {
+			log.info(pathevent.toString());
+			Journal journal = this.journal;
+			if(journal!=null) {
+				try {
+					pathevent.sequence=journal.append(toJournalRecord(pathevent));
+				} catch (IOException e) {
+					log.warning("unable to journal "+pathevent+": "+e.getMessage());
+					try {
+						journal.reset();
+					} catch (IOException e2) {
+						log.warning("unable to reset the journal, peers will be synced in full: "+e2.getMessage());
+						this.journal=null;
+					}
+				}
+			}
+			fileSystemObserver.processFileSystemEvent(pathevent);
+		}
+	}
+	
+	private Document toJournalRecord(FileSystemEvent pathevent) {
+		Document record = new Document();
+		record.append("event",pathevent.event.name());
+		record.append("pathName",pathevent.pathName);
+		if(pathevent.oldPathName!=null) record.append("oldPathName",pathevent.oldPathName);
+		if(pathevent.fileDescriptor!=null) record.append("fileDescriptor",pathevent.fileDescriptor.toDoc());
+		return record;
+	}
+	
+	private FileSystemEvent fromJournalRecord(Document record) {
+		EVENT event = EVENT.valueOf(record.getString("event"));
+		File file = new File(root+FileSystems.getDefault().getSeparator()+record.getString("pathName"));
+		FileDescriptor fileDescriptor = null;
+		if(record.containsKey("fileDescriptor")) {
+			Document doc = (Document) record.get("fileDescriptor");
+			fileDescriptor = new FileDescriptor(doc.getLong("lastModified"),doc.getString("md5"),doc.getLong("fileSize"));
+		}
+		FileSystemEvent pathevent;
+		if(record.containsKey("oldPathName")) {
+			pathevent = new FileSystemEvent(file.getParent(),file.getName(),record.getString("oldPathName"),event,fileDescriptor);
+		} else if(fileDescriptor!=null) {
+			pathevent = new FileSystemEvent(file.getParent(),file.getName(),event,fileDescriptor);
+		} else {
+			pathevent = new FileSystemEvent(file.getParent(),file.getName(),event);
+		}
+		pathevent.sequence=record.getLong("sequence");
+		return pathevent;
+	}
+	
+	/**
+	 * Saves the sequence numbers seen of other peers' journals.
+	 */
+	private void saveJournal() {
+		Journal journal = this.journal;
+		if(journal==null) return;
+		try {
+			journal.saveSeen();
+		} catch (IOException e) {
+			log.warning("unable to save the journal: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * A new or modified file, found by the scanner, that needs to be hashed.
+	 * The hash is computed without holding the lock, and only recorded if the file
+	 * has not changed again in the meantime, otherwise the file is hashed again.
+	 */
+	private class HashJob implements Runnable {
+		private String name;
+		private long lastModified;
+		private long fileSize;
+		private Object fileKey;
+		private boolean publish;
+		private ArrayList<String> chunks;
+		
+		public HashJob(String name, long lastModified, long fileSize, Object fileKey) {
+			this.name=name;
+			this.lastModified=lastModified;
+			this.fileSize=fileSize;
+			this.fileKey=fileKey;
+		}
+		
+		/**
+		 * @return True if the file found by the scanner is the file with the given descriptor,
+		 * moved but otherwise untouched.
+		 */
+		private boolean isMoveOf(FileDescriptor fileDescriptor) {
+			return fileKey!=null && fileKey.equals(fileDescriptor.fileKey) &&
+					lastModified==fileDescriptor.lastModified && fileSize==fileDescriptor.fileSize;
+		}
+		
+		public void run() {
+			File file = new File(name);
+			String md5;
+			FileDescriptor loaded = loadedFiles.remove(name);
+			try {
+				if(loaded!=null && loaded.lastModified==lastModified && loaded.fileSize==fileSize) {
+					md5 = loaded.md5;
+					if(fileSize>=CHUNK_MIN_FILE_SIZE) {
+						Chunker chunker = new Chunker(digest);
+						chunkFile(file,name,chunker);
+						chunks = chunker.finish();
+					} else {
+						chunks = null;
+					}
+				} else if(fileSize>=CHUNK_MIN_FILE_SIZE) {
+					Chunker chunker = new Chunker(digest);
+					md5 = hashFile(file,name,chunker);
+					chunks = chunker.finish();
+				} else {
+					md5 = hashFile(file,name,0);
+					chunks = null;
+				}
+			} catch (IOException | NoSuchAlgorithmException e) {
+				// most likely deleted while waiting, the scanner will notice
+				log.warning("unable to hash "+name+": "+e.getMessage());
+				lock.writeLock().lock();
+				try {
+					forgetListing(file.getParent());
+				} finally {
+					lock.writeLock().unlock();
+				}
+				finished();
+				return;
+			}
+			FileSystemEvent pathevent = null;
+			lock.writeLock().lock();
+			try {
+				long currentModified = file.lastModified();
+				long currentSize = file.length();
+				if(!directoryDescriptors.containsKey(file.getParent())) {
+					// the directory has been dropped in the meantime
+					finished();
+					return;
+				}
+				if(currentModified!=lastModified || currentSize!=fileSize) {
+					if(!file.isFile()) {
+						forgetListing(file.getParent());
+						finished();
+						return;
+					}
+					lastModified=currentModified;
+					fileSize=currentSize;
+					BasicFileAttributes attributes = readAttributes(file.toPath());
+					fileKey = attributes!=null ? attributes.fileKey() : null;
+				} else if(watchedFiles.containsKey(name)) {
+					modifyFile(name,md5,lastModified,fileSize);
+					watchedFiles.get(name).fileKey=fileKey;
+					setChunks(name,chunks);
+					pathevent = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(name));
+				} else {
+					addFile(name,new FileDescriptor(lastModified,md5,fileSize));
+					watchedFiles.get(name).fileKey=fileKey;
+					setChunks(name,chunks);
+					pathevent = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
+				}
+				if(pathevent!=null) finished();
+			} finally {
+				lock.writeLock().unlock();
+			}
+			if(pathevent==null) {
+				// changed while being hashed, so hash it again
+				hashPool.execute(this);
+			} else if(publish) {
+				notifyObserver(pathevent);
+			}
+		}
+		
+		private void finished() {
+			lock.writeLock().lock();
+			try {
+				pendingHashes.remove(name);
+				hashesFinished.signalAll();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Hands hash jobs to the hash workers. Must not be called while holding the lock, since
+	 * the monitor thread hashes files itself when the workers are too far behind.
+	 */
+	private void submitHashJobs(ArrayList<HashJob> hashJobs, boolean publish) {
+		for(HashJob hashJob : hashJobs) {
+			hashJob.publish=publish;
+			hashPool.execute(hashJob);
+		}
+	}
+	
+	/**
+	 * Finds what a scan dropped that was found again under another name, with the same file key,
+	 * and replaces the delete and create events with a move event. Moved files are put in the index
+	 * under their new names without being hashed again. Must be called while holding the lock.
+	 */
+	private void detectMoves(ArrayList<FileSystemEvent> pathevents, ArrayList<FileSystemEvent> deleteevents,
+			ArrayList<HashJob> hashJobs) {
+		try {
+			if(deleteevents.isEmpty() || (pathevents.isEmpty() && hashJobs.isEmpty())) return;
+			HashSet<String> moved = new HashSet<String>();
+			if(!droppedDirectoryKeys.isEmpty()) detectDirectoryMoves(pathevents,deleteevents,hashJobs,moved);
+			detectFileMoves(pathevents,deleteevents,hashJobs,moved);
+			if(!moved.isEmpty()) {
+				hashJobs.removeIf(hashJob -> moved.contains(hashJob.name));
+				pendingHashes.removeAll(moved);
+				hashesFinished.signalAll();
+			}
+		} finally {
+			clearDropped();
+		}
+	}
+	
+	private void clearDropped() {
+		droppedDirectoryKeys.clear();
+		droppedChunks.clear();
+	}
+	
+	/**
+	 * Directory moves are emitted in place of the new directory's create event, so that they come
+	 * after its parent is created. Everything in the old directory is taken to be in the new one,
+	 * and whatever is not is deleted from the new one afterwards.
+	 */
+	private void detectDirectoryMoves(ArrayList<FileSystemEvent> pathevents, ArrayList<FileSystemEvent> deleteevents,
+			ArrayList<HashJob> hashJobs, HashSet<String> moved) {
+		String separator = FileSystems.getDefault().getSeparator();
+		HashMap<Object,String> dropped = new HashMap<Object,String>();
+		for(Map.Entry<String,Object> entry : droppedDirectoryKeys.entrySet()) {
+			dropped.put(entry.getValue(),entry.getKey());
+		}
+		HashMap<String,HashJob> jobs = new HashMap<String,HashJob>();
+		for(HashJob hashJob : hashJobs) {
+			jobs.put(hashJob.name,hashJob);
+		}
+		// new directories are always before anything in them
+		for(int i=0;i<pathevents.size();i++) {
+			FileSystemEvent created = pathevents.get(i);
+			if(created.event!=EVENT.DIRECTORY_CREATE) continue;
+			String name = created.path+separator+created.name;
+			DirectoryDescriptor descriptor = directoryDescriptors.get(name);
+			if(descriptor==null || descriptor.fileKey==null) continue;
+			String oldName = dropped.remove(descriptor.fileKey);
+			if(oldName==null) continue;
+			log.info("moved directory "+oldName+" to "+name);
+			pathevents.set(i,new FileSystemEvent(created.path,created.name,oldName.substring(root.length()+1),
+					EVENT.DIRECTORY_MOVE,null));
+			HashSet<String> kept = new HashSet<String>();
+			ArrayList<FileSystemEvent> gone = new ArrayList<FileSystemEvent>();
+			Iterator<FileSystemEvent> iterator = deleteevents.iterator();
+			while(iterator.hasNext()) {
+				FileSystemEvent deleted = iterator.next();
+				String deletedName = deleted.path+separator+deleted.name;
+				if(deletedName.equals(oldName)) {
+					iterator.remove();
+					continue;
+				}
+				if(!deletedName.startsWith(oldName+separator)) continue;
+				iterator.remove();
+				String newName = name+deletedName.substring(oldName.length());
+				File newFile = new File(newName);
+				if(deleted.event==EVENT.DIRECTORY_DELETE) {
+					// moved along with this directory, not on its own
+					dropped.remove(droppedDirectoryKeys.get(deletedName));
+					if(watchedDirectories.contains(newName)) {
+						kept.add(newName);
+					} else {
+						gone.add(new FileSystemEvent(newFile.getParent(),newFile.getName(),EVENT.DIRECTORY_DELETE));
+					}
+					continue;
+				}
+				HashJob hashJob = jobs.get(newName);
+				if(hashJob==null) {
+					gone.add(new FileSystemEvent(newFile.getParent(),newFile.getName(),EVENT.FILE_DELETE,
+							deleted.fileDescriptor));
+					// it may still have been moved on its own
+					ArrayList<String> chunks = droppedChunks.remove(deletedName);
+					if(chunks!=null) droppedChunks.put(newName,chunks);
+					continue;
+				}
+				// if it has changed as well then the hash job finds it in the index and emits a modify
+				putMovedFile(deletedName,newName,deleted.fileDescriptor);
+				if(hashJob.isMoveOf(deleted.fileDescriptor)) moved.add(newName);
+			}
+			deleteevents.addAll(gone);
+			pathevents.removeIf(pathevent -> pathevent.event==EVENT.DIRECTORY_CREATE &&
+					kept.contains(pathevent.path+separator+pathevent.name));
+		}
+	}
+	
+	/**
+	 * File moves are emitted after all of the new directories, so that the new parent exists.
+	 */
+	private void detectFileMoves(ArrayList<FileSystemEvent> pathevents, ArrayList<FileSystemEvent> deleteevents,
+			ArrayList<HashJob> hashJobs, HashSet<String> moved) {
+		String separator = FileSystems.getDefault().getSeparator();
+		HashMap<Object,FileSystemEvent> dropped = new HashMap<Object,FileSystemEvent>();
+		for(FileSystemEvent deleted : deleteevents) {
+			if(deleted.event==EVENT.FILE_DELETE && deleted.fileDescriptor.fileKey!=null) {
+				dropped.put(deleted.fileDescriptor.fileKey,deleted);
+			}
+		}
+		if(dropped.isEmpty()) return;
+		for(HashJob hashJob : hashJobs) {
+			if(hashJob.fileKey==null || moved.contains(hashJob.name) || watchedFiles.containsKey(hashJob.name)) continue;
+			FileSystemEvent deleted = dropped.get(hashJob.fileKey);
+			if(deleted==null || !hashJob.isMoveOf(deleted.fileDescriptor)) continue;
+			dropped.remove(hashJob.fileKey);
+			deleteevents.remove(deleted);
+			String oldName = deleted.path+separator+deleted.name;
+			log.info("moved file "+oldName+" to "+hashJob.name);
+			putMovedFile(oldName,hashJob.name,deleted.fileDescriptor);
+			moved.add(hashJob.name);
+			File file = new File(hashJob.name);
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),deleted.pathName,
+					EVENT.FILE_MOVE,watchedFiles.get(hashJob.name)));
+		}
+	}
+	
+	/**
+	 * Puts a dropped file back in the index under its new name, along with its chunks.
+	 */
+	private void putMovedFile(String oldName, String name, FileDescriptor fileDescriptor) {
+		FileDescriptor moved = new FileDescriptor(fileDescriptor.lastModified,fileDescriptor.md5,fileDescriptor.fileSize);
+		moved.fileKey=fileDescriptor.fileKey;
+		addFile(name,moved);
+		setChunks(name,droppedChunks.remove(oldName));
+	}
+	
+	/**
+	 * Drops a deleted file, or a deleted directory along with everything that was in it.
+	 */
+	private void dropTree(String name, ArrayList<FileSystemEvent> pathevents) {
+		if(watchedFiles.containsKey(name)) {
+			File file = new File(name);
+			FileDescriptor fdes = watchedFiles.get(name);
+			if(fdes.fileKey!=null && fileChunks.containsKey(name)) droppedChunks.put(name,fileChunks.get(name));
+			dropFile(name);
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
+		}
+		if(watchedDirectories.contains(name)) {
+			DirectoryDescriptor descriptor = directoryDescriptors.get(name);
+			for(String pathname : new ArrayList<String>(descriptor.files)) {
+				dropTree(pathname,pathevents);
+			}
+			for(String pathname : new ArrayList<String>(descriptor.directories)) {
+				dropTree(pathname,pathevents);
+			}
+			File file = new File(name);
+			if(descriptor.fileKey!=null) droppedDirectoryKeys.put(name,descriptor.fileKey);
+			dropDir(name);
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
+		}
+	}
+	
+	private void watchDir(String name) {
+		if(watchService==null) return;
+		try {
+			WatchKey key = registerDir(name);
+			if(key!=null) {
+				watchKeys.put(key,name);
+				watchedKeys.put(name,key);
+			}
+		} catch (IOException e) {
+			stopWatching(e);
+		}
+	}
+	
+	/**
+	 * Registers a directory with the watch service, without recording it, which
+	 * is safe to do from any thread.
+	 * @return The watch key, or null if the directory no longer exists.
+	 */
+	private WatchKey registerDir(String name) throws IOException {
+		try {
+			return Paths.get(name).register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (NoSuchFileException | NotDirectoryException e) {
+			// gone already, will be dropped
+			return null;
+		}
+	}
+	
+	private void stopWatching(IOException e) {
+		if(watchService==null) return;
+		// e.g. the limit on the number of watches has been reached
+		log.warning("unable to watch the share directory, polling instead: "+e.getMessage());
+		try {
+			watchService.close();
+		} catch (IOException e1) {
+			log.warning(e1.getMessage());
+		}
+		watchService=null;
+		watchKeys.clear();
+		watchedKeys.clear();
+	}
+	
+	private void unwatchDir(String name) {
+		WatchKey key = watchedKeys.remove(name);
+		// a directory that was moved keeps its watch key, which is now for the new pathname
+		if(key!=null && name.equals(watchKeys.get(key))) {
+			key.cancel();
+			watchKeys.remove(key);
+		}
+	}
+	
+	private String hashFile(File file,String name,long lastModified) throws NoSuchAlgorithmException, IOException {
+		log.info("hashing file "+name);
+		if(lastModified!=0 && lastModified==file.lastModified()) {
+			FileDescriptor fileDescriptor = indexedFile(name);
+			if(fileDescriptor!=null) return fileDescriptor.md5;
+		}
+		try(FileInputStream fis = new FileInputStream(file)) {
+			return digest.hashFile(fis.getChannel());
+		}
+	}
+	
+	/**
+	 * Hashes the file and splits it into chunks at the same time, so that it is only read once,
+	 * unless the digest can hash the file on several threads, in which case that is done first.
+	 */
+	private String hashFile(File file,String name,Chunker chunker) throws NoSuchAlgorithmException, IOException {
+		log.info("hashing and chunking file "+name);
+		Digest.Hasher hasher = digest.isParallel() ? null : digest.newHasher();
+		try(FileInputStream fis = new FileInputStream(file)) {
+			String hash = hasher==null ? digest.hashFile(fis.getChannel()) : null;
+			byte[] byteArray = new byte[65536];
+			int bytesCount = 0;
+			while ((bytesCount = fis.read(byteArray)) != -1) {
+				if(hasher!=null) hasher.update(byteArray, 0, bytesCount);
+				chunker.update(byteArray, 0, bytesCount);
+			}
+			return hasher!=null ? hasher.digest() : hash;
+		}
+	}
+	
+	/**
+	 * Splits a file whose hash is already known into chunks.
+	 */
+	private void chunkFile(File file,String name,Chunker chunker) throws IOException {
+		log.info("chunking file "+name);
+		try(FileInputStream fis = new FileInputStream(file)) {
+			byte[] byteArray = new byte[65536];
+			int bytesCount = 0;
+			while ((bytesCount = fis.read(byteArray)) != -1) {
+				chunker.update(byteArray, 0, bytesCount);
+			}
+		}
+	}
+	
+	private String hashFile(File file,String name,long lastModified, RandomAccessFile raf) throws NoSuchAlgorithmException, IOException {
+		log.info("hashing file "+name);
+		if(lastModified!=0 && lastModified==file.lastModified()) {
+			FileDescriptor fileDescriptor = indexedFile(name);
+			if(fileDescriptor!=null) return fileDescriptor.md5;
+		}
+		return digest.hashFile(raf.getChannel());
+	}
+	
+	/**
+	 * Scans the given file, or directory recursively, adding the events for new directories to
+	 * pathEvents, the events for deleted files and directories to deleteEvents and the new and
+	 * modified files to hashJobs. Directories are scanned in parallel when there is more than one
+	 * scan thread. Must be called while holding the lock.
+	 */
+	private void scanDirectoryTree(String name, ArrayList<FileSystemEvent> pathEvents,
+			ArrayList<FileSystemEvent> deleteEvents, ArrayList<HashJob> hashJobs) {
+		ScanResult result = new ScanResult();
+		ScanTask task = new ScanTask(name,result);
+		if(scanPool!=null && new File(name).isDirectory()) {
+			scanPool.invoke(task);
+		} else {
+			task.compute();
+		}
+		// the scan tasks only read the index, what they found is applied here in the order found
+		for(String deleted : result.deleted) {
+			dropTree(deleted,deleteEvents);
+		}
+		for(Map.Entry<String,WatchKey> entry : result.watchKeys) {
+			watchKeys.put(entry.getValue(),entry.getKey());
+			watchedKeys.put(entry.getKey(),entry.getValue());
+		}
+		if(result.watchFailure!=null) stopWatching(result.watchFailure);
+		for(Map.Entry<String,Object> entry : result.directories) {
+			String dirName = entry.getKey();
+			addDir(dirName);
+			directoryDescriptors.get(dirName).fileKey=entry.getValue();
+			File file = new File(dirName);
+			pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+		}
+		for(Map.Entry<String,Long> entry : result.listings) {
+			directoryDescriptors.get(entry.getKey()).lastModified=entry.getValue();
+		}
+		for(HashJob hashJob : result.hashJobs) {
+			pendingHashes.add(hashJob.name);
+			hashJobs.add(hashJob);
+		}
+	}
+	
+	/**
+	 * What a scan found, added to by any number of scan tasks at once. A directory is always
+	 * added before anything found inside of it.
+	 */
+	private class ScanResult {
+		private Queue<Map.Entry<String,Object>> directories = new ConcurrentLinkedQueue<Map.Entry<String,Object>>();
+		private Queue<String> deleted = new ConcurrentLinkedQueue<String>();
+		private Queue<Map.Entry<String,Long>> listings = new ConcurrentLinkedQueue<Map.Entry<String,Long>>();
+		private Queue<HashJob> hashJobs = new ConcurrentLinkedQueue<HashJob>();
+		private Queue<Map.Entry<String,WatchKey>> watchKeys = new ConcurrentLinkedQueue<Map.Entry<String,WatchKey>>();
+		private volatile IOException watchFailure;
+	}
+	
+	/**
+	 * Scans a single file, or a directory and everything in it. Each sub directory is
+	 * scanned by its own sub task.
+	 */
+	@SuppressWarnings("serial")
+	private class ScanTask extends RecursiveAction {
+		private String name;
+		private ScanResult result;
+		
+		public ScanTask(String name, ScanResult result) {
+			this.name=name;
+			this.result=result;
+		}
+		
+		protected void compute() {
+			if(name.endsWith(loadingSuffix)) return;
+			BasicFileAttributes attributes = readAttributes(Paths.get(name));
+			if(attributes==null) return;
+			if(attributes.isRegularFile()) {
+				scanFile(name,attributes);
+				return;
+			}
+			if(!attributes.isDirectory()) return;
+			DirectoryDescriptor descriptor = directoryDescriptors.get(name);
+			if(!watchedDirectories.contains(name) && !name.equals(root)) {
+				result.directories.add(new AbstractMap.SimpleImmutableEntry<String,Object>(name,attributes.fileKey()));
+			} else if(descriptor!=null && descriptor.fileKey==null) {
+				// only this task uses the descriptor
+				descriptor.fileKey=attributes.fileKey();
+			}
+			if(watchService!=null && !watchedKeys.containsKey(name)) {
+				// new directories, or directories that were read from the index
+				try {
+					WatchKey key = registerDir(name);
+					if(key!=null) result.watchKeys.add(new AbstractMap.SimpleImmutableEntry<String,WatchKey>(name,key));
+				} catch (IOException e) {
+					result.watchFailure=e;
 				}
 			}
-			if(success) {
-				lock.release();
-				channel.close();
-				raf.close();
-				file.delete();
+			ArrayList<ScanTask> subtasks = new ArrayList<ScanTask>();
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			if(descriptor!=null && descriptor.lastModified!=0 && descriptor.lastModified==lastModified) {
+				// nothing has been added or removed since it was listed
+				for(String subname : descriptor.files) {
+					attributes = readAttributes(Paths.get(subname));
+					if(attributes!=null && attributes.isRegularFile()) scanFile(subname,attributes);
+				}
+				for(String subname : descriptor.directories) {
+					subtasks.add(new ScanTask(subname,result));
+				}
+			} else {
+				listDirectory(descriptor,lastModified,subtasks);
+			}
+			if(inForkJoinPool()) {
+				invokeAll(subtasks);
+			} else {
+				for(ScanTask subtask : subtasks) subtask.compute();
 			}
-			return success;
 		}
-		public void writeFile(ByteBuffer src, long position) throws IOException {
-			if(position>length) throw new IOException("trying to write bytes beyond what is expected");
-			channel.write(src, position);
+		
+		private void listDirectory(DirectoryDescriptor descriptor, long lastModified, ArrayList<ScanTask> subtasks) {
+			long listed = System.currentTimeMillis();
+			HashSet<String> missing = new HashSet<String>();
+			if(descriptor!=null) {
+				missing.addAll(descriptor.files);
+				missing.addAll(descriptor.directories);
+			}
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(name))) {
+				for(Path subpath : stream) {
+					String subname = subpath.toString();
+					if(subname.endsWith(loadingSuffix)) continue;
+					BasicFileAttributes attributes = readAttributes(subpath);
+					if(attributes==null) continue;
+					if(attributes.isDirectory()) {
+						if(watchedDirectories.contains(subname)) missing.remove(subname);
+						subtasks.add(new ScanTask(subname,result));
+					} else if(attributes.isRegularFile()) {
+						if(watchedFiles.containsKey(subname)) missing.remove(subname);
+						scanFile(subname,attributes);
+					}
+				}
+			} catch (IOException | DirectoryIteratorException e) {
+				log.severe("unable to scan "+name+": "+e.getMessage());
+				return;
+			}
+			result.deleted.addAll(missing);
+			result.listings.add(new AbstractMap.SimpleImmutableEntry<String,Long>(name,
+					listed-lastModified>MTIME_GRANULARITY ? lastModified : 0));
 		}
-		public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
-			String currentMd5 = hashFile(file,pathName,0,raf);
-			if(currentMd5.equals(md5)) {
-				lock.release();
-				channel.close();
-				raf.close();
-				File dest = new File(pathName);
-				if(dest.exists()) dest.delete();
-				file.renameTo(dest);
-				dest.setLastModified(lastModified);
-				return true;
+		
+		private void scanFile(String name, BasicFileAttributes attributes) {
+			if(pendingHashes.contains(name)) return; // already waiting to be hashed
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			long fileSize = attributes.size();
+			FileDescriptor fileDescriptor = watchedFiles.get(name);
+			if(fileDescriptor==null || lastModified!=fileDescriptor.lastModified || fileSize!=fileDescriptor.fileSize) {
+				result.hashJobs.add(new HashJob(name,lastModified,fileSize,attributes.fileKey()));
+			} else if(fileDescriptor.fileKey==null) {
+				fileDescriptor.fileKey=attributes.fileKey();
 			}
-			return false;
 		}
 	}
-
-	private HashSet<String> watchedDirectories;
-	private HashMap<String,HashSet<String>> hashMap;
-	private FileSystemObserver fileSystemObserver;
-	private HashMap<String,FileDescriptor> watchedFiles;
-	private String root;
-	private String cannonicalRoot;
-	private HashMap<String,FileLoader> loadingFiles;
-	
 	
+	/**
+	 * @return The attributes of the given file or directory, following links, or null if
+	 * it no longer exists or cannot be read.
+	 */
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path,BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
 	
+	/**
+	 * Makes sure the given directory is listed again by the next scan.
+	 */
+	private void forgetListing(String name) {
+		DirectoryDescriptor descriptor = directoryDescriptors.get(name);
+		if(descriptor!=null) descriptor.lastModified=0;
+	}
 	
-	public void run() {
-		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
-		while (!isInterrupted()) {
-			
-			pathevents.clear();
-			// check for new/modified files
+	/**
+	 * Finds or opens a read handle for the given file, as long as it still has the given content.
+	 * The handle must be given back with {@link #releaseReadHandle(ReadHandle)}.
+	 * @param lastModified The last modified timestamp of the file in the index.
+	 * @return The read handle, or null if the file no longer has the given content.
+	 */
+	private ReadHandle openReadHandle(String name, String md5, long lastModified) throws IOException, NoSuchAlgorithmException {
+		ReadHandle handle = cachedReadHandle(name,md5,lastModified);
+		if(handle!=null) return handle;
+		synchronized(fileLock(name)) {
+			handle = cachedReadHandle(name,md5,lastModified);
+			if(handle!=null) return handle;
+			handle = new ReadHandle(name,md5,lastModified);
+			String currentMd5;
 			try {
-				synchronized(this) {
-					pathevents.addAll(scanDirectoryTree(root));
+				currentMd5 = hashFile(new File(name),name,lastModified,handle.raf);
+			} catch (IOException | NoSuchAlgorithmException e) {
+				handle.close();
+				throw e;
+			}
+			if(!currentMd5.equals(md5)) {
+				handle.close();
+				return null;
+			}
+			synchronized(readHandles) {
+				handle.users=1;
+				handle.cached=true;
+				ReadHandle old = readHandles.put(name,handle);
+				if(old!=null) retireReadHandle(old);
+				Iterator<ReadHandle> eldest = readHandles.values().iterator();
+				while(readHandles.size()>READ_HANDLE_CACHE_SIZE) {
+					ReadHandle evicted = eldest.next();
+					eldest.remove();
+					retireReadHandle(evicted);
 				}
-			} catch (NoSuchAlgorithmException e1) {
-				log.severe(e1.getMessage());
-				interrupt();
-				continue;
-			} catch (IOException e1) {
-				log.severe(e1.getMessage());
 			}
-			for(FileSystemEvent pathevent : pathevents) {
-				log.info(pathevent.toString());
-				fileSystemObserver.processFileSystemEvent(pathevent);
+			return handle;
+		}
+	}
+	
+	private ReadHandle cachedReadHandle(String name, String md5, long lastModified) {
+		synchronized(readHandles) {
+			ReadHandle handle = readHandles.get(name);
+			if(handle==null || !handle.md5.equals(md5) || handle.lastModified!=lastModified) return null;
+			handle.users++;
+			return handle;
+		}
+	}
+	
+	private void releaseReadHandle(ReadHandle handle) {
+		synchronized(readHandles) {
+			handle.users--;
+			if(handle.users==0 && !handle.cached) handle.close();
+		}
+	}
+	
+	/**
+	 * Closes the read handle for the given file, if there is one, once it is no longer being read from.
+	 */
+	private void invalidateReadHandle(String name) {
+		synchronized(readHandles) {
+			ReadHandle handle = readHandles.remove(name);
+			if(handle!=null) retireReadHandle(handle);
+		}
+	}
+	
+	private void retireReadHandle(ReadHandle handle) {
+		handle.cached=false;
+		if(handle.users==0) handle.close();
+	}
+	
+	private static Object[] newLockStripes() {
+		Object[] stripes = new Object[LOCK_STRIPES];
+		for(int i=0;i<stripes.length;i++) stripes[i]=new Object();
+		return stripes;
+	}
+	
+	private static int lockStripe(String name) {
+		return (name.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+	}
+	
+	private Object loaderLock(String name) {
+		return loaderLocks[lockStripe(name)];
+	}
+	
+	private Object fileLock(String name) {
+		return fileLocks[lockStripe(name)];
+	}
+	
+	/**
+	 * Reads a file from start to end, a byte at a time, with positional reads of the read handle.
+	 */
+	private static class ReadAhead {
+		private ReadHandle handle;
+		private ByteBuffer buffer = ByteBuffer.allocate(65536);
+		private long position;
+		
+		public ReadAhead(ReadHandle handle) {
+			this.handle=handle;
+			buffer.flip();
+		}
+		
+		public int next() throws IOException {
+			if(!buffer.hasRemaining()) {
+				buffer.clear();
+				handle.read(buffer,position);
+				buffer.flip();
+				if(!buffer.hasRemaining()) throw new IOException("did not read everything expected");
+				position+=buffer.limit();
 			}
-			
-			// check for deleted files
-			pathevents.clear();
-			synchronized(this) {
-				ArrayList<String> keys = new ArrayList<String>(watchedFiles.keySet());
-				for(String pathname : keys) {
-					File file = new File(pathname);
-					if(!file.exists()) {
-						FileDescriptor fdes = watchedFiles.get(pathname);
-						dropFile(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
-					}
+			return buffer.get() & 0xff;
+		}
+	}
+	
+	/**
+	 * Slides a window the size of a block through the file, one byte at a time, updating the rolling
+	 * checksum of the window as it goes. Where it matches a block's checksum, and then its MD5 hash,
+	 * the window jumps to just after the block.
+	 */
+	private ArrayList<long[]> findBlocks(ReadHandle handle, int blockSize, HashMap<Integer,ArrayList<Integer>> weak,
+			String[] strong) throws IOException, NoSuchAlgorithmException {
+		ArrayList<long[]> copies = new ArrayList<long[]>();
+		long size = handle.channel.size();
+		if(size<blockSize || weak.isEmpty()) return copies;
+		ReadAhead in = new ReadAhead(handle);
+		// byte p of the file is at window[p%blockSize] while it is in the window
+		byte[] window = new byte[blockSize];
+		long position = 0;
+		int a = 0, b = 0;
+		boolean fill = true;
+		while(true) {
+			if(fill) {
+				a=0;
+				b=0;
+				for(int i=0;i<blockSize;i++) {
+					int x = in.next();
+					window[(int) ((position+i)%blockSize)]=(byte) x;
+					a=(a+x) & 0xffff;
+					b=(b+a) & 0xffff;
 				}
-				
-				// check for deleted directories
-				keys = new ArrayList<String>(watchedDirectories);
-				for(String pathname : keys) {
-					File file = new File(pathname);
-					if(!file.exists()) {
-						dropDir(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
+				fill=false;
+			}
+			ArrayList<Integer> candidates = weak.get((b<<16)|a);
+			if(candidates!=null) {
+				int start = (int) (position%blockSize);
+				Digest.Hasher hasher = digest.newHasher();
+				hasher.update(window,start,blockSize-start);
+				hasher.update(window,0,start);
+				String md5 = hasher.digest();
+				for(int index : candidates) {
+					if(strong[index].equals(md5)) {
+						addCopy(copies,position,blockSize,(long) index*blockSize);
+						fill=true;
+						break;
 					}
 				}
-			}
-			// sort all of the events so they make sense
-			Collections.sort(pathevents,(arg0,arg1) ->
-				{
-					return arg1.path.length()-arg0.path.length();	
+				if(fill) {
+					position+=blockSize;
+					if(position+blockSize>size) break;
+					continue;
 				}
-			);
-			
-			for(FileSystemEvent pathevent : pathevents) {
-				log.info(pathevent.toString());
-				fileSystemObserver.processFileSystemEvent(pathevent);
 			}
-			
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				log.warning(e.getMessage());
+			if(position+blockSize>=size) break;
+			int slot = (int) (position%blockSize);
+			int out = window[slot] & 0xff;
+			int x = in.next();
+			window[slot]=(byte) x;
+			a=(a-out+x) & 0xffff;
+			b=(b-(blockSize & 0xffff)*out+a) & 0xffff;
+			position++;
+		}
+		return copies;
+	}
+	
+	/**
+	 * @return The files that the given chunk is in, and its position in each of them.
+	 */
+	private ArrayList<Map.Entry<String,Long>> chunkSources(String chunk) {
+		lock.readLock().lock();
+		try {
+			HashMap<String,Long> places = chunkMap.get(chunk);
+			return places!=null ? new ArrayList<Map.Entry<String,Long>>(places.entrySet()) : new ArrayList<Map.Entry<String,Long>>();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Copies a chunk from a file in the share into a file loader, if it is still there.
+	 * @return False if the file no longer has the chunk at that position.
+	 * @throws IOException If the chunk could not be written to the loader file.
+	 */
+	private boolean copyChunk(FileLoader loader, String name, long source, long position, String chunk)
+			throws IOException, NoSuchAlgorithmException {
+		FileDescriptor fileDescriptor = indexedFile(name);
+		if(fileDescriptor==null) return false;
+		ByteBuffer buffer = ByteBuffer.allocate(Chunker.chunkLength(chunk));
+		ReadHandle handle = null;
+		try {
+			handle = openReadHandle(name,fileDescriptor.md5,fileDescriptor.lastModified);
+			if(handle==null || handle.read(buffer,source)<buffer.capacity()) return false;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if(handle!=null) releaseReadHandle(handle);
+		}
+		buffer.flip();
+		if(!chunk.startsWith(digest.hash(buffer)+":")) return false;
+		try {
+			loader.writeFile(buffer,position);
+		} catch (BlockVerificationException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	private static void addCopy(ArrayList<long[]> copies, long position, long length, long source) {
+		if(!copies.isEmpty()) {
+			long[] last = copies.get(copies.size()-1);
+			if(last[0]+last[1]==position && last[2]+last[1]==source) {
+				last[1]+=length;
+				return;
 			}
-			
 		}
-		
+		copies.add(new long[]{position,length,source});
 	}
 	
-	private String hashFile(File file,String name,long lastModified) throws NoSuchAlgorithmException, IOException {
-		log.info("hashing file "+name);
-		if(lastModified!=0 && lastModified==file.lastModified()) {
-			return watchedFiles.get(name).md5;
+	/**
+	 * The rsync rolling checksum, the low 16 bits are the sum of the bytes and the high 16 bits are the
+	 * sum of the running sums, so that it can be updated as a window slides over the bytes.
+	 */
+	private static int rollingChecksum(byte[] block) {
+		int a = 0, b = 0;
+		for(byte x : block) {
+			a=(a+(x & 0xff)) & 0xffff;
+			b=(b+a) & 0xffff;
 		}
-		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-		String checksum = getFileChecksum(md5Digest, file);
-		return checksum;
+		return (b<<16)|a;
 	}
 	
-	private String hashFile(File file,String name,long lastModified, RandomAccessFile raf) throws NoSuchAlgorithmException, IOException {
-		log.info("hashing file "+name);
-		if(lastModified!=0 && lastModified==file.lastModified()) {
-			return watchedFiles.get(name).md5;
+	/**
+	 * @return A copy of the file descriptor in the index for the given file, or null if
+	 * it is not in the index.
+	 */
+	private FileDescriptor indexedFile(String name) {
+		lock.readLock().lock();
+		try {
+			FileDescriptor fd = watchedFiles.get(name);
+			return fd!=null ? new FileDescriptor(fd.lastModified,fd.md5,fd.fileSize) : null;
+		} finally {
+			lock.readLock().unlock();
 		}
-		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-		String checksum = getFileChecksum(md5Digest, raf);
-		return checksum;
 	}
 	
-	private ArrayList<FileSystemEvent> scanDirectoryTree(String name) throws IOException, NoSuchAlgorithmException {
-		ArrayList<FileSystemEvent> pathEvents = new ArrayList<FileSystemEvent>();
-		if(name.endsWith(loadingSuffix)) return pathEvents;
-		File file = new File(name);
-		if(file.isFile()) {
-			long lastModified = file.lastModified();
-			long fileSize = file.length();
-			if(watchedFiles.containsKey(name)) {
-				if(lastModified!=watchedFiles.get(name).lastModified) {
-					String newHash = hashFile(file,name,0);
-					modifyFile(name,newHash,lastModified,fileSize);
-					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(name));
-					pathEvents.add(pe);
-				} else {
-					// do nothing
+	/**
+	 * @return The files in the index with the given content, along with their last
+	 * modified timestamps.
+	 */
+	private ArrayList<Map.Entry<String,Long>> filesWithHash(String md5) {
+		ArrayList<Map.Entry<String,Long>> files = new ArrayList<Map.Entry<String,Long>>();
+		lock.readLock().lock();
+		try {
+			if(hashMap.containsKey(md5)) {
+				for(String name : hashMap.get(md5)) {
+					files.add(new AbstractMap.SimpleImmutableEntry<String,Long>(name,watchedFiles.get(name).lastModified));
 				}
-			} else {
-				String newHash = hashFile(file,name,0);
-				addFile(name,new FileDescriptor(lastModified,newHash,fileSize));
-				FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
-				pathEvents.add(pe);
-			}
-		} else if(file.isDirectory()) {
-			Path path = Paths.get(name);
-			if(watchedDirectories.contains(name) || name.equals(root)) {
-				// do nothing
-			} else {
-				addDir(name);
-				pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
 			}
-			DirectoryStream<Path> stream = Files.newDirectoryStream(path);
-		    for (Path subpath: stream) {
-		    	pathEvents.addAll(scanDirectoryTree(subpath.toString()));
-		    }
-		    stream.close();
+		} finally {
+			lock.readLock().unlock();
 		}
-		return pathEvents;
+		return files;
 	}
 	
 	private void removeHash(String name) {
@@ -862,70 +3568,136 @@ public class FileSystemManager extends Thread {
 		hashMap.get(md5).add(name);
 	}
 	
+	/**
+	 * Replaces the chunks recorded for a file, null if it has none.
+	 */
+	private void setChunks(String name, ArrayList<String> chunks) {
+		ArrayList<String> old = chunks!=null ? fileChunks.put(name,chunks) : fileChunks.remove(name);
+		if(old!=null) {
+			for(String chunk : old) {
+				HashMap<String,Long> places = chunkMap.get(chunk);
+				if(places==null) continue;
+				places.remove(name);
+				if(places.isEmpty()) chunkMap.remove(chunk);
+			}
+		}
+		if(chunks!=null) {
+			long position = 0;
+			for(String chunk : chunks) {
+				HashMap<String,Long> places = chunkMap.get(chunk);
+				if(places==null) {
+					places = new HashMap<String,Long>(2);
+					chunkMap.put(chunk,places);
+				}
+				if(!places.containsKey(name)) places.put(name,position);
+				position+=Chunker.chunkLength(chunk);
+			}
+		}
+	}
+	
 	private void modifyFile(String name, String md5, long lastModified, long fileSize) {
 		log.info("modified file "+name);
+		indexDirty=true;
+		invalidateReadHandle(name);
 		removeHash(name);
+		setChunks(name,null);
 		watchedFiles.get(name).md5=md5;
 		watchedFiles.get(name).lastModified=lastModified;
 		watchedFiles.get(name).fileSize=fileSize;
 		addHash(md5,name);
+		invalidateDigests(new File(name).getParent());
 	}
 	
 	private void dropFile(String name) {
 		log.info("dropping file "+name);
+		indexDirty=true;
+		invalidateReadHandle(name);
 		removeHash(name);
+		setChunks(name,null);
 		watchedFiles.remove(name);
+		DirectoryDescriptor parent = directoryDescriptors.get(new File(name).getParent());
+		if(parent!=null) parent.files.remove(name);
+		invalidateDigests(new File(name).getParent());
 	}
 	
 	private void addFile(String name, FileDescriptor fileDescriptor) {
 		log.info("adding file "+name);
+		indexDirty=true;
+		putFile(name,fileDescriptor);
+	}
+	
+	private void putFile(String name, FileDescriptor fileDescriptor) {
 		addHash(fileDescriptor.md5,name);
 		watchedFiles.put(name,fileDescriptor);
+		DirectoryDescriptor parent = directoryDescriptors.get(new File(name).getParent());
+		if(parent!=null) parent.files.add(name);
+		invalidateDigests(new File(name).getParent());
 	}
 	
 	private void dropDir(String name) {
 		log.info("dropping directory "+name);
+		indexDirty=true;
 		watchedDirectories.remove(name);
+		directoryDescriptors.remove(name);
+		DirectoryDescriptor parent = directoryDescriptors.get(new File(name).getParent());
+		if(parent!=null) parent.directories.remove(name);
+		invalidateDigests(new File(name).getParent());
+		unwatchDir(name);
 	}
 	
 	private void addDir(String name) {
 		log.info("adding new directory "+name);
+		indexDirty=true;
+		putDir(name);
+	}
+	
+	private void putDir(String name) {
 		watchedDirectories.add(name);
+		directoryDescriptors.put(name,new DirectoryDescriptor());
+		DirectoryDescriptor parent = directoryDescriptors.get(new File(name).getParent());
+		if(parent!=null) parent.directories.add(name);
+		invalidateDigests(new File(name).getParent());
 	}
 	
-	private static String getFileChecksum(MessageDigest digest, RandomAccessFile fis) throws IOException
-	{
-	    byte[] byteArray = new byte[1024];
-	    int bytesCount = 0;
-	    fis.seek(0);
-	    while ((bytesCount = fis.read(byteArray)) != -1) {
-	        digest.update(byteArray, 0, bytesCount);
-	    };
-	    byte[] bytes = digest.digest();
-	    StringBuilder sb = new StringBuilder();
-	    for(int i=0; i< bytes.length ;i++)
-	    {
-	        sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-	    }
-	   return sb.toString();
-	}
-	
-	private static String getFileChecksum(MessageDigest digest, File file) throws IOException
-	{
-		FileInputStream fis = new FileInputStream(file);
-	    byte[] byteArray = new byte[1024];
-	    int bytesCount = 0;
-	    while ((bytesCount = fis.read(byteArray)) != -1) {
-	        digest.update(byteArray, 0, bytesCount);
-	    };
-	    fis.close();
-	    byte[] bytes = digest.digest();
-	    StringBuilder sb = new StringBuilder();
-	    for(int i=0; i< bytes.length ;i++)
-	    {
-	        sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-	    }
-	   return sb.toString();
+	/**
+	 * Forgets the digest of the given directory and of every directory above it, so that they
+	 * are computed again when next needed. A directory whose digest is not known never has one
+	 * above it whose digest is, so this stops at the first such directory.
+	 */
+	private void invalidateDigests(String name) {
+		DirectoryDescriptor descriptor = directoryDescriptors.get(name);
+		while(descriptor!=null && descriptor.digest!=null) {
+			descriptor.digest=null;
+			name=new File(name).getParent();
+			descriptor=name!=null ? directoryDescriptors.get(name) : null;
+		}
+	}
+	
+	/**
+	 * @return The digest of the directory, computing it, and those of any directories in it,
+	 * if it is not known. Must be called with at least the read lock held.
+	 */
+	private String directoryDigest(DirectoryDescriptor descriptor) {
+		String known = descriptor.digest;
+		if(known!=null) return known;
+		TreeMap<String,String> entries = new TreeMap<String,String>();
+		for(String pathname : descriptor.files) {
+			FileDescriptor fileDescriptor = watchedFiles.get(pathname);
+			if(fileDescriptor!=null) entries.put(new File(pathname).getName(),"f "+fileDescriptor.md5);
+		}
+		for(String pathname : descriptor.directories) {
+			DirectoryDescriptor child = directoryDescriptors.get(pathname);
+			if(child!=null) entries.put(new File(pathname).getName(),"d "+directoryDigest(child));
+		}
+		StringBuilder content = new StringBuilder();
+		for(Map.Entry<String,String> entry : entries.entrySet()) {
+			content.append(entry.getKey()).append('\n').append(entry.getValue()).append('\n');
+		}
+		byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+		// readers may compute it at the same time, but they all compute the same digest
+		known=digest.hash(bytes,0,bytes.length);
+		descriptor.digest=known;
+		return known;
 	}
 	
 	private static String separatorsToSystem(String res) {
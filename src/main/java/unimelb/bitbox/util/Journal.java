@@ -0,0 +1,257 @@
+package unimelb.bitbox.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * An append only journal of records, each numbered with the next sequence number, so that
+ * whoever has seen the records up to some number can be given only the ones after it.
+ * <br/>
+ * Records are kept as lines of JSON in segment files of at most {@link #SEGMENT_RECORDS} records
+ * each, named after the first sequence number in them, and only the newest segments are kept.
+ * Whoever has not seen the records that were dropped can not be given the rest, and needs to be
+ * brought up to date some other way. The journal has a random id, so that sequence numbers from
+ * another journal are never taken to be from this one.
+ * <br/>
+ * The journal also remembers the last sequence number seen of other journals, by their id.
+ *
+ */
+public class Journal {
+	/**
+	 * The number of records in each segment file.
+	 */
+	public static final int SEGMENT_RECORDS = 10000;
+
+	/**
+	 * The default number of segment files that are kept.
+	 */
+	public static final int DEFAULT_SEGMENTS = 10;
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private File directory;
+	private int maxSegments;
+	private String id;
+	/**
+	 * The segment files, by the first sequence number in them.
+	 */
+	private TreeMap<Long,File> segments = new TreeMap<Long,File>();
+	private long lastSequence;
+	private int segmentRecords;
+	private BufferedWriter out;
+	private HashMap<String,Long> seen = new HashMap<String,Long>();
+	private boolean seenDirty;
+
+	/**
+	 * Opens the journal in the given directory, creating it if there is none. A record that was
+	 * only partly written, by a crash, is dropped.
+	 * @param directory The directory to keep the journal in.
+	 * @param maxSegments The number of segment files to keep.
+	 * @throws IOException If the journal could not be read or created.
+	 */
+	public Journal(File directory, int maxSegments) throws IOException {
+		this.directory=directory;
+		this.maxSegments=Math.max(maxSegments,1);
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create the journal directory "+directory);
+		}
+		File idFile = new File(directory,"id");
+		if(idFile.exists()) {
+			id=new String(Files.readAllBytes(idFile.toPath()),StandardCharsets.UTF_8).trim();
+		} else {
+			id=UUID.randomUUID().toString();
+			Files.write(idFile.toPath(),id.getBytes(StandardCharsets.UTF_8));
+		}
+		File[] files = directory.listFiles();
+		if(files!=null) {
+			for(File file : files) {
+				String name = file.getName();
+				if(!name.endsWith(SEGMENT_SUFFIX)) continue;
+				try {
+					segments.put(Long.parseLong(name.substring(0,name.length()-SEGMENT_SUFFIX.length())),file);
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+		if(segments.isEmpty()) {
+			openSegment(1);
+		} else {
+			recoverLastSegment();
+		}
+		loadSeen();
+	}
+
+	/**
+	 * @return The id of the journal.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The sequence number of the last record, or one less than the first
+	 * sequence number if there are no records.
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Adds a record to the end of the journal, with its sequence number appended as <code>sequence</code>.
+	 * @return The sequence number of the record.
+	 * @throws IOException If the record could not be written.
+	 */
+	public synchronized long append(Document record) throws IOException {
+		long sequence = lastSequence+1;
+		if(segmentRecords>=SEGMENT_RECORDS) {
+			openSegment(sequence);
+		}
+		record.append("sequence",sequence);
+		out.write(record.toJson());
+		out.write('\n');
+		out.flush();
+		segmentRecords++;
+		lastSequence=sequence;
+		return sequence;
+	}
+
+	/**
+	 * @param sequence The sequence number of the last record that has been seen.
+	 * @return The records after it, in order, or null if some of them are no longer kept.
+	 * @throws IOException If the journal could not be read.
+	 */
+	public synchronized ArrayList<Document> readAfter(long sequence) throws IOException {
+		if(sequence<segments.firstKey()-1 || sequence>lastSequence) return null;
+		ArrayList<Document> records = new ArrayList<Document>();
+		if(sequence==lastSequence) return records;
+		out.flush();
+		Long from = segments.floorKey(sequence+1);
+		for(File segment : segments.tailMap(from,true).values()) {
+			for(String line : Files.readAllLines(segment.toPath(),StandardCharsets.UTF_8)) {
+				if(line.isEmpty()) continue;
+				Document record = Document.parse(line);
+				if(record.getLong("sequence")>sequence) records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Drops every record, so that whoever has seen any of them needs to be brought up to date
+	 * some other way. Used when what the journal records may have changed without being recorded.
+	 * @throws IOException If the journal could not be written.
+	 */
+	public synchronized void reset() throws IOException {
+		// a sequence number is skipped, so that whoever had seen the last record has not seen everything
+		lastSequence++;
+		openSegment(lastSequence+1);
+		while(segments.size()>1) {
+			Files.deleteIfExists(segments.pollFirstEntry().getValue().toPath());
+		}
+	}
+
+	/**
+	 * @return The last sequence number seen of each other journal, by its id.
+	 */
+	public synchronized Map<String,Long> getSeen() {
+		return new HashMap<String,Long>(seen);
+	}
+
+	/**
+	 * Records the last sequence number seen of another journal, which is saved by {@link #saveSeen()}.
+	 */
+	public synchronized void setSeen(String journalId, long sequence) {
+		Long previous = seen.put(journalId,sequence);
+		if(previous==null || previous!=sequence) seenDirty=true;
+	}
+
+	/**
+	 * Saves the sequence numbers seen of other journals, if they have changed. Numbers that are
+	 * not saved before a crash are only a reason to be given some records again.
+	 * @throws IOException If they could not be saved.
+	 */
+	public synchronized void saveSeen() throws IOException {
+		if(!seenDirty) return;
+		StringBuilder content = new StringBuilder();
+		for(Map.Entry<String,Long> entry : seen.entrySet()) {
+			content.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		File file = new File(directory,"seen");
+		File tmp = new File(directory,"seen.tmp");
+		Files.write(tmp.toPath(),content.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+		seenDirty=false;
+	}
+
+	/**
+	 * Closes the current segment file, if any, and starts a new one, dropping the oldest
+	 * segment files beyond the number that are kept.
+	 */
+	private void openSegment(long firstSequence) throws IOException {
+		if(out!=null) out.close();
+		File segment = new File(directory,String.format("%020d",firstSequence)+SEGMENT_SUFFIX);
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(segment,true),StandardCharsets.UTF_8));
+		segments.put(firstSequence,segment);
+		segmentRecords=0;
+		lastSequence=firstSequence-1;
+		while(segments.size()>maxSegments) {
+			Files.deleteIfExists(segments.pollFirstEntry().getValue().toPath());
+		}
+	}
+
+	/**
+	 * Finds the last sequence number in the last segment file, dropping a last record that does
+	 * not end with a newline, and opens the segment file to append to.
+	 */
+	private void recoverLastSegment() throws IOException {
+		Map.Entry<Long,File> last = segments.lastEntry();
+		lastSequence=last.getKey()-1;
+		segmentRecords=0;
+		List<String> lines = new ArrayList<String>();
+		try (RandomAccessFile file = new RandomAccessFile(last.getValue(),"rw")) {
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			int complete = 0;
+			for(int i=0;i<bytes.length;i++) {
+				if(bytes[i]!='\n') continue;
+				lines.add(new String(bytes,complete,i-complete,StandardCharsets.UTF_8));
+				complete=i+1;
+			}
+			if(complete<bytes.length) file.setLength(complete);
+		}
+		for(String line : lines) {
+			if(line.isEmpty()) continue;
+			lastSequence=Document.parse(line).getLong("sequence");
+			segmentRecords++;
+		}
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(last.getValue(),true),StandardCharsets.UTF_8));
+	}
+
+	private void loadSeen() throws IOException {
+		File file = new File(directory,"seen");
+		if(!file.exists()) return;
+		for(String line : Files.readAllLines(file.toPath(),StandardCharsets.UTF_8)) {
+			String[] parts = line.trim().split(" ");
+			if(parts.length!=2) continue;
+			try {
+				seen.put(parts[0],Long.parseLong(parts[1]));
+			} catch (NumberFormatException e) {
+				// ignored, it is only a reason to be given some records again
+			}
+		}
+	}
+}
@@ -35,6 +35,36 @@ public class Messages {
         return doc2.toJson();
 	}
 	
+	public static String getHandshakeRequest(String host, int port, ArrayList<String> extensions, Document journal) {
+		Document doc1 = new Document();
+        doc1.append("host",host);
+        doc1.append("port",port);
+        Document doc2 = new Document();
+        doc2.append("hostPort",doc1);
+        doc2.append("command","HANDSHAKE_REQUEST");
+        doc2.append("extensions",extensions);
+        if (journal != null) {
+        	doc2.append("journal",journal);
+        }
+        
+        return doc2.toJson();
+	}
+	
+	public static String getHandshakeResponse(String host, int port, ArrayList<String> extensions, Document journal) {
+		Document doc1 = new Document();
+        doc1.append("host",host);
+        doc1.append("port",port);
+        Document doc2 = new Document();
+        doc2.append("hostPort",doc1);
+        doc2.append("command","HANDSHAKE_RESPONSE");
+        doc2.append("extensions",extensions);
+        if (journal != null) {
+        	doc2.append("journal",journal);
+        }
+        
+        return doc2.toJson();
+	}
+	
 	public static String getHandshakeResponse(String host, int port) {
 		Document doc1 = new Document();
         doc1.append("host",host);
@@ -121,6 +151,117 @@ public class Messages {
         return doc2.toJson();
 	}
 	
+	/**
+	 * A file bytes response without its content, which is sent as raw bytes along with it.
+	 */
+	public static String getFileBytesResponseHeader(String md5, Long lastModified, Long fileSize, String pathName, long position, long length, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_BYTES_RESPONSE");
+        doc2.append("pathName",pathName);
+        doc2.append("position", position);
+        doc2.append("length", length);
+        doc2.append("message", message);
+        doc2.append("status", status);
+        return doc2.toJson();
+	}
+	
+	public static String getFileManifestRequest(String md5, Long lastModified, Long fileSize, String pathName, long blockSize) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_MANIFEST_REQUEST");
+        doc2.append("pathName",pathName);
+        doc2.append("blockSize", blockSize);
+        return doc2.toJson();
+	}
+	
+	public static String getFileManifestResponse(String md5, Long lastModified, Long fileSize, String pathName, long blockSize, ArrayList<String> blocks, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_MANIFEST_RESPONSE");
+        doc2.append("pathName",pathName);
+        doc2.append("blockSize", blockSize);
+        doc2.append("blocks", blocks);
+        doc2.append("message", message);
+        doc2.append("status", status);
+        return doc2.toJson();
+	}
+	
+	public static String getFileDeltaRequest(String md5, Long lastModified, Long fileSize, String pathName, long blockSize, ArrayList<String> checksums) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_DELTA_REQUEST");
+        doc2.append("pathName",pathName);
+        doc2.append("blockSize", blockSize);
+        doc2.append("checksums", checksums);
+        return doc2.toJson();
+	}
+	
+	public static String getFileDeltaResponse(String md5, Long lastModified, Long fileSize, String pathName, ArrayList<Document> copies, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_DELTA_RESPONSE");
+        doc2.append("pathName",pathName);
+        doc2.append("copies", copies);
+        doc2.append("message", message);
+        doc2.append("status", status);
+        return doc2.toJson();
+	}
+	
+	public static String getFileChunksRequest(String md5, Long lastModified, Long fileSize, String pathName) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_CHUNKS_REQUEST");
+        doc2.append("pathName",pathName);
+        return doc2.toJson();
+	}
+	
+	public static String getFileChunksResponse(String md5, Long lastModified, Long fileSize, String pathName, ArrayList<String> chunks, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_CHUNKS_RESPONSE");
+        doc2.append("pathName",pathName);
+        doc2.append("chunks", chunks);
+        doc2.append("message", message);
+        doc2.append("status", status);
+        return doc2.toJson();
+	}
+	
 	public static String getFileDeleteRequest(String md5, Long lastModified, Long fileSize, String pathName) {
 		Document doc1 = new Document();
         doc1.append("md5",md5);
@@ -181,6 +322,38 @@ public class Messages {
         return doc2.toJson();
 	}
 	
+	public static String getFileMoveRequest(String md5, Long lastModified, Long fileSize, String pathName, String oldPathName) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_MOVE_REQUEST");
+        doc2.append("pathName",pathName);
+        doc2.append("oldPathName",oldPathName);
+        
+        return doc2.toJson();
+	}
+	
+	public static String getFileMoveResponse(String md5, Long lastModified, Long fileSize, String pathName, String oldPathName, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("md5",md5);
+        doc1.append("lastModified",lastModified);
+        doc1.append("fileSize",fileSize);
+        
+        Document doc2 = new Document();
+		doc2.append("fileDescriptor",doc1);
+        doc2.append("command","FILE_MOVE_RESPONSE");
+        doc2.append("pathName",pathName);
+        doc2.append("oldPathName",oldPathName);
+        doc2.append("message", message);
+        doc2.append("status", status);
+
+        return doc2.toJson();
+	}
+	
 	public static String getDirectoryCreateRequest(String pathName) {
 		Document doc1 = new Document();
         doc1.append("command","DIRECTORY_CREATE_REQUEST");
@@ -217,6 +390,48 @@ public class Messages {
         return doc1.toJson();
 	}
 
+	public static String getDirectoryMoveRequest(String pathName, String oldPathName) {
+		Document doc1 = new Document();
+        doc1.append("command","DIRECTORY_MOVE_REQUEST");
+        doc1.append("pathName",pathName);
+        doc1.append("oldPathName",oldPathName);
+        
+        return doc1.toJson();
+	}
+	
+	public static String getDirectoryMoveResponse(String pathName, String oldPathName, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("command","DIRECTORY_MOVE_RESPONSE");
+        doc1.append("pathName",pathName);
+        doc1.append("oldPathName",oldPathName);
+        doc1.append("message",message);
+        doc1.append("status",status);
+        
+        return doc1.toJson();
+	}
+	
+	public static String getDirectoryDigestRequest(String pathName, String digest) {
+		Document doc1 = new Document();
+        doc1.append("command","DIRECTORY_DIGEST_REQUEST");
+        doc1.append("pathName",pathName);
+        doc1.append("digest",digest);
+        
+        return doc1.toJson();
+	}
+	
+	public static String getDirectoryDigestResponse(String pathName, String digest, ArrayList<Document> files, ArrayList<Document> directories, String message, boolean status) {
+		Document doc1 = new Document();
+        doc1.append("command","DIRECTORY_DIGEST_RESPONSE");
+        doc1.append("pathName",pathName);
+        doc1.append("digest",digest);
+        doc1.append("files",files);
+        doc1.append("directories",directories);
+        doc1.append("message",message);
+        doc1.append("status",status);
+        
+        return doc1.toJson();
+	}
+	
 	public static String getAuthResponse(String EncyptedSecretKey , boolean status) {
 		Document doc1 = new Document();
         doc1.append("command","AUTH_RESPONSE");
@@ -0,0 +1,135 @@
+package unimelb.bitbox.util;
+
+/**
+ * A streaming implementation of the 64 bit xxHash, XXH64, with a seed of 0. It is not a
+ * cryptographic hash, but it is many times faster than MD5 and is good at telling apart
+ * content that has not been chosen to collide.
+ *
+ */
+public class XXHash64 {
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private long v1 = P1+P2;
+	private long v2 = P2;
+	private long v3 = 0;
+	private long v4 = -P1;
+	private long total;
+	/**
+	 * Bytes that did not make up a whole stripe of 32 bytes yet.
+	 */
+	private byte[] buffer = new byte[32];
+	private int buffered;
+
+	/**
+	 * Adds the next bytes of the content.
+	 */
+	public void update(byte[] bytes, int offset, int length) {
+		total+=length;
+		int end = offset+length;
+		if(buffered>0) {
+			int n = Math.min(32-buffered,length);
+			System.arraycopy(bytes,offset,buffer,buffered,n);
+			buffered+=n;
+			offset+=n;
+			if(buffered<32) return;
+			stripe(buffer,0);
+			buffered=0;
+		}
+		for(;offset+32<=end;offset+=32) {
+			stripe(bytes,offset);
+		}
+		if(offset<end) {
+			System.arraycopy(bytes,offset,buffer,0,end-offset);
+			buffered=end-offset;
+		}
+	}
+
+	/**
+	 * Adds a long to the content, as 8 bytes in big endian order.
+	 */
+	public void update(long value) {
+		byte[] bytes = new byte[8];
+		for(int i=7;i>=0;i--) {
+			bytes[i]=(byte) value;
+			value>>>=8;
+		}
+		update(bytes,0,8);
+	}
+
+	/**
+	 * @return The hash of the content added so far.
+	 */
+	public long digest() {
+		long h;
+		if(total>=32) {
+			h=Long.rotateLeft(v1,1)+Long.rotateLeft(v2,7)+Long.rotateLeft(v3,12)+Long.rotateLeft(v4,18);
+			h=merge(h,v1);
+			h=merge(h,v2);
+			h=merge(h,v3);
+			h=merge(h,v4);
+		} else {
+			h=P5;
+		}
+		h+=total;
+		int i = 0;
+		for(;i+8<=buffered;i+=8) {
+			h^=round(0,getLong(buffer,i));
+			h=Long.rotateLeft(h,27)*P1+P4;
+		}
+		if(i+4<=buffered) {
+			h^=(getInt(buffer,i) & 0xffffffffL)*P1;
+			h=Long.rotateLeft(h,23)*P2+P3;
+			i+=4;
+		}
+		for(;i<buffered;i++) {
+			h^=(buffer[i] & 0xff)*P5;
+			h=Long.rotateLeft(h,11)*P1;
+		}
+		h^=h>>>33;
+		h*=P2;
+		h^=h>>>29;
+		h*=P3;
+		h^=h>>>32;
+		return h;
+	}
+
+	private void stripe(byte[] bytes, int offset) {
+		v1=round(v1,getLong(bytes,offset));
+		v2=round(v2,getLong(bytes,offset+8));
+		v3=round(v3,getLong(bytes,offset+16));
+		v4=round(v4,getLong(bytes,offset+24));
+	}
+
+	private static long round(long acc, long input) {
+		acc+=input*P2;
+		acc=Long.rotateLeft(acc,31);
+		return acc*P1;
+	}
+
+	private static long merge(long acc, long value) {
+		acc^=round(0,value);
+		return acc*P1+P4;
+	}
+
+	private static long getLong(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xffL)
+				| (bytes[offset+1] & 0xffL)<<8
+				| (bytes[offset+2] & 0xffL)<<16
+				| (bytes[offset+3] & 0xffL)<<24
+				| (bytes[offset+4] & 0xffL)<<32
+				| (bytes[offset+5] & 0xffL)<<40
+				| (bytes[offset+6] & 0xffL)<<48
+				| (bytes[offset+7] & 0xffL)<<56;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff)
+				| (bytes[offset+1] & 0xff)<<8
+				| (bytes[offset+2] & 0xff)<<16
+				| (bytes[offset+3] & 0xff)<<24;
+	}
+}